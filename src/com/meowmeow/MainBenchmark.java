@@ -0,0 +1,15 @@
+package com.meowmeow;
+
+import com.meowmeow.classes.BenchmarkRunner;
+import com.meowmeow.classes.GameBenchmarks;
+
+public class MainBenchmark {
+    public static void main(String[] args) {
+        // e.g. "--filter loopback --iterations 5" to only run the loopback benchmarks, a bit faster
+        try {
+            GameBenchmarks.runAll(BenchmarkRunner.fromArgs(args));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
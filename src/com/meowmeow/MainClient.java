@@ -1,37 +1,38 @@
 package com.meowmeow;
 
-import com.meowmeow.classes.Client;
+import com.meowmeow.classes.AsyncClient;
+import com.meowmeow.classes.ClientConfig;
 
+import java.net.ConnectException;
 import java.util.Scanner;
 
 public class MainClient {
     public static void main(String[] args) {
-        try (var client = new Client()) {
+        // a single connection is kept for the whole session, e.g. "--server 10.0.0.2:12345" for another server,
+        // or one per node with "--cluster host:port,host:port,..."
+        try (var client = new AsyncClient(ClientConfig.fromArgs(args).setPrintResponses(true))) {
             // automatically start a new game for the user, which also tests the connection
-            client.query("new-user");
-        } catch (Exception e) {
-            // connection failed - exit the app
-            System.out.println("Connection failed - The server was not found. Exiting the app...");
-            System.exit(0);
-        }
+            client.query("new-user").join();
 
-        // then loop until the user loses all the cash, or voluntarily leaves
-        while (true) {
-            System.out.print("Please enter query: ");
+            // then loop until the user loses all the cash, or voluntarily leaves
             var scanner = new Scanner(System.in);
-            var query = scanner.nextLine();
-            // initiate a new connection
-            try (var client = new Client()) {
-                var response = client.query(query);
+            while (true) {
+                System.out.print("Please enter query: ");
+                var query = scanner.nextLine();
+                var response = client.query(query).join();
                 if (query.length() > 9 && query.substring(0,9).equals("quit-game")) {
                     break;
                 }
                 if (response.contains("You've lost all of the cash")) {
                     break;
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
             }
+        } catch (ConnectException e) {
+            // connection failed - exit the app
+            System.out.println("Connection failed - The server was not found. Exiting the app...");
+            System.exit(0);
+        } catch (Exception e) {
+            e.printStackTrace();
         }
     }
 }
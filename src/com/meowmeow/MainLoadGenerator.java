@@ -0,0 +1,14 @@
+package com.meowmeow;
+
+import com.meowmeow.classes.LoadGenerator;
+
+public class MainLoadGenerator {
+    public static void main(String[] args) {
+        // e.g. "--mode open --rate 20000 --in-process 4" to load a 4-reactor server started right here
+        try {
+            LoadGenerator.fromArgs(args).run();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.meowmeow;
+
+import com.meowmeow.classes.OddsAnalyzer;
+
+public class MainOdds {
+    public static void main(String[] args) {
+        // e.g. "--mode monte-carlo --samples 1000000000" for a quick estimate instead of every deal
+        try {
+            OddsAnalyzer.fromArgs(args).run();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -1,12 +1,14 @@
 package com.meowmeow;
 
 import com.meowmeow.classes.Server;
+import com.meowmeow.classes.ServerConfig;
 
 public class MainServer {
 
     public static void main(String[] args) {
-        // write your code here
-        try (var server = new Server()) {
+        // e.g. "--reactors 4" for a dedicated acceptor and 4 I/O threads, or "--mode threads" for a thread
+        // per connection
+        try (var server = new Server(ServerConfig.fromArgs(args))) {
             server.startServer();
         } catch (Exception e) {
             e.printStackTrace();
@@ -0,0 +1,278 @@
+package com.meowmeow.classes;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <h3>Admission Control class</h3>
+ * <p>The limits which keep one misbehaving client from starving everybody else:</p>
+ * <ul>
+ *     <li>A maximum number of open connections. The ones over it get the {@link #BUSY_RESPONSE} and are closed</li>
+ *     <li>
+ *         Rate limits on the game queries, per user and per client IP address (new users included). A query over
+ *         the limit gets the {@link #RATE_LIMITED_RESPONSE} right away
+ *     </li>
+ *     <li>
+ *         A budget of pending work: the rounds being played or waiting in a batch, server-wide. A game which
+ *         doesn't fit gets the {@link #BUSY_RESPONSE} right away
+ *     </li>
+ * </ul>
+ * <p>
+ *     The rate limits are token buckets, kept as a single "theoretical arrival time" each (the GCRA form of a
+ *     token bucket): a query is let through if it isn't earlier than that time minus the burst, and pushes the
+ *     time back by one interval. Checking is a single compare-and-set, without a lock or a timer. The users'
+ *     times live in the {@link WalletStore} next to their cash, the addresses' ones in a {@link Peer} which the
+ *     connections of that address share.
+ * </p>
+ * <p>Every limit is off by default, see {@link ServerConfig}.</p>
+ */
+final class AdmissionControl {
+    static final String BUSY_RESPONSE = "Server is busy, please try again later";
+
+    static final String RATE_LIMITED_RESPONSE = "Too many queries, please slow down";
+
+    private static final ByteBuffer REFUSAL = ByteBuffer.wrap(
+            (BUSY_RESPONSE + (char) Connection.RESPONSE_DELIMITER).getBytes(StandardCharsets.ISO_8859_1));
+
+    private final WalletStore wallets;
+
+    private final ServerMetrics metrics;
+
+    /** 0 for no limit */
+    private final int maxConnections;
+
+    /** The interval between two queries at the sustained rate, and the head start of a burst. 0 for no limit */
+    private final long userInterval, userTolerance, ipInterval, ipTolerance;
+
+    /** 0 for no limit */
+    private final long pendingBudget;
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private final AtomicLong pending = new AtomicLong();
+
+    private final ConcurrentHashMap<InetAddress, Peer> peers = new ConcurrentHashMap<>();
+
+    /** The number of peers after the last purge, see {@link #purge()} */
+    private volatile int peersAfterPurge = 0;
+
+    /** The times are relative to this, so that they are never negative */
+    private final long origin = System.nanoTime();
+
+    /**
+     * The state shared by the connections of one IP address
+     */
+    final class Peer {
+        private final InetAddress address;
+
+        /** The address's theoretical arrival time */
+        private final AtomicLong arrival = new AtomicLong();
+
+        /** The open connections of this address */
+        private final AtomicInteger references = new AtomicInteger();
+
+        private Peer(@NotNull InetAddress address) {
+            this.address = address;
+        }
+
+        /**
+         * The connection is closed: give back its place, and the rounds its batch still had
+         * @param batch the connection's batch, if any
+         */
+        void release(@Nullable Batch batch) {
+            if (batch != null) {
+                finishBatch(batch);
+            }
+            connections.decrementAndGet();
+            // -1 marks it as gone, for open() to see
+            if (references.decrementAndGet() == 0 && isIdle(this) && references.compareAndSet(0, -1)) {
+                peers.remove(address, this);
+            }
+        }
+    }
+
+    AdmissionControl(@NotNull ServerConfig config, @NotNull WalletStore wallets, @NotNull ServerMetrics metrics) {
+        this.wallets = wallets;
+        this.metrics = metrics;
+        maxConnections = config.getMaxConnections();
+        userInterval = interval(config.getUserRate());
+        userTolerance = userInterval * (Math.max(1, config.getUserBurst()) - 1);
+        ipInterval = interval(config.getIpRate());
+        ipTolerance = ipInterval * (Math.max(1, config.getIpBurst()) - 1);
+        pendingBudget = config.getPendingBudget();
+    }
+
+    private static long interval(double perSecond) {
+        return perSecond <= 0 ? 0 : Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / perSecond));
+    }
+
+    private long now() {
+        return System.nanoTime() - origin;
+    }
+
+    /**
+     * Let a new connection in, if there is room for it
+     * @param socketChannel the accepted channel
+     * @return the state of its address, to be released when the connection closes, or null if the connection is
+     * refused. Refused connections have been sent the {@link #BUSY_RESPONSE} and closed already
+     */
+    @Nullable
+    Peer open(@NotNull SocketChannel socketChannel) {
+        if (connections.incrementAndGet() > maxConnections && maxConnections > 0) {
+            connections.decrementAndGet();
+            metrics.rejectedConnections.increment();
+            refuse(socketChannel);
+            return null;
+        }
+
+        InetAddress address;
+        try {
+            address = ((InetSocketAddress) socketChannel.getRemoteAddress()).getAddress();
+        } catch (IOException | NullPointerException e) {
+            // gone already, it gets a peer of its own which nobody else shares
+            address = InetAddress.getLoopbackAddress();
+        }
+        if (peers.size() > 2 * peersAfterPurge + 1024) {
+            purge();
+        }
+        while (true) {
+            var peer = peers.computeIfAbsent(address, Peer::new);
+            var references = peer.references.get();
+            // a peer which has just been purged can't be brought back, take a fresh one
+            if (references >= 0 && peer.references.compareAndSet(references, references + 1)) {
+                return peer;
+            }
+            peers.remove(address, peer);
+        }
+    }
+
+    /**
+     * Send the {@link #BUSY_RESPONSE} if the socket takes it right away, and close the connection
+     */
+    private static void refuse(@NotNull SocketChannel socketChannel) {
+        try (socketChannel) {
+            socketChannel.configureBlocking(false);
+            socketChannel.write(REFUSAL.duplicate());
+        } catch (IOException ignored) {
+            // closing anyway
+        }
+    }
+
+    private boolean isIdle(@NotNull Peer peer) {
+        return peer.arrival.get() <= now();
+    }
+
+    /**
+     * Forget the addresses without connections which are back to a full burst, so an endless stream of new
+     * addresses doesn't pile up. Runs whenever the number of peers has doubled since the last purge, so it is
+     * cheap on average
+     */
+    private synchronized void purge() {
+        for (var peer : peers.values()) {
+            if (isIdle(peer) && peer.references.compareAndSet(0, -1)) {
+                peers.remove(peer.address, peer);
+            }
+        }
+        peersAfterPurge = peers.size();
+    }
+
+    /**
+     * Let a game query (or a new user) of a connection through the rate limit of its address
+     * @param peer the connection's peer, null if it has none
+     * @return true if the query can go on, false if it has to get the {@link #RATE_LIMITED_RESPONSE}
+     */
+    boolean admitPeer(@Nullable Peer peer) {
+        if (ipInterval == 0 || peer == null || admit(peer.arrival, ipInterval, ipTolerance)) {
+            return true;
+        }
+        metrics.rateLimited.increment();
+        return false;
+    }
+
+    private boolean admit(@NotNull AtomicLong arrival, long interval, long tolerance) {
+        var now = now();
+        while (true) {
+            var current = arrival.get();
+            var next = Math.max(current, now) + interval;
+            if (next - now > tolerance + interval) {
+                return false;
+            }
+            if (arrival.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Let a game query through the rate limit of its user
+     * @param mostSigBits the user ID's most significant bits
+     * @param leastSigBits the user ID's least significant bits
+     * @return true if the query can go on, false if it has to get the {@link #RATE_LIMITED_RESPONSE}
+     */
+    boolean admitUser(long mostSigBits, long leastSigBits) {
+        if (userInterval == 0 || wallets.admit(mostSigBits, leastSigBits, now(), userInterval, userTolerance)) {
+            return true;
+        }
+        metrics.rateLimited.increment();
+        return false;
+    }
+
+    /**
+     * Book some rounds in the pending work budget
+     * @param rounds the rounds about to be played
+     * @return true if they fit, and have to be given back with {@link #release(long)}. False if the query has to
+     * get the {@link #BUSY_RESPONSE}
+     */
+    boolean reserve(long rounds) {
+        if (pendingBudget == 0) {
+            return true;
+        }
+        while (true) {
+            var current = pending.get();
+            if (current + rounds > pendingBudget) {
+                metrics.busy.increment();
+                return false;
+            }
+            if (pending.compareAndSet(current, current + rounds)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param rounds rounds booked with {@link #reserve(long)} which have been played, or won't be
+     */
+    void release(long rounds) {
+        if (pendingBudget != 0) {
+            pending.addAndGet(-rounds);
+        }
+    }
+
+    /**
+     * Give back whatever a batch has booked. Safe to call more than once
+     * @param batch the batch, finished or abandoned
+     */
+    void finishBatch(@NotNull Batch batch) {
+        release(batch.reserved);
+        batch.reserved = 0;
+    }
+
+    int getConnections() {
+        return connections.get();
+    }
+
+    long getPending() {
+        return pending.get();
+    }
+}
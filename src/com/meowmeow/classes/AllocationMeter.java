@@ -0,0 +1,66 @@
+package com.meowmeow.classes;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * <h3>Allocation Meter class</h3>
+ * <p>Measures how many bytes the current thread allocates on the heap, to keep an eye on per-request garbage.</p>
+ * <p>
+ *     It relies on the HotSpot extension of the {@link java.lang.management.ThreadMXBean}. On JVMs without it,
+ *     {@link #isSupported()} is false and every measurement is 0.
+ * </p>
+ */
+public final class AllocationMeter {
+    private static final com.sun.management.ThreadMXBean THREAD_BEAN = threadBean();
+
+    /** Reading the counter allocates a little by itself on some JVMs, so that part is subtracted */
+    private static final long READING_OVERHEAD = readingOverhead();
+
+    private AllocationMeter() {}
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        var bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        var hotspotBean = (com.sun.management.ThreadMXBean) bean;
+        if (!hotspotBean.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        hotspotBean.setThreadAllocatedMemoryEnabled(true);
+        return hotspotBean;
+    }
+
+    private static long readingOverhead() {
+        var overhead = Long.MAX_VALUE;
+        for (int i = 0; i < 16; i++) {
+            var before = read();
+            overhead = Math.min(overhead, read() - before);
+        }
+        return overhead;
+    }
+
+    private static long read() {
+        return THREAD_BEAN == null ? 0 : THREAD_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    public static boolean isSupported() {
+        return THREAD_BEAN != null;
+    }
+
+    /**
+     * @return the total number of bytes allocated by the current thread so far. Subtract two readings to get
+     * the allocations in between
+     */
+    public static long allocatedBytes() {
+        return read();
+    }
+
+    /**
+     * @param before a reading from {@link #allocatedBytes()} taken earlier on the current thread
+     * @return the number of bytes allocated since then, not counting the readings themselves
+     */
+    public static long allocatedSince(long before) {
+        return Math.max(0, read() - before - READING_OVERHEAD);
+    }
+}
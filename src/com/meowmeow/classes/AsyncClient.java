@@ -0,0 +1,651 @@
+package com.meowmeow.classes;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * <h3>Async Client class</h3>
+ * <p>A client for bots: a pool of persistent connections, with any number of queries in flight at once.</p>
+ * <p>
+ *     Every query returns a {@link CompletableFuture} right away, and can be sent from any thread. A single I/O
+ *     thread with its own {@link Selector} does the rest:
+ * </p>
+ * <ul>
+ *     <li>
+ *         The queries are spread round-robin over the connections of the pool, and pipelined: a query is sent
+ *         without waiting for the responses of the previous ones
+ *     </li>
+ *     <li>
+ *         The server answers the queries of a connection in order, so every connection keeps a queue of the
+ *         futures waiting for their response, oldest first
+ *     </li>
+ *     <li>
+ *         Text responses are cut at the server's delimiter, so a response can be any size and can arrive in
+ *         any number of pieces
+ *     </li>
+ * </ul>
+ * <p>
+ *     The futures are completed on the I/O thread. Anything slow should be chained with the {@code ...Async}
+ *     methods of the future, so that the I/O thread can carry on.
+ * </p>
+ * <p>
+ *     With {@link ClientConfig#setCluster(boolean)}, the queries about a user only go to the connections of the
+ *     node which keeps it, found with the same {@link HashRing} as the servers; the new users still go anywhere.
+ *     Either way, a query which the server redirects to another endpoint is sent again over there, up to
+ *     {@value #MAX_REDIRECTS} times, before its future sees the redirect.
+ * </p>
+ * <p>
+ *     The rounds of a table (see {@link TableDealer}) come without being asked for, so they don't complete any
+ *     future: they go to the listener of {@link #onTableRound(Consumer)} instead, on the I/O thread too.
+ * </p>
+ * <p>
+ *     If a connection breaks, the futures waiting on it fail and the pool carries on with the other connections.
+ *     Once no connection is left, every query fails right away.
+ * </p>
+ */
+public class AsyncClient implements AutoCloseable {
+    private static final int MAX_REDIRECTS = 2;
+
+    private final ClientConfig config;
+
+    /** Who keeps which users, null if the endpoints aren't a cluster */
+    @Nullable
+    private final HashRing ring;
+
+    private final Selector selector = Selector.open();
+
+    private final ArrayList<PooledConnection> connections = new ArrayList<>();
+
+    /** Queries waiting to be picked up by the I/O thread */
+    private final ConcurrentLinkedQueue<Submission> submissions = new ConcurrentLinkedQueue<>();
+
+    /** Whether the selector has already been woken up since the I/O thread last looked at the submissions */
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+
+    private final Thread ioThread;
+
+    private volatile boolean closing = false;
+
+    /** The next connection to get a query, overall and on every endpoint. Only touched by the I/O thread */
+    private int nextConnection = 0;
+
+    private final int[] nextOnEndpoint;
+
+    /** Gets the rounds of the tables, null to drop them */
+    @Nullable
+    private volatile Consumer<String> tableListener;
+
+    /**
+     * A query on its way to the server, or waiting for its response
+     */
+    private static final class Submission {
+        /** A text query, or null for a binary one */
+        final String query;
+        final byte opcode;
+        final UUID userId;
+        final int betMoney;
+
+        /** Exactly one of them is set, depending on the kind of query */
+        final CompletableFuture<String> text;
+        final CompletableFuture<GameRound> round;
+
+        /** The endpoint which has to get the query, -1 for any */
+        int endpoint = -1;
+
+        /** How many times the query has been sent again somewhere else */
+        int redirects = 0;
+
+        Submission(String query, CompletableFuture<String> text) {
+            this.query = query;
+            this.opcode = 0;
+            this.userId = null;
+            this.betMoney = 0;
+            this.text = text;
+            this.round = null;
+        }
+
+        Submission(byte opcode, UUID userId, int betMoney, CompletableFuture<GameRound> round) {
+            this.query = null;
+            this.opcode = opcode;
+            this.userId = userId;
+            this.betMoney = betMoney;
+            this.text = null;
+            this.round = round;
+        }
+
+        void fail(Throwable cause) {
+            if (text != null) {
+                text.completeExceptionally(cause);
+            } else {
+                round.completeExceptionally(cause);
+            }
+        }
+    }
+
+    /**
+     * A connection of the pool. Only touched by the I/O thread once the client is running
+     */
+    private static final class PooledConnection {
+        final SocketChannel socketChannel;
+        final int endpoint;
+        SelectionKey key;
+        ByteBuffer inbound = ByteBuffer.allocate(8192);
+        ByteBuffer outbound = ByteBuffer.allocate(Connection.BUFFER_SIZE);
+
+        /** The queries sent (or about to be), waiting for their response, oldest first */
+        final ArrayDeque<Submission> pending = new ArrayDeque<>();
+
+        /** How much of the inbound buffer has been searched for a delimiter already */
+        int scanned = 0;
+
+        boolean broken = false;
+
+        PooledConnection(SocketChannel socketChannel, int endpoint) {
+            this.socketChannel = socketChannel;
+            this.endpoint = endpoint;
+        }
+    }
+
+    /**
+     * Connect to the server with the default config: a single connection to 127.0.0.1:12345
+     * @throws IOException if the server can't be reached
+     */
+    public AsyncClient() throws IOException {
+        this(new ClientConfig());
+    }
+
+    /**
+     * Open every connection of the pool, then start the I/O thread
+     * @param config see {@link ClientConfig}
+     * @throws IOException if one of the endpoints can't be reached
+     */
+    public AsyncClient(@NotNull ClientConfig config) throws IOException {
+        this.config = config;
+        ring = config.isCluster() ? new HashRing(config.getEndpoints()) : null;
+        nextOnEndpoint = new int[config.getEndpoints().size()];
+        try {
+            // the connections of an endpoint are next to each other, see nextConnection(int)
+            for (int endpoint = 0; endpoint < config.getEndpoints().size(); endpoint++) {
+                for (int i = 0; i < config.getConnectionsPerEndpoint(); i++) {
+                    connections.add(connect(config.getEndpoints().get(endpoint), endpoint));
+                }
+            }
+        } catch (IOException e) {
+            for (var connection : connections) {
+                connection.socketChannel.close();
+            }
+            selector.close();
+            throw e;
+        }
+        ioThread = new Thread(this::run, "async-client");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    /**
+     * Open a connection, switch it to the binary protocol if needed (blocking, that's a one-off), then make it
+     * non-blocking and register it
+     */
+    @NotNull
+    private PooledConnection connect(@NotNull InetSocketAddress address, int endpoint) throws IOException {
+        var socketChannel = SocketChannel.open(address);
+        var connection = new PooledConnection(socketChannel, endpoint);
+        try {
+            if (config.isBinary()) {
+                putText(connection, BinaryProtocol.UPGRADE_QUERY);
+                connection.outbound.flip();
+                while (connection.outbound.hasRemaining()) {
+                    socketChannel.write(connection.outbound);
+                }
+                connection.outbound.clear();
+                String response;
+                while ((response = nextText(connection)) == null) {
+                    if (socketChannel.read(connection.inbound) < 0) {
+                        throw new EOFException("The server has closed the connection");
+                    }
+                }
+                if (!response.equals(BinaryProtocol.UPGRADE_RESPONSE)) {
+                    throw new IOException("The server refused the binary protocol: " + response);
+                }
+            }
+            socketChannel.configureBlocking(false);
+            connection.key = socketChannel.register(selector, SelectionKey.OP_READ, connection);
+        } catch (IOException e) {
+            socketChannel.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    /**
+     * @param listener gets every round of the tables this client's users sit at, on the I/O thread. Null to drop
+     *                 them
+     */
+    public void onTableRound(@Nullable Consumer<String> listener) {
+        tableListener = listener;
+    }
+
+    /**
+     * Send a text query
+     * @param query the query, without the delimiter
+     * @return the response, or an {@link IOException} if the connection broke first
+     */
+    @NotNull
+    public CompletableFuture<String> query(@NotNull String query) {
+        var future = new CompletableFuture<String>();
+        if (config.isBinary()) {
+            future.completeExceptionally(new IOException("The connections are using the binary protocol"));
+            return future;
+        }
+        var submission = new Submission(query, future);
+        if (ring != null) {
+            submission.endpoint = textOwner(query);
+        }
+        submit(submission);
+        return future;
+    }
+
+    /**
+     * @param query a text query
+     * @return the node which keeps the query's user, or -1 if the query isn't about a user
+     */
+    private int textOwner(@NotNull String query) {
+        // "<command> user-id <id> ..."
+        var fragments = query.split(" ", 4);
+        if (fragments.length < 3 || !fragments[1].equals("user-id")) {
+            return -1;
+        }
+        try {
+            return ring.ownerOf(UUID.fromString(fragments[2]));
+        } catch (IllegalArgumentException e) {
+            // the server will tell
+            return -1;
+        }
+    }
+
+    /**
+     * Send a query with the {@link BinaryProtocol}, which needs {@link ClientConfig#setBinary(boolean)}
+     * @param opcode one of {@link BinaryProtocol#NEW_USER}, {@link BinaryProtocol#NEW_GAME},
+     *               {@link BinaryProtocol#QUIT_GAME}, {@link BinaryProtocol#BALANCE}
+     * @param userId the user ID, may be null for {@link BinaryProtocol#NEW_USER}
+     * @param betMoney the bet money, only used by {@link BinaryProtocol#NEW_GAME}
+     * @return the result (check {@link GameRound#getStatus()} first), or an {@link IOException} if the connection
+     * broke first
+     */
+    @NotNull
+    public CompletableFuture<GameRound> binaryQuery(byte opcode, @Nullable UUID userId, int betMoney) {
+        var future = new CompletableFuture<GameRound>();
+        if (!config.isBinary()) {
+            future.completeExceptionally(new IOException("The connections are using text"));
+            return future;
+        }
+        if (opcode != BinaryProtocol.NEW_USER && opcode != BinaryProtocol.NEW_GAME
+                && opcode != BinaryProtocol.QUIT_GAME && opcode != BinaryProtocol.BALANCE) {
+            // the multi-round opcodes answer with several frames
+            future.completeExceptionally(new IllegalArgumentException("Unsupported opcode " + opcode));
+            return future;
+        }
+        var submission = new Submission(opcode, userId, betMoney, future);
+        if (ring != null && userId != null && opcode != BinaryProtocol.NEW_USER) {
+            submission.endpoint = ring.ownerOf(userId);
+        }
+        submit(submission);
+        return future;
+    }
+
+    /**
+     * Hand a query over to the I/O thread, waking it up unless that's already been done
+     */
+    private void submit(@NotNull Submission submission) {
+        submissions.add(submission);
+        if (closing) {
+            failSubmissions(new IOException("The client has been closed"));
+            return;
+        }
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * The I/O thread: send the new queries, then whatever the sockets take, and complete the futures whose
+     * responses have arrived
+     */
+    private void run() {
+        try {
+            while (!closing) {
+                selector.select();
+                wakeupPending.set(false);
+                sendSubmissions();
+
+                var keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    var key = keys.next();
+                    keys.remove();
+                    var connection = (PooledConnection) key.attachment();
+                    if (key.isValid() && key.isWritable()) {
+                        write(connection);
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        read(connection);
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (!closing) {
+                Log.error("The client's I/O thread has crashed", e);
+            }
+        } finally {
+            var cause = new IOException("The client has been closed");
+            for (var connection : connections) {
+                breakConnection(connection, cause);
+            }
+            failSubmissions(cause);
+        }
+    }
+
+    /**
+     * Encode every submitted query into the outbound buffer of its connection, then try to send them
+     */
+    private void sendSubmissions() {
+        Submission submission;
+        while ((submission = submissions.poll()) != null) {
+            send(submission);
+        }
+        for (var connection : connections) {
+            if (!connection.broken && connection.outbound.position() > 0) {
+                write(connection);
+            }
+        }
+    }
+
+    /**
+     * Encode a query into the outbound buffer of a connection of its endpoint, or of any connection
+     * @return the connection, or null if there was none left and the query has failed
+     */
+    @Nullable
+    private PooledConnection send(@NotNull Submission submission) {
+        var connection = submission.endpoint < 0 ? nextConnection() : nextConnection(submission.endpoint);
+        if (connection == null) {
+            submission.fail(new IOException(submission.endpoint < 0 ? "No connection to the server is left"
+                    : "No connection to " + config.getEndpoints().get(submission.endpoint) + " is left"));
+            return null;
+        }
+        if (submission.query != null) {
+            putText(connection, submission.query);
+        } else {
+            BinaryProtocol.encodeRequest(ensureOutbound(connection,
+                    BinaryProtocol.HEADER_LENGTH + BinaryProtocol.REQUEST_LENGTH),
+                    submission.opcode, submission.userId, submission.betMoney);
+        }
+        connection.pending.add(submission);
+        return connection;
+    }
+
+    /**
+     * Send a query again, to the endpoint the server has redirected it to
+     * @param submission the query, just taken off its connection
+     * @param endpoint the new endpoint
+     */
+    private void redirect(@NotNull Submission submission, int endpoint) {
+        submission.endpoint = endpoint;
+        submission.redirects++;
+        var connection = send(submission);
+        if (connection != null) {
+            write(connection);
+        }
+    }
+
+    /**
+     * @param response a text response
+     * @return the endpoint it redirects to, or -1 if it isn't a redirect to one of the endpoints
+     */
+    private int redirectedEndpoint(@NotNull String response) {
+        if (!response.startsWith("redirect ")) {
+            return -1;
+        }
+        try {
+            return config.getEndpoints().indexOf(ClientConfig.parseEndpoint(response.substring(9)));
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the next connection which still works, round-robin, or null if they are all broken
+     */
+    @Nullable
+    private PooledConnection nextConnection() {
+        for (int i = 0; i < connections.size(); i++) {
+            var connection = connections.get(nextConnection);
+            nextConnection = (nextConnection + 1) % connections.size();
+            if (!connection.broken) {
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param endpoint an endpoint
+     * @return the next connection of that endpoint which still works, round-robin, or null if they are all broken
+     */
+    @Nullable
+    private PooledConnection nextConnection(int endpoint) {
+        var perEndpoint = config.getConnectionsPerEndpoint();
+        for (int i = 0; i < perEndpoint; i++) {
+            var connection = connections.get(endpoint * perEndpoint + nextOnEndpoint[endpoint]);
+            nextOnEndpoint[endpoint] = (nextOnEndpoint[endpoint] + 1) % perEndpoint;
+            if (!connection.broken) {
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Append a text query and its delimiter to the outbound buffer, as ISO-8859-1 bytes
+     */
+    private static void putText(@NotNull PooledConnection connection, @NotNull String query) {
+        var outbound = ensureOutbound(connection, query.length() + 1);
+        for (int i = 0; i < query.length(); i++) {
+            outbound.put((byte) query.charAt(i));
+        }
+        outbound.put(Connection.QUERY_DELIMITER);
+    }
+
+    /**
+     * Make room for {@code length} more bytes in the outbound buffer, growing it if needed
+     */
+    @NotNull
+    private static ByteBuffer ensureOutbound(@NotNull PooledConnection connection, int length) {
+        if (connection.outbound.remaining() < length) {
+            var capacity = connection.outbound.capacity();
+            while (capacity - connection.outbound.position() < length) {
+                capacity *= 2;
+            }
+            var bigger = ByteBuffer.allocate(capacity);
+            connection.outbound.flip();
+            bigger.put(connection.outbound);
+            connection.outbound = bigger;
+        }
+        return connection.outbound;
+    }
+
+    /**
+     * Send as much of the outbound buffer as the socket takes, and ask for "ready-to-write" if there's more
+     */
+    private void write(@NotNull PooledConnection connection) {
+        try {
+            connection.outbound.flip();
+            connection.socketChannel.write(connection.outbound);
+            connection.outbound.compact();
+            var ops = SelectionKey.OP_READ;
+            if (connection.outbound.position() > 0) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            if (connection.key.interestOps() != ops) {
+                connection.key.interestOps(ops);
+            }
+        } catch (IOException e) {
+            breakConnection(connection, e);
+        }
+    }
+
+    /**
+     * Read whatever has arrived, and complete a future for every whole response
+     */
+    private void read(@NotNull PooledConnection connection) {
+        try {
+            if (!connection.inbound.hasRemaining()) {
+                // a response bigger than the buffer - grow it
+                var bigger = ByteBuffer.allocate(connection.inbound.capacity() * 2);
+                connection.inbound.flip();
+                bigger.put(connection.inbound);
+                connection.inbound = bigger;
+            }
+            if (connection.socketChannel.read(connection.inbound) < 0) {
+                throw new EOFException("The server has closed the connection");
+            }
+            if (!config.isBinary()) {
+                readText(connection);
+                return;
+            }
+            while (!connection.pending.isEmpty()) {
+                var submission = connection.pending.peek();
+                var round = new GameRound();
+                connection.inbound.flip();
+                var decoded = BinaryProtocol.decodeResponse(connection.inbound, round);
+                connection.inbound.compact();
+                if (!decoded) {
+                    break;
+                }
+                connection.pending.poll();
+                // a binary redirect only names the node's position, which means something in a cluster only
+                if (round.status == BinaryProtocol.STATUS_REDIRECT && ring != null
+                        && submission.redirects < MAX_REDIRECTS
+                        && round.balance >= 0 && round.balance < ring.size()) {
+                    redirect(submission, (int) round.balance);
+                    continue;
+                }
+                submission.round.complete(round);
+            }
+        } catch (IOException e) {
+            breakConnection(connection, e);
+        }
+    }
+
+    /**
+     * Complete a future for every whole text response, in order, and hand the rounds of the tables to the listener
+     */
+    private void readText(@NotNull PooledConnection connection) {
+        String response;
+        while ((response = nextText(connection)) != null) {
+            if (response.startsWith(TableDealer.PUSH_PREFIX)) {
+                if (config.isPrintResponses()) {
+                    System.out.println(response);
+                }
+                var listener = tableListener;
+                if (listener != null) {
+                    listener.accept(response);
+                }
+                continue;
+            }
+            var submission = connection.pending.poll();
+            if (submission == null) {
+                Log.warn("Dropped a response nobody asked for: {}", response);
+                continue;
+            }
+            var endpoint = submission.redirects < MAX_REDIRECTS ? redirectedEndpoint(response) : -1;
+            if (endpoint >= 0) {
+                redirect(submission, endpoint);
+                continue;
+            }
+            if (config.isPrintResponses()) {
+                System.out.println(response);
+            }
+            submission.text.complete(response);
+        }
+    }
+
+    /**
+     * Cut the next whole text response out of the inbound buffer
+     * @return the response, or null if it hasn't fully arrived yet
+     */
+    @Nullable
+    private static String nextText(@NotNull PooledConnection connection) {
+        var inbound = connection.inbound;
+        inbound.flip();
+        try {
+            for (int i = connection.scanned; i < inbound.limit(); i++) {
+                if (inbound.get(i) == Connection.RESPONSE_DELIMITER) {
+                    var response = new String(inbound.array(), inbound.arrayOffset(), i, StandardCharsets.ISO_8859_1);
+                    inbound.position(i + 1);
+                    connection.scanned = 0;
+                    return response;
+                }
+            }
+            connection.scanned = inbound.limit();
+            return null;
+        } finally {
+            inbound.compact();
+        }
+    }
+
+    /**
+     * Take a connection out of the pool, failing every query still waiting on it
+     */
+    private void breakConnection(@NotNull PooledConnection connection, @NotNull IOException cause) {
+        if (connection.broken) {
+            return;
+        }
+        connection.broken = true;
+        if (connection.key != null) {
+            connection.key.cancel();
+        }
+        try {
+            connection.socketChannel.close();
+        } catch (IOException ignored) {
+            // closing anyway
+        }
+        Submission submission;
+        while ((submission = connection.pending.poll()) != null) {
+            submission.fail(cause);
+        }
+    }
+
+    private void failSubmissions(@NotNull IOException cause) {
+        Submission submission;
+        while ((submission = submissions.poll()) != null) {
+            submission.fail(cause);
+        }
+    }
+
+    /**
+     * Stop the I/O thread and close the connections. The queries still waiting fail
+     */
+    @Override
+    public void close() throws Exception {
+        closing = true;
+        selector.wakeup();
+        ioThread.join();
+        selector.close();
+    }
+}
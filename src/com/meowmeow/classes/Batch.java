@@ -0,0 +1,94 @@
+package com.meowmeow.classes;
+
+/**
+ * <h3>Batch class</h3>
+ * <p>The progress of a multi-round game, e.g. "new-game user-id ... bet-money 10 rounds 1000".</p>
+ * <p>
+ *     A batch is played a chunk of rounds at a time, so that one greedy client doesn't hold up everybody else
+ *     on the same reactor. Every connection keeps a single batch object and reuses it for all of its batches.
+ * </p>
+ */
+class Batch {
+    /** Nobody needs more than this many rounds in one query */
+    static final int MAX_ROUNDS = 1000000;
+
+    long mostSigBits, leastSigBits;
+    int betMoney;
+    int roundsLeft;
+    boolean summary;
+    boolean binary;
+
+    /** From the start of the batch until its last response is queued */
+    boolean open;
+
+    int played, wins, losses, draws;
+    long net, balance;
+    boolean bankrupt;
+
+    /** The rounds booked in the pending work budget, see {@link AdmissionControl#reserve(long)} */
+    long reserved;
+
+    /** The status of the round which cut the batch short, if the user has quit or can't cover the bet any more */
+    int stopStatus;
+
+    /**
+     * Start a new batch, forgetting the previous one
+     * @param mostSigBits the user ID's most significant bits
+     * @param leastSigBits the user ID's least significant bits
+     * @param betMoney the bet of every round
+     * @param rounds the number of rounds to play, unless the user goes bankrupt first
+     * @param summary true to send only the summary, false to send every round as well
+     * @param binary true if the results go out as {@link BinaryProtocol} frames
+     */
+    void start(long mostSigBits, long leastSigBits, int betMoney, int rounds, boolean summary, boolean binary) {
+        this.mostSigBits = mostSigBits;
+        this.leastSigBits = leastSigBits;
+        this.betMoney = betMoney;
+        this.roundsLeft = rounds;
+        this.summary = summary;
+        this.binary = binary;
+        open = true;
+        played = 0;
+        wins = 0;
+        losses = 0;
+        draws = 0;
+        net = 0;
+        balance = 0;
+        bankrupt = false;
+        stopStatus = BinaryProtocol.STATUS_OK;
+    }
+
+    boolean isActive() {
+        return roundsLeft > 0;
+    }
+
+    /**
+     * Add the result of the latest round. The batch ends early if the user has gone bankrupt, has quit, or can't
+     * cover the bet any more
+     * @param round the result
+     */
+    void record(GameRound round) {
+        if (round.status != BinaryProtocol.STATUS_OK) {
+            stopStatus = round.status;
+            balance = round.balance;
+            roundsLeft = 0;
+            return;
+        }
+        played++;
+        roundsLeft--;
+        balance = round.balance;
+        if (round.outcome == GameRound.OUTCOME_WIN) {
+            wins++;
+            net += betMoney;
+        } else if (round.outcome == GameRound.OUTCOME_LOSS) {
+            losses++;
+            net -= betMoney;
+        } else {
+            draws++;
+        }
+        if (round.bankrupt) {
+            bankrupt = true;
+            roundsLeft = 0;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.meowmeow.classes;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * <h3>Benchmark Runner class</h3>
+ * <p>A small, standalone microbenchmark harness, in the spirit of JMH, which needs nothing but the JDK.</p>
+ * <p>Every benchmark is measured the same way:</p>
+ * <ul>
+ *     <li>A few warmup iterations, so that the JIT has compiled the code before anything is measured</li>
+ *     <li>
+ *         Then the measured iterations, each of them calling the operation in a loop for a fixed time.
+ *         The score is the mean time per operation, with a 99.9% error margin over the iterations
+ *     </li>
+ *     <li>
+ *         The heap bytes allocated per operation are measured over all of the measured iterations with the
+ *         {@link AllocationMeter}, like the "gc.alloc.rate.norm" of JMH's GC profiler
+ *     </li>
+ * </ul>
+ * <p>
+ *     The value returned by the operation is folded into a volatile field, so the JIT can't drop the work as
+ *     dead code.
+ * </p>
+ */
+public final class BenchmarkRunner {
+    /**
+     * A benchmarked operation
+     */
+    public interface Operation {
+        /**
+         * @return anything which depends on the work, to keep the JIT from removing it
+         */
+        long run() throws Exception;
+    }
+
+    /** The operations are called this many times between two looks at the clock */
+    private static final int CALLS_PER_CHECK = 64;
+
+    /** Student's t for a 99.9% confidence interval, by the number of degrees of freedom (up to 30) */
+    private static final double[] T_999 = {
+            Double.NaN, 636.62, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587,
+            4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850,
+            3.819, 3.792, 3.768, 3.745, 3.725, 3.707, 3.690, 3.674, 3.659, 3.646
+    };
+
+    private static volatile long sink;
+
+    private int warmupIterations = 5;
+
+    private int measurementIterations = 10;
+
+    private long iterationMillis = 1000;
+
+    private Pattern filter = null;
+
+    public BenchmarkRunner setWarmupIterations(int warmupIterations) {
+        this.warmupIterations = warmupIterations;
+        return this;
+    }
+
+    public BenchmarkRunner setMeasurementIterations(int measurementIterations) {
+        if (measurementIterations < 1) {
+            throw new IllegalArgumentException("At least one measured iteration is needed");
+        }
+        this.measurementIterations = measurementIterations;
+        return this;
+    }
+
+    public BenchmarkRunner setIterationMillis(long iterationMillis) {
+        this.iterationMillis = iterationMillis;
+        return this;
+    }
+
+    /**
+     * @param filter a regular expression, only the benchmarks whose name contains a match are run.
+     *               Null runs all of them
+     * @return this runner
+     */
+    public BenchmarkRunner setFilter(String filter) {
+        this.filter = filter == null ? null : Pattern.compile(filter);
+        return this;
+    }
+
+    /**
+     * Read the settings from the command line. The accepted options are:
+     * <ul>
+     *     <li>{@code --warmup <number>} - the number of warmup iterations, 5 by default</li>
+     *     <li>{@code --iterations <number>} - the number of measured iterations, 10 by default</li>
+     *     <li>{@code --time <ms>} - the length of an iteration, 1000 by default</li>
+     *     <li>{@code --filter <regex>} - only run the matching benchmarks</li>
+     * </ul>
+     * @param args the arguments of {@code main()}
+     * @return the runner
+     * @throws IllegalArgumentException if an option is unknown or has no value
+     */
+    @NotNull
+    public static BenchmarkRunner fromArgs(@NotNull String[] args) {
+        var runner = new BenchmarkRunner();
+        for (int i = 0; i < args.length; i++) {
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            }
+            var value = args[++i];
+            switch (args[i - 1]) {
+                case "--warmup":
+                    runner.setWarmupIterations(Integer.parseInt(value));
+                    break;
+                case "--iterations":
+                    runner.setMeasurementIterations(Integer.parseInt(value));
+                    break;
+                case "--time":
+                    runner.setIterationMillis(Long.parseLong(value));
+                    break;
+                case "--filter":
+                    runner.setFilter(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i - 1]);
+            }
+        }
+        return runner;
+    }
+
+    /**
+     * Print the header of the results table, with the settings
+     */
+    public void printHeader() {
+        System.out.printf("# Warmup: %d x %d ms, measurement: %d x %d ms, allocation profiling: %s%n",
+                warmupIterations, iterationMillis, measurementIterations, iterationMillis,
+                AllocationMeter.isSupported() ? "on" : "not supported by this JVM");
+        System.out.printf("%-32s %5s %14s %12s %6s %14s%n", "Benchmark", "Cnt", "Score", "Error", "Units",
+                "Alloc B/op");
+    }
+
+    /**
+     * Measure an operation, unless the filter skips it, and print its row of the results table
+     * @param name the benchmark's name
+     * @param operation the benchmarked operation
+     * @throws Exception whatever the operation throws
+     */
+    public void run(@NotNull String name, @NotNull Operation operation) throws Exception {
+        if (filter != null && !filter.matcher(name).find()) {
+            return;
+        }
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(operation);
+        }
+
+        var scores = new double[measurementIterations];
+        long operations = 0, allocated = 0;
+        for (int i = 0; i < measurementIterations; i++) {
+            var allocatedBefore = AllocationMeter.allocatedBytes();
+            var start = System.nanoTime();
+            var count = iteration(operation);
+            scores[i] = (double) (System.nanoTime() - start) / count;
+            allocated += AllocationMeter.allocatedSince(allocatedBefore);
+            operations += count;
+        }
+
+        var mean = 0.0;
+        for (var score : scores) {
+            mean += score;
+        }
+        mean /= scores.length;
+        var error = Double.NaN;
+        if (scores.length > 1) {
+            var variance = 0.0;
+            for (var score : scores) {
+                variance += (score - mean) * (score - mean);
+            }
+            variance /= scores.length - 1;
+            var t = scores.length - 1 < T_999.length ? T_999[scores.length - 1] : 3.291;
+            error = t * Math.sqrt(variance / scores.length);
+        }
+        System.out.println(String.format(Locale.ROOT, "%-32s %5d %14.3f %12.3f %6s %14.1f", name,
+                scores.length, mean, error, "ns/op", (double) allocated / operations));
+    }
+
+    /**
+     * Call the operation for an iteration's time
+     * @return the number of calls
+     */
+    private long iteration(@NotNull Operation operation) throws Exception {
+        var deadline = System.nanoTime() + iterationMillis * 1_000_000;
+        long calls = 0, result = 0;
+        do {
+            for (int i = 0; i < CALLS_PER_CHECK; i++) {
+                result += operation.run();
+            }
+            calls += CALLS_PER_CHECK;
+        } while (System.nanoTime() - deadline < 0);
+        sink += result;
+        return calls;
+    }
+}
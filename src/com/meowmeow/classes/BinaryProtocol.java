@@ -0,0 +1,223 @@
+package com.meowmeow.classes;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * <h3>Binary Protocol class</h3>
+ * <p>A compact, length-prefixed alternative to the text queries.</p>
+ * <p>
+ *     A connection always starts with the text protocol. Sending the text query {@value #UPGRADE_QUERY} switches
+ *     that connection to the binary protocol, right after the text response {@value #UPGRADE_RESPONSE}.
+ *     From then on, every message in both directions is a frame:
+ * </p>
+ * <ul>
+ *     <li>An unsigned short - the length of the payload</li>
+ *     <li>The payload itself</li>
+ * </ul>
+ * <p>The request payload ({@value #REQUEST_LENGTH} bytes, extra trailing bytes are ignored):</p>
+ * <ul>
+ *     <li>byte - the opcode: {@link #NEW_USER}, {@link #NEW_GAME}, {@link #QUIT_GAME}, {@link #NEW_GAME_ROUNDS},
+ *     {@link #NEW_GAME_SUMMARY} or {@link #BALANCE} (read-only, the user's cash is in the response)</li>
+ *     <li>long, long - the most and least significant bits of the user ID (ignored by {@link #NEW_USER})</li>
+ *     <li>int - the bet money (only used by the games)</li>
+ *     <li>int - optional, the number of rounds of {@link #NEW_GAME_ROUNDS} and {@link #NEW_GAME_SUMMARY}.
+ *     1 if it's left out</li>
+ * </ul>
+ * <p>The response payload ({@value #RESPONSE_LENGTH} bytes):</p>
+ * <ul>
+ *     <li>byte - the opcode of the request</li>
+ *     <li>byte - the status: {@link #STATUS_OK}, {@link #STATUS_INVALID_QUERY}, {@link #STATUS_UNKNOWN_USER},
+ *     {@link #STATUS_INSUFFICIENT_FUNDS} (the bet is more than the user's cash, which is in the response),
+ *     {@link #STATUS_BUSY} or {@link #STATUS_RATE_LIMITED} (see {@link AdmissionControl}), or
+ *     {@link #STATUS_REDIRECT} (the user belongs to another node of the cluster, whose position in the list of
+ *     nodes is in place of the cash, see {@link HashRing}), or {@link #STATUS_READ_ONLY} (the server is a follower
+ *     which only answers {@link #BALANCE}, see {@link ReplicationFollower})</li>
+ *     <li>byte - the outcome of the game, one of the {@code GameRound.OUTCOME_*} values</li>
+ *     <li>byte - flags, bit 0 is set if the user has lost all of the cash</li>
+ *     <li>long, long - the user ID</li>
+ *     <li>long - the user's cash after the query</li>
+ *     <li>6 bytes - the dealt cards as {@link Card#getCode()}, or -1 if no card was dealt</li>
+ *     <li>byte, byte - the client's point and the server's point</li>
+ * </ul>
+ * <p>
+ *     {@link #NEW_GAME_ROUNDS} plays several rounds in a row and sends one response per round as it goes.
+ *     The last one is either the requested number of rounds, a response with the bankrupt flag, or a response
+ *     with a status other than {@link #STATUS_OK}. {@link #NEW_GAME_SUMMARY} plays the same rounds but sends a
+ *     single summary instead ({@value #SUMMARY_LENGTH} bytes):
+ * </p>
+ * <ul>
+ *     <li>byte, byte, byte, byte - the opcode, the status, 0 and the flags, same as above</li>
+ *     <li>long, long - the user ID</li>
+ *     <li>long - the user's cash after the last round</li>
+ *     <li>int, int, int, int - the number of rounds played, won, lost and drawn</li>
+ * </ul>
+ * <p>All numbers are big-endian, which is the {@link ByteBuffer} default.</p>
+ */
+public final class BinaryProtocol {
+    public static final String UPGRADE_QUERY = "binary-protocol";
+    public static final String UPGRADE_RESPONSE = "binary-protocol enabled";
+
+    public static final byte NEW_USER = 1, NEW_GAME = 2, QUIT_GAME = 3, NEW_GAME_ROUNDS = 4, NEW_GAME_SUMMARY = 5,
+            BALANCE = 6;
+
+    public static final byte STATUS_OK = 0, STATUS_INVALID_QUERY = 1, STATUS_UNKNOWN_USER = 2,
+            STATUS_INSUFFICIENT_FUNDS = 3, STATUS_BUSY = 4, STATUS_RATE_LIMITED = 5, STATUS_REDIRECT = 6,
+            STATUS_READ_ONLY = 7;
+
+    static final int HEADER_LENGTH = 2;
+    static final int REQUEST_LENGTH = 21;
+    static final int BATCH_REQUEST_LENGTH = REQUEST_LENGTH + 4;
+    static final int RESPONSE_LENGTH = 36;
+    static final int SUMMARY_LENGTH = 44;
+
+    static final byte FLAG_BANKRUPT = 1;
+
+    private BinaryProtocol() {}
+
+    /**
+     * A decoded request frame. It is reused for every frame of a connection, so nothing is allocated per frame
+     */
+    static final class Request {
+        byte opcode;
+        long mostSigBits, leastSigBits;
+        int betMoney;
+        int rounds;
+    }
+
+    /**
+     * Decode the next complete frame, if there is one. Frames may arrive split across several reads, or several
+     * of them may arrive in a single read, so the buffer is only consumed once a whole frame is there.
+     * @param buffer the received bytes, ready to be read
+     * @param request where the decoded frame goes. A frame too short to be a request gets opcode 0
+     * @return true if a frame was decoded, false if the frame is not complete yet
+     */
+    static boolean decodeRequest(@NotNull ByteBuffer buffer, @NotNull Request request) {
+        if (buffer.remaining() < HEADER_LENGTH) {
+            return false;
+        }
+        var start = buffer.position();
+        var length = Short.toUnsignedInt(buffer.getShort(start));
+        if (buffer.remaining() < HEADER_LENGTH + length) {
+            return false;
+        }
+        var payload = start + HEADER_LENGTH;
+        if (length < REQUEST_LENGTH) {
+            request.opcode = 0;
+        } else {
+            request.opcode = buffer.get(payload);
+            request.mostSigBits = buffer.getLong(payload + 1);
+            request.leastSigBits = buffer.getLong(payload + 9);
+            request.betMoney = buffer.getInt(payload + 17);
+            request.rounds = length < BATCH_REQUEST_LENGTH ? 1 : buffer.getInt(payload + 21);
+        }
+        buffer.position(payload + length);
+        return true;
+    }
+
+    /**
+     * Encode a request frame
+     * @param buffer where the frame goes, it must have at least {@code 2 + REQUEST_LENGTH} bytes remaining
+     * @param opcode the operation
+     * @param userId the user ID, may be null for {@link #NEW_USER}
+     * @param betMoney the bet money
+     */
+    static void encodeRequest(@NotNull ByteBuffer buffer, byte opcode, UUID userId, int betMoney) {
+        buffer.putShort((short) REQUEST_LENGTH)
+                .put(opcode)
+                .putLong(userId == null ? 0 : userId.getMostSignificantBits())
+                .putLong(userId == null ? 0 : userId.getLeastSignificantBits())
+                .putInt(betMoney);
+    }
+
+    /**
+     * Encode a multi-round request frame
+     * @param buffer where the frame goes, it must have at least {@code 2 + BATCH_REQUEST_LENGTH} bytes remaining
+     * @param opcode {@link #NEW_GAME_ROUNDS} or {@link #NEW_GAME_SUMMARY}
+     * @param userId the user ID
+     * @param betMoney the bet money of every round
+     * @param rounds the number of rounds
+     */
+    static void encodeRequest(@NotNull ByteBuffer buffer, byte opcode, UUID userId, int betMoney, int rounds) {
+        buffer.putShort((short) BATCH_REQUEST_LENGTH)
+                .put(opcode)
+                .putLong(userId.getMostSignificantBits())
+                .putLong(userId.getLeastSignificantBits())
+                .putInt(betMoney)
+                .putInt(rounds);
+    }
+
+    /**
+     * Encode the result of a query as a response frame
+     * @param buffer where the frame goes, it must have at least {@code 2 + RESPONSE_LENGTH} bytes remaining
+     * @param opcode the opcode of the request
+     * @param round the result
+     */
+    static void encodeResponse(@NotNull ByteBuffer buffer, byte opcode, @NotNull GameRound round) {
+        buffer.putShort((short) RESPONSE_LENGTH)
+                .put(opcode)
+                .put((byte) round.status)
+                .put((byte) round.outcome)
+                .put(round.bankrupt ? FLAG_BANKRUPT : 0)
+                .putLong(round.mostSigBits)
+                .putLong(round.leastSigBits)
+                .putLong(round.balance);
+        for (var card : round.cards) {
+            buffer.put((byte) card);
+        }
+        buffer.put((byte) round.clientPoint).put((byte) round.serverPoint);
+    }
+
+    /**
+     * Encode the summary of a multi-round game
+     * @param buffer where the frame goes, it must have at least {@code 2 + SUMMARY_LENGTH} bytes remaining
+     * @param batch the finished batch
+     */
+    static void encodeSummary(@NotNull ByteBuffer buffer, @NotNull Batch batch) {
+        buffer.putShort((short) SUMMARY_LENGTH)
+                .put(NEW_GAME_SUMMARY)
+                .put(batch.played == 0 ? (byte) batch.stopStatus : STATUS_OK)
+                .put((byte) 0)
+                .put(batch.bankrupt ? FLAG_BANKRUPT : 0)
+                .putLong(batch.mostSigBits)
+                .putLong(batch.leastSigBits)
+                .putLong(batch.balance)
+                .putInt(batch.played)
+                .putInt(batch.wins)
+                .putInt(batch.losses)
+                .putInt(batch.draws);
+    }
+
+    /**
+     * Decode the next complete response frame, if there is one
+     * @param buffer the received bytes, ready to be read
+     * @param round where the decoded result goes
+     * @return true if a frame was decoded, false if the frame is not complete yet
+     */
+    static boolean decodeResponse(@NotNull ByteBuffer buffer, @NotNull GameRound round) {
+        if (buffer.remaining() < HEADER_LENGTH) {
+            return false;
+        }
+        var start = buffer.position();
+        var length = Short.toUnsignedInt(buffer.getShort(start));
+        if (buffer.remaining() < HEADER_LENGTH + length) {
+            return false;
+        }
+        buffer.position(start + HEADER_LENGTH + 1);
+        round.status = buffer.get();
+        round.outcome = buffer.get();
+        round.bankrupt = (buffer.get() & FLAG_BANKRUPT) != 0;
+        round.mostSigBits = buffer.getLong();
+        round.leastSigBits = buffer.getLong();
+        round.balance = buffer.getLong();
+        for (int i = 0; i < GameRound.CARDS; i++) {
+            round.cards[i] = buffer.get();
+        }
+        round.clientPoint = buffer.get();
+        round.serverPoint = buffer.get();
+        buffer.position(start + HEADER_LENGTH + length);
+        return true;
+    }
+}
@@ -0,0 +1,118 @@
+package com.meowmeow.classes;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <h3>Blocking Session class</h3>
+ * <p>A single client connection served by a thread of its own, with plain blocking reads and writes.</p>
+ * <p>
+ *     This is the other way of running the {@link Server} (see {@link ServerConfig.Mode#THREAD_PER_CONNECTION}).
+ *     The framing, the {@link QueryDispatcher} and the wallets are the same as with the {@link Reactor}s, only
+ *     the waiting is different: the thread simply blocks until the client sends something, or until the client
+ *     takes its responses. A slow query only holds up its own client.
+ * </p>
+ * <p>
+ *     The threads are virtual threads when the JVM has them (Java 21 and later), so tens of thousands of idle
+ *     connections cost little more than their buffers. Older JVMs get platform threads with a small stack.
+ * </p>
+ */
+class BlockingSession implements Runnable {
+    /** The stack of the platform threads, when there are no virtual threads */
+    private static final long PLATFORM_STACK_SIZE = 256 * 1024;
+
+    private final Server server;
+
+    private final Connection connection;
+
+    private final QueryDispatcher dispatcher;
+
+    BlockingSession(@NotNull Server server, @NotNull BufferPool bufferPool, @NotNull SocketChannel socketChannel,
+                    @NotNull AdmissionControl.Peer peer) {
+        this.server = server;
+        this.connection = new Connection(socketChannel, bufferPool, server.getMetrics());
+        this.connection.peer = peer;
+        this.dispatcher = new QueryDispatcher(server);
+    }
+
+    long getRequestsServed() {
+        return dispatcher.getRequestsServed();
+    }
+
+    /**
+     * Serve the client until it disconnects: read whatever it sends, answer every complete query in order, then
+     * send the responses back before reading again
+     */
+    @Override
+    public void run() {
+        var batch = connection.getBatch();
+        try {
+            while (connection.read() >= 0) {
+                while (true) {
+                    if (batch.open) {
+                        // the rounds are sent whenever the queue is full, nobody else is waiting for this thread
+                        while (!dispatcher.continueBatch(connection, batch, Reactor.BATCH_CHUNK)) {
+                            connection.flush();
+                        }
+                    }
+                    if (connection.isBacklogged()) {
+                        connection.flush();
+                    }
+                    if (!dispatcher.serveNext(connection)) {
+                        break;
+                    }
+                }
+                connection.flush();
+            }
+            Log.debug("Client has disconnected");
+        } catch (IOException e) {
+            // bug fix: If the client crashes oddly, catch Broken Pipe IOException to close the connection
+            if (connection.getSocketChannel().isOpen()) {
+                Log.warn("Weird crash but ok");
+            }
+        } finally {
+            connection.close();
+            server.sessionEnded(this);
+        }
+    }
+
+    /**
+     * Close the channel, which makes a blocked read or write of the session's thread fail. The buffers are given
+     * back by the session's thread itself, on its way out
+     */
+    void close() {
+        try {
+            connection.getSocketChannel().close();
+        } catch (IOException ignored) {
+            // closing anyway
+        }
+    }
+
+    /**
+     * @return a factory of virtual threads if the JVM has them, otherwise of small platform threads
+     */
+    @NotNull
+    static ThreadFactory threadFactory() {
+        try {
+            // Thread.ofVirtual().name("session-", 0).factory(), without needing Java 21 to compile
+            var builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            var builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "session-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (NoSuchMethodException | ClassNotFoundException | IllegalAccessException
+                | InvocationTargetException e) {
+            Log.info("No virtual threads before Java 21, using platform threads");
+        }
+        var count = new AtomicLong();
+        return runnable -> {
+            var thread = new Thread(null, runnable, "session-" + count.getAndIncrement(), PLATFORM_STACK_SIZE);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,90 @@
+package com.meowmeow.classes;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <h3>Buffer Pool class</h3>
+ * <p>A bounded pool of reusable direct {@link ByteBuffer}s, all of the same size.</p>
+ * <p>
+ *     Direct buffers are expensive to create but cheap to read into from a socket, so they are created once
+ *     and handed from connection to connection. If the pool runs dry a new buffer is created anyway (a miss),
+ *     and if the pool is already full when a buffer comes back, that buffer is simply left to the GC.
+ * </p>
+ * <p>The pool is thread-safe, the critical sections are a couple of array accesses.</p>
+ */
+public class BufferPool {
+    private final int bufferSize;
+
+    private final ByteBuffer[] pooled;
+
+    private int size = 0;
+
+    private long acquired = 0, misses = 0;
+
+    /**
+     * @param bufferSize the capacity of every buffer
+     * @param maxPooled the maximum number of idle buffers kept around
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.pooled = new ByteBuffer[maxPooled];
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Take a cleared buffer out of the pool, or create a new one if the pool is empty
+     * @return a buffer ready to be written into
+     */
+    @NotNull
+    public ByteBuffer acquire() {
+        synchronized (this) {
+            acquired++;
+            if (size > 0) {
+                var buffer = pooled[--size];
+                pooled[size] = null;
+                return buffer;
+            }
+            misses++;
+        }
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Give a buffer back to the pool. It must not be used by the caller afterwards
+     * @param buffer a buffer from {@link #acquire()}
+     */
+    public void release(@NotNull ByteBuffer buffer) {
+        buffer.clear();
+        synchronized (this) {
+            if (size < pooled.length) {
+                pooled[size++] = buffer;
+            }
+        }
+    }
+
+    /**
+     * @return the number of idle buffers in the pool
+     */
+    public synchronized int getIdle() {
+        return size;
+    }
+
+    /**
+     * @return the number of buffers handed out so far
+     */
+    public synchronized long getAcquired() {
+        return acquired;
+    }
+
+    /**
+     * @return the number of buffers which had to be created because the pool was empty
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
@@ -1,7 +1,5 @@
 package com.meowmeow.classes;
 
-import java.security.SecureRandom;
-
 /**
  * <h3>Card class</h3>
  * <p>A single Card has the following attributes:</p>
@@ -13,6 +11,10 @@ import java.security.SecureRandom;
  *         A suit - Spades, Clubs, Diamonds or Hearts, with values vary from 1 to 4
  *     </li>
  * </ul>
+ * <p>
+ *     The 52 possible cards also exist as shared instances, see {@link #fromCode(int)}. The game deals those
+ *     through a {@link Deck} instead of creating new cards.
+ * </p>
  */
 public class Card {
     private enum Suit {
@@ -35,18 +37,26 @@ public class Card {
         }
     }
 
+    private static final Card[] ALL_CARDS = new Card[Deck.SIZE];
+
+    static {
+        for (int code = 0; code < Deck.SIZE; code++) {
+            ALL_CARDS[code] = new Card(code / 4, code % 4);
+        }
+    }
+
     private Type type;
     private Suit suit;
 
     /**
-     * Creates a random card
+     * Creates a random card, any of the 52 with the same chance
      */
     public Card() {
-        var random = new SecureRandom();
-        var allTypes = Type.values();
-        var allSuits = Suit.values();
-        this.type = allTypes[random.nextInt(10)];
-        this.suit = allSuits[random.nextInt(4)];
+        this(Deck.current().drawOne());
+    }
+
+    private Card(int code) {
+        this(code / 4, code % 4);
     }
 
     /**
@@ -69,6 +79,23 @@ public class Card {
         return suit.value;
     }
 
+    /**
+     * A compact code of this card, used by the binary protocol
+     * @return a number from 0 to 51, unique for each of the 52 cards
+     */
+    public int getCode() {
+        return type.ordinal() * 4 + suit.ordinal();
+    }
+
+    /**
+     * The shared card represented by a code from {@link #getCode()}. Nothing is allocated
+     * @param code a number from 0 to 51
+     * @return the card
+     */
+    public static Card fromCode(int code) {
+        return ALL_CARDS[code];
+    }
+
     @Override
     public String toString() {
         return type.toString() + " of " + suit.toString();
@@ -1,18 +1,56 @@
 package com.meowmeow.classes;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
 
 /**
  * The client. Which is {@link AutoCloseable} just like the server
+ * <p>
+ *     The connection stays open until the client is closed, so any number of queries can be sent through it.
+ *     Queries can also be pipelined with {@link #queryAll(String...)}, which sends all of them at once and
+ *     only then starts reading the responses.
+ * </p>
+ * <p>
+ *     This client waits for every response, which suits a human at the console. Bots with many queries in flight
+ *     should use the {@link AsyncClient} instead.
+ * </p>
+ * <p>
+ *     After {@link #useBinaryProtocol()}, the connection speaks the compact {@link BinaryProtocol} instead,
+ *     through {@link #binaryQuery(byte, UUID, int)}.
+ * </p>
  */
 public class Client implements AutoCloseable {
-    private SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress("127.0.0.1", 12345));
+    private final SocketChannel socketChannel;
 
-    public Client() throws IOException {}
+    private ByteBuffer inbound = ByteBuffer.allocate(8192);
+
+    private final ByteBuffer outbound = ByteBuffer.allocate(Connection.BUFFER_SIZE);
+
+    private boolean binary = false;
+
+    /**
+     * Connect to the server at 127.0.0.1:12345
+     * @throws IOException if the server can't be reached
+     */
+    public Client() throws IOException {
+        this(new InetSocketAddress("127.0.0.1", 12345));
+    }
+
+    /**
+     * Connect to a server
+     * @param endpoint the server's address
+     * @throws IOException if the server can't be reached
+     */
+    public Client(InetSocketAddress endpoint) throws IOException {
+        socketChannel = SocketChannel.open(endpoint);
+    }
 
     @Override
     public void close() throws Exception {
@@ -20,24 +58,150 @@ public class Client implements AutoCloseable {
     }
 
     /**
-     * Send the query to the server, get its output and print it out to the screen
+     * Send the query to the server and wait for its output
      * @param query the query from the user
+     * @return the response
      * @throws IOException something throws it idk, just pass it to main
      */
     public String query(String query) throws IOException {
-        //encode query and send to server
-        var buffer = StandardCharsets.ISO_8859_1.encode(query);
-        socketChannel.write(buffer);
-
-        //receive response from server and decode to string
-        buffer = ByteBuffer.allocate(1048576);
-        socketChannel.read(buffer);
-        buffer.flip();
-        var charBuffer = StandardCharsets.ISO_8859_1.decode(buffer);
-        var response = new String(charBuffer.array()).trim();
-
-        //write the response to console
-        System.out.println(response);
-        return response;
+        send(query);
+        return receive();
+    }
+
+    /**
+     * Send all of the queries back-to-back without waiting, then collect the responses
+     * @param queries the queries from the user
+     * @return the responses, in the same order as the queries
+     * @throws IOException something throws it idk, just pass it to main
+     */
+    public List<String> queryAll(String... queries) throws IOException {
+        for (var query : queries) {
+            put(query);
+        }
+        flush();
+
+        var responses = new ArrayList<String>(queries.length);
+        for (int i = 0; i < queries.length; i++) {
+            responses.add(receive());
+        }
+        return responses;
+    }
+
+    /**
+     * Switch this connection to the {@link BinaryProtocol}. Text queries can't be used afterwards
+     * @throws IOException if the server doesn't agree to the switch
+     */
+    public void useBinaryProtocol() throws IOException {
+        send(BinaryProtocol.UPGRADE_QUERY);
+        var response = receive();
+        if (!response.equals(BinaryProtocol.UPGRADE_RESPONSE)) {
+            throw new IOException("The server refused the binary protocol: " + response);
+        }
+        binary = true;
+    }
+
+    /**
+     * Send a query with the {@link BinaryProtocol} and wait for its result
+     * @param opcode one of {@link BinaryProtocol#NEW_USER}, {@link BinaryProtocol#NEW_GAME},
+     *               {@link BinaryProtocol#QUIT_GAME}
+     * @param userId the user ID, may be null for {@link BinaryProtocol#NEW_USER}
+     * @param betMoney the bet money, only used by {@link BinaryProtocol#NEW_GAME}
+     * @return the result, check {@link GameRound#getStatus()} first
+     * @throws IOException if the server is gone, or the connection is still using text
+     */
+    public GameRound binaryQuery(byte opcode, UUID userId, int betMoney) throws IOException {
+        if (!binary) {
+            throw new IOException("Call useBinaryProtocol() first");
+        }
+        BinaryProtocol.encodeRequest(outbound, opcode, userId, betMoney);
+        flush();
+
+        var round = new GameRound();
+        while (true) {
+            inbound.flip();
+            var decoded = BinaryProtocol.decodeResponse(inbound, round);
+            inbound.compact();
+            if (decoded) {
+                return round;
+            }
+            if (socketChannel.read(inbound) < 0) {
+                throw new EOFException("The server has closed the connection");
+            }
+        }
+    }
+
+    /**
+     * Encode the query, terminate it and send it to the server
+     * @param query the query from the user
+     * @throws IOException if the server is gone
+     */
+    private void send(String query) throws IOException {
+        put(query);
+        flush();
+    }
+
+    /**
+     * Append the query and its delimiter to the outbound buffer, as ISO-8859-1 bytes
+     * @param query the query from the user
+     * @throws IOException if the server is gone
+     */
+    private void put(String query) throws IOException {
+        for (int i = 0; i < query.length(); i++) {
+            if (!outbound.hasRemaining()) {
+                flush();
+            }
+            outbound.put((byte) query.charAt(i));
+        }
+        if (!outbound.hasRemaining()) {
+            flush();
+        }
+        outbound.put(Connection.QUERY_DELIMITER);
+    }
+
+    /**
+     * Send everything in the outbound buffer
+     * @throws IOException if the server is gone
+     */
+    private void flush() throws IOException {
+        outbound.flip();
+        while (outbound.hasRemaining()) {
+            socketChannel.write(outbound);
+        }
+        outbound.clear();
+    }
+
+    /**
+     * Read until a whole response has arrived. Anything after it (the start of the next response) is kept
+     * in the buffer for the next call
+     * @return the decoded response
+     * @throws IOException if the server is gone
+     */
+    private String receive() throws IOException {
+        var scanned = 0;
+        while (true) {
+            inbound.flip();
+            for (int i = scanned; i < inbound.limit(); i++) {
+                if (inbound.get(i) == Connection.RESPONSE_DELIMITER) {
+                    var bytes = new byte[i];
+                    inbound.get(bytes);
+                    inbound.get();
+                    inbound.compact();
+                    return new String(bytes, StandardCharsets.ISO_8859_1);
+                }
+            }
+            scanned = inbound.limit();
+            inbound.compact();
+
+            // the response is bigger than the buffer - grow it
+            if (!inbound.hasRemaining()) {
+                var bigger = ByteBuffer.allocate(inbound.capacity() * 2);
+                inbound.flip();
+                bigger.put(inbound);
+                inbound = bigger;
+            }
+            if (socketChannel.read(inbound) < 0) {
+                throw new EOFException("The server has closed the connection");
+            }
+        }
     }
 }
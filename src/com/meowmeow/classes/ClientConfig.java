@@ -0,0 +1,158 @@
+package com.meowmeow.classes;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <h3>Client Config class</h3>
+ * <p>All of the knobs of an {@link AsyncClient}, with the defaults matching the original client.</p>
+ * <p>The setters return the config itself so they can be chained.</p>
+ */
+public class ClientConfig {
+    private final List<InetSocketAddress> endpoints =
+            new ArrayList<>(List.of(new InetSocketAddress("127.0.0.1", 12345)));
+
+    private int connectionsPerEndpoint = 1;
+
+    private boolean binary = false;
+
+    private boolean printResponses = false;
+
+    private boolean cluster = false;
+
+    @NotNull
+    public List<InetSocketAddress> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * @param endpoints the servers to connect to, replacing the default one
+     * @return this config
+     */
+    public ClientConfig setEndpoints(@NotNull List<InetSocketAddress> endpoints) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("At least one endpoint is needed");
+        }
+        this.endpoints.clear();
+        this.endpoints.addAll(endpoints);
+        return this;
+    }
+
+    public int getConnectionsPerEndpoint() {
+        return connectionsPerEndpoint;
+    }
+
+    /**
+     * @param connectionsPerEndpoint the number of persistent connections opened to every endpoint. The queries
+     *                               are spread over all of them
+     * @return this config
+     */
+    public ClientConfig setConnectionsPerEndpoint(int connectionsPerEndpoint) {
+        if (connectionsPerEndpoint < 1) {
+            throw new IllegalArgumentException("At least one connection per endpoint is needed");
+        }
+        this.connectionsPerEndpoint = connectionsPerEndpoint;
+        return this;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * @param binary whether the connections switch to the {@link BinaryProtocol} right after connecting
+     * @return this config
+     */
+    public ClientConfig setBinary(boolean binary) {
+        this.binary = binary;
+        return this;
+    }
+
+    public boolean isPrintResponses() {
+        return printResponses;
+    }
+
+    /**
+     * @param printResponses whether every text response is also printed to the console, in order
+     * @return this config
+     */
+    public ClientConfig setPrintResponses(boolean printResponses) {
+        this.printResponses = printResponses;
+        return this;
+    }
+
+    public boolean isCluster() {
+        return cluster;
+    }
+
+    /**
+     * @param cluster whether the endpoints are the nodes of a cluster, given in the same order as to the servers
+     *                (see {@link ServerConfig#setCluster(List, int)}). The queries about a user then go straight to
+     *                the node which keeps it, instead of being redirected there
+     * @return this config
+     */
+    public ClientConfig setCluster(boolean cluster) {
+        this.cluster = cluster;
+        return this;
+    }
+
+    /**
+     * Read the config from the command line. The accepted options are:
+     * <ul>
+     *     <li>{@code --server <host:port>} - an endpoint, can be given several times</li>
+     *     <li>{@code --connections <number>} - see {@link #setConnectionsPerEndpoint(int)}</li>
+     *     <li>{@code --cluster <host:port>,<host:port>,...} - the nodes of a cluster as endpoints, see
+     *     {@link #setCluster(boolean)}</li>
+     * </ul>
+     * @param args the arguments of {@code main()}
+     * @return the config
+     * @throws IllegalArgumentException if an option is unknown or has no value
+     */
+    @NotNull
+    public static ClientConfig fromArgs(@NotNull String[] args) {
+        var config = new ClientConfig();
+        var endpoints = new ArrayList<InetSocketAddress>();
+        for (int i = 0; i < args.length; i++) {
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            }
+            var value = args[++i];
+            switch (args[i - 1]) {
+                case "--server":
+                    endpoints.add(parseEndpoint(value));
+                    break;
+                case "--connections":
+                    config.setConnectionsPerEndpoint(Integer.parseInt(value));
+                    break;
+                case "--cluster":
+                    for (var node : value.split(",")) {
+                        endpoints.add(parseEndpoint(node));
+                    }
+                    config.setCluster(true);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i - 1]);
+            }
+        }
+        if (!endpoints.isEmpty()) {
+            config.setEndpoints(endpoints);
+        }
+        return config;
+    }
+
+    /**
+     * @param endpoint "host:port"
+     * @return the address
+     */
+    @NotNull
+    static InetSocketAddress parseEndpoint(@NotNull String endpoint) {
+        var colon = endpoint.lastIndexOf(':');
+        if (colon < 1) {
+            throw new IllegalArgumentException("Expected host:port, got " + endpoint);
+        }
+        return new InetSocketAddress(endpoint.substring(0, colon), Integer.parseInt(endpoint.substring(colon + 1)));
+    }
+}
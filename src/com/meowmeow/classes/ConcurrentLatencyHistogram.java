@@ -0,0 +1,62 @@
+package com.meowmeow.classes;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <h3>Concurrent Latency Histogram class</h3>
+ * <p>A {@link LatencyHistogram} which any number of threads can record into at once, without locks.</p>
+ * <p>
+ *     The counts are striped: every thread increments the buckets of one of a few {@link AtomicLongArray}s,
+ *     picked by its ID, so the reactors rarely fight over the same cache line. Recording is one atomic
+ *     increment plus a {@link LongAdder} add, cheap enough to leave on all the time. Reading adds the stripes
+ *     up into a plain {@link LatencyHistogram}, which is only exact if nothing records meanwhile, and doesn't
+ *     need to be.
+ * </p>
+ */
+final class ConcurrentLatencyHistogram {
+    private final AtomicLongArray[] stripes;
+
+    private final int mask;
+
+    private final LongAdder sum = new LongAdder();
+
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    ConcurrentLatencyHistogram() {
+        var count = Integer.highestOneBit(Math.min(8, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+        stripes = new AtomicLongArray[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new AtomicLongArray(LatencyHistogram.BUCKETS);
+        }
+        mask = count - 1;
+    }
+
+    /**
+     * Count a value, from any thread
+     * @param nanos the latency, negative values are counted as 0
+     */
+    void record(long nanos) {
+        var value = Math.max(0, nanos);
+        stripes[(int) Thread.currentThread().getId() & mask].incrementAndGet(LatencyHistogram.indexOf(value));
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * @return the counts so far, added up
+     */
+    @NotNull
+    LatencyHistogram snapshot() {
+        var counts = new long[LatencyHistogram.BUCKETS];
+        for (var stripe : stripes) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += stripe.get(i);
+            }
+        }
+        return new LatencyHistogram(counts, sum.sum(), max.get());
+    }
+}
@@ -0,0 +1,357 @@
+package com.meowmeow.classes;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * <h3>Connection class</h3>
+ * <p>The server-side state of a single persistent client connection.</p>
+ * <p>
+ *     A connection stays open for as many queries as the client wants to send. Since the client may send several
+ *     queries back-to-back before reading any reply, the bytes are accumulated here and cut into queries by the
+ *     following framing rules:
+ * </p>
+ * <ul>
+ *     <li>Every query ends with {@link #QUERY_DELIMITER} (a trailing '\r' is ignored)</li>
+ *     <li>Every response ends with {@link #RESPONSE_DELIMITER}</li>
+ *     <li>Responses are sent back in the same order as the queries were received</li>
+ * </ul>
+ * <p>Once the connection is switched to the {@link BinaryProtocol}, the bytes are cut into frames instead.</p>
+ * <p>
+ *     Each connection borrows one read buffer and one write buffer from a {@link BufferPool} and gives them back
+ *     once closed, so serving a query doesn't allocate any buffers.
+ * </p>
+ * <p>
+ *     Responses are never written to the socket while they are being encoded. Once the write buffer is full it
+ *     is queued and another one is borrowed, and {@link #flush()} later sends as much of the queue as the socket
+ *     takes, several buffers per gathering write. Whatever the socket didn't take stays queued until the
+ *     selector reports the connection as writable again, so a slow client never stalls the reactor.
+ * </p>
+ */
+class Connection implements ResponseOutput {
+    static final byte QUERY_DELIMITER = '\n';
+    static final byte RESPONSE_DELIMITER = 0;
+
+    /**
+     * The size of the pooled buffers. No valid query is anywhere near this long, anything bigger is garbage,
+     * and a single response always fits too
+     */
+    static final int BUFFER_SIZE = 4096;
+
+    /** The maximum number of buffers sent by a single gathering write */
+    static final int MAX_GATHER = 16;
+
+    /** Stop reading from a client which has this many buffers of responses it hasn't taken yet */
+    static final int MAX_QUEUED_BUFFERS = 64;
+
+    private final SocketChannel socketChannel;
+
+    private final BufferPool bufferPool;
+
+    private final ServerMetrics metrics;
+
+    private final ByteBuffer inbound;
+
+    /** The buffer the next response goes into, null only while the last buffer is queued by {@link #flush()} */
+    private ByteBuffer outbound;
+
+    /**
+     * Full buffers waiting to be sent, oldest first, ready to be read. The live ones are between
+     * {@link #queueStart} and {@link #queueEnd}, so that a slice of the array can go to a gathering write as is
+     */
+    private ByteBuffer[] queue = new ByteBuffer[MAX_GATHER];
+
+    private int queueStart = 0, queueEnd = 0;
+
+    private boolean overflowed = false;
+
+    private boolean binary = false;
+
+    /** Read by the {@link TableDealer} too */
+    private volatile boolean closed = false;
+
+    private Batch batch;
+
+    /** Whether the reactor has already put this connection on its list of unfinished work */
+    boolean resumePending = false;
+
+    /** The queries handed over to the {@link WorkerPool}, null if the reactor serves them itself */
+    @Nullable
+    WorkerPool.Job job;
+
+    /** The reactor serving this connection, null in thread-per-connection mode */
+    @Nullable
+    Reactor reactor;
+
+    /** The {@link AdmissionControl} state of the client's address, given back on close. Null if not admitted */
+    @Nullable
+    AdmissionControl.Peer peer;
+
+    Connection(SocketChannel socketChannel, BufferPool bufferPool, ServerMetrics metrics) {
+        this.socketChannel = socketChannel;
+        this.bufferPool = bufferPool;
+        this.metrics = metrics;
+        this.inbound = bufferPool.acquire();
+        this.outbound = bufferPool.acquire();
+    }
+
+    SocketChannel getSocketChannel() {
+        return socketChannel;
+    }
+
+    /**
+     * Read whatever the client has sent so far into the inbound buffer
+     * @return the number of bytes read, or -1 if the client has closed the connection
+     * @throws IOException if the client crashed oddly
+     */
+    int read() throws IOException {
+        if (!inbound.hasRemaining() && !binary && !hasCompleteQuery()) {
+            // no delimiter within BUFFER_SIZE bytes - drop it, the query is invalid anyway
+            inbound.clear();
+            overflowed = true;
+        }
+        var read = socketChannel.read(inbound);
+        if (read > 0) {
+            metrics.bytesIn.add(read);
+        }
+        return read;
+    }
+
+    /**
+     * Cut the next complete query out of the inbound buffer. The query is lowercased on the way, and the bytes
+     * are copied only once, straight into the string
+     * @param scratch a temporary array of at least {@link #BUFFER_SIZE} bytes
+     * @return the next query, an empty string for an oversized query, or null if no complete query has arrived yet
+     */
+    @Nullable
+    String nextQuery(byte[] scratch) {
+        inbound.flip();
+        try {
+            var start = inbound.position();
+            for (int i = start; i < inbound.limit(); i++) {
+                if (inbound.get(i) != QUERY_DELIMITER) {
+                    continue;
+                }
+                inbound.position(i + 1);
+                if (overflowed) {
+                    // the tail of an oversized query, let gameSession() reject it
+                    overflowed = false;
+                    return "";
+                }
+                var end = i > start && inbound.get(i - 1) == '\r' ? i - 1 : i;
+                for (int j = start; j < end; j++) {
+                    var b = inbound.get(j);
+                    scratch[j - start] = b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+                }
+                return new String(scratch, 0, end - start, StandardCharsets.ISO_8859_1);
+            }
+            return null;
+        } finally {
+            inbound.compact();
+        }
+    }
+
+    /**
+     * @return whether a whole query or frame is waiting in the inbound buffer, so that reading more could only
+     * fill it up
+     */
+    boolean hasCompleteQuery() {
+        if (binary) {
+            return inbound.position() >= BinaryProtocol.HEADER_LENGTH
+                    && inbound.position() >= BinaryProtocol.HEADER_LENGTH + Short.toUnsignedInt(inbound.getShort(0));
+        }
+        for (int i = 0; i < inbound.position(); i++) {
+            if (inbound.get(i) == QUERY_DELIMITER) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Switch this connection to the {@link BinaryProtocol}. Anything received after the upgrade query is
+     * decoded as frames
+     */
+    void upgradeToBinary() {
+        binary = true;
+    }
+
+    /**
+     * Decode the next complete binary frame
+     * @param request where the decoded frame goes
+     * @return true if a frame was decoded, false if it has not fully arrived yet
+     * @throws IOException if the frame can never fit in the buffer
+     */
+    boolean nextRequest(BinaryProtocol.Request request) throws IOException {
+        inbound.flip();
+        try {
+            if (inbound.remaining() >= BinaryProtocol.HEADER_LENGTH
+                    && Short.toUnsignedInt(inbound.getShort(inbound.position()))
+                    > inbound.capacity() - BinaryProtocol.HEADER_LENGTH) {
+                throw new IOException("Binary frame is too long");
+            }
+            return BinaryProtocol.decodeRequest(inbound, request);
+        } finally {
+            inbound.compact();
+        }
+    }
+
+    /**
+     * Make room for at least {@code length} more bytes of responses, queueing the current buffer if needed
+     * @param length the number of bytes about to be written, at most {@link #BUFFER_SIZE}
+     * @return the outbound buffer
+     */
+    @Override
+    public ByteBuffer outbound(int length) {
+        if (outbound.remaining() < length) {
+            enqueueOutbound();
+            outbound = bufferPool.acquire();
+        }
+        return outbound;
+    }
+
+    /**
+     * Queue a part of a text response, for responses sent piece by piece. The characters go straight into the
+     * buffer as ISO-8859-1 bytes, without encoding the whole string first
+     * @param part the part of the response
+     */
+    @Override
+    public void appendText(String part) {
+        for (int i = 0; i < part.length(); i++) {
+            outbound(1).put((byte) part.charAt(i));
+        }
+    }
+
+    /**
+     * Queue the {@link #RESPONSE_DELIMITER} after the parts of a text response
+     */
+    @Override
+    public void endText() {
+        outbound(1).put(RESPONSE_DELIMITER);
+    }
+
+    /**
+     * @return whether a batch is still being played, without creating one
+     */
+    boolean hasOpenBatch() {
+        return batch != null && batch.open;
+    }
+
+    /**
+     * @return the multi-round game of this connection, which may or may not be running
+     */
+    Batch getBatch() {
+        if (batch == null) {
+            batch = new Batch();
+        }
+        return batch;
+    }
+
+    /**
+     * Write as much of the queued responses as the socket takes right now, without blocking
+     * @return true if everything has been sent, false if the rest has to wait until the socket is writable
+     * @throws IOException if the client crashed oddly
+     */
+    boolean flush() throws IOException {
+        if (outbound.position() > 0) {
+            enqueueOutbound();
+            outbound = null;
+        }
+        while (queueStart < queueEnd) {
+            var gathered = queueStart;
+            var count = Math.min(queueEnd - queueStart, MAX_GATHER);
+            metrics.bytesOut.add(socketChannel.write(queue, queueStart, count));
+
+            // give back the buffers which have been fully sent, keeping one for the next responses
+            while (queueStart < queueEnd && !queue[queueStart].hasRemaining()) {
+                var sent = queue[queueStart];
+                queue[queueStart++] = null;
+                if (outbound == null) {
+                    sent.clear();
+                    outbound = sent;
+                } else {
+                    bufferPool.release(sent);
+                }
+            }
+            if (queueStart - gathered < count) {
+                // the socket buffer is full
+                break;
+            }
+        }
+        if (queueStart == queueEnd) {
+            queueStart = 0;
+            queueEnd = 0;
+        }
+        if (outbound == null) {
+            outbound = bufferPool.acquire();
+        }
+        return queueStart == queueEnd;
+    }
+
+    /**
+     * @return true if the client has so many unsent responses that no more queries should be read for now
+     */
+    @Override
+    public boolean isBacklogged() {
+        return queueEnd - queueStart >= MAX_QUEUED_BUFFERS;
+    }
+
+    /**
+     * Move the current write buffer to the end of the queue
+     */
+    private void enqueueOutbound() {
+        if (queueEnd == queue.length) {
+            if (queueStart > 0) {
+                // shift the live part back to the start
+                System.arraycopy(queue, queueStart, queue, 0, queueEnd - queueStart);
+                Arrays.fill(queue, queueEnd - queueStart, queueEnd, null);
+            } else {
+                queue = Arrays.copyOf(queue, queue.length * 2);
+            }
+            queueEnd -= queueStart;
+            queueStart = 0;
+        }
+        outbound.flip();
+        queue[queueEnd++] = outbound;
+    }
+
+    /**
+     * Close the channel and give the buffers back to the pool. Calling it twice is harmless
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (peer != null) {
+            peer.release(batch);
+            peer = null;
+        }
+        bufferPool.release(inbound);
+        if (outbound != null) {
+            bufferPool.release(outbound);
+        }
+        for (int i = queueStart; i < queueEnd; i++) {
+            bufferPool.release(queue[i]);
+            queue[i] = null;
+        }
+        try {
+            socketChannel.close();
+        } catch (IOException ignored) {
+            // closing anyway, nothing left to do
+        }
+    }
+}
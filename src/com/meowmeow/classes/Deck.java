@@ -0,0 +1,139 @@
+package com.meowmeow.classes;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.security.SecureRandom;
+
+/**
+ * <h3>Deck class</h3>
+ * <p>Deals cards out of a full 52-card deck, without allocating anything per deal.</p>
+ * <p>
+ *     The deck is a permutation of the 52 {@link Card#getCode()} values. Dealing {@code n} cards runs the first
+ *     {@code n} steps of a Fisher-Yates shuffle over it, which picks {@code n} distinct cards uniformly.
+ *     The permutation left behind by the previous deal is as good a starting point as a sorted deck,
+ *     so the deck is never reset.
+ * </p>
+ * <p>
+ *     Each thread gets its own deck through {@link #current()}, with its own xoshiro256** generator.
+ *     The generator is seeded from a {@link SecureRandom}, and reseeded from it every {@value #RESEED_INTERVAL}
+ *     deals.
+ * </p>
+ */
+public final class Deck {
+    public static final int SIZE = 52;
+
+    static final int RESEED_INTERVAL = 1 << 16;
+
+    private static final SecureRandom SEED_SOURCE = new SecureRandom();
+
+    private static final ThreadLocal<Deck> CURRENT = ThreadLocal.withInitial(Deck::new);
+
+    private final int[] cards = new int[SIZE];
+
+    private long s0, s1, s2, s3;
+
+    private int dealsUntilReseed = 0;
+
+    private Deck() {
+        for (int i = 0; i < SIZE; i++) {
+            cards[i] = i;
+        }
+    }
+
+    /**
+     * @return the deck of the current thread
+     */
+    @NotNull
+    public static Deck current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Deal distinct cards, uniformly over the whole deck
+     * @param dealt where the {@link Card#getCode()} values of the dealt cards go
+     * @param count the number of cards to deal, at most {@value #SIZE}
+     */
+    public void deal(@NotNull int[] dealt, int count) {
+        deal(dealt, 0, count);
+    }
+
+    /**
+     * Deal distinct cards, uniformly over the cards which the first {@code from} cards of the previous deal left.
+     * A table deals the dealer's hand once, then every player's hand after it, so nobody gets the dealer's cards
+     * @param dealt where the {@link Card#getCode()} values of the dealt cards go, from index 0
+     * @param from the number of cards of the previous deal to keep out
+     * @param count the number of cards to deal, at most {@code SIZE - from}
+     */
+    public void deal(@NotNull int[] dealt, int from, int count) {
+        if (--dealsUntilReseed < 0) {
+            reseed();
+        }
+        // the next steps of a Fisher-Yates shuffle, which leave the cards before them alone
+        for (int i = from; i < from + count; i++) {
+            var j = i + nextInt(SIZE - i);
+            var card = cards[j];
+            cards[j] = cards[i];
+            cards[i] = card;
+            dealt[i - from] = card;
+        }
+    }
+
+    /**
+     * Draw a single card, independently from any previous one
+     * @return the {@link Card#getCode()} of the card
+     */
+    public int drawOne() {
+        if (--dealsUntilReseed < 0) {
+            reseed();
+        }
+        return nextInt(SIZE);
+    }
+
+    /**
+     * A uniform number from 0 (inclusive) to {@code bound} (exclusive), with Lemire's multiply-and-reject method
+     * @param bound a positive bound
+     * @return the number
+     */
+    int nextInt(int bound) {
+        var product = (nextLong() >>> 32) * bound;
+        var low = product & 0xFFFFFFFFL;
+        if (low < bound) {
+            var threshold = (0x100000000L - bound) % bound;
+            while (low < threshold) {
+                product = (nextLong() >>> 32) * bound;
+                low = product & 0xFFFFFFFFL;
+            }
+        }
+        return (int) (product >>> 32);
+    }
+
+    /**
+     * The xoshiro256** generator
+     * @return 64 random bits
+     */
+    private long nextLong() {
+        var result = Long.rotateLeft(s1 * 5, 7) * 9;
+        var t = s1 << 17;
+        s2 ^= s0;
+        s3 ^= s1;
+        s1 ^= s2;
+        s0 ^= s3;
+        s2 ^= t;
+        s3 = Long.rotateLeft(s3, 45);
+        return result;
+    }
+
+    private void reseed() {
+        long s0 = SEED_SOURCE.nextLong(), s1 = SEED_SOURCE.nextLong(),
+                s2 = SEED_SOURCE.nextLong(), s3 = SEED_SOURCE.nextLong();
+        if ((s0 | s1 | s2 | s3) == 0) {
+            // the only state xoshiro can't get out of
+            s0 = 1;
+        }
+        this.s0 = s0;
+        this.s1 = s1;
+        this.s2 = s2;
+        this.s3 = s3;
+        dealsUntilReseed = RESEED_INTERVAL;
+    }
+}
@@ -0,0 +1,219 @@
+package com.meowmeow.classes;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * <h3>Game Benchmarks class</h3>
+ * <p>The benchmarks of the hot paths of the game, run by a {@link BenchmarkRunner}:</p>
+ * <ul>
+ *     <li>{@code card.*} - drawing a random {@link Card}, and dealing the 6 cards of a round</li>
+ *     <li>{@code score.*} - {@link Score#setPoint(Card)} for a whole hand, and {@link Score#compareTo(Score)}</li>
+ *     <li>{@code session.*} - a whole round through {@link Server#gameSession(String, GameRound, Batch)}
+ *     (query parsing and {@link TextProtocol} included) and
+ *     {@link Server#binarySession(BinaryProtocol.Request, GameRound, Batch)}, and the parsing of an invalid query</li>
+ *     <li>{@code loopback.*} - a whole request, text and binary: encoded by the client, sent through a loopback
+ *     {@link SocketChannel}, decoded by a {@link Connection}, played, and the response decoded by the client</li>
+ * </ul>
+ * <p>
+ *     The server is never started, it only lends its game logic. Every round bets 0, so the user never goes
+ *     bankrupt however long the benchmarks run.
+ * </p>
+ */
+public final class GameBenchmarks {
+    /** The number of precomputed hands the score benchmarks cycle through */
+    private static final int HANDS = 1024;
+
+    private GameBenchmarks() {}
+
+    /**
+     * Run every benchmark (that the runner's filter lets through)
+     * @param runner the harness
+     * @throws Exception whatever a benchmark throws
+     */
+    public static void runAll(@NotNull BenchmarkRunner runner) throws Exception {
+        runner.printHeader();
+        cardBenchmarks(runner);
+        scoreBenchmarks(runner);
+        try (var server = new Server(new ServerConfig().setPort(0))) {
+            var round = new GameRound();
+            var batch = new Batch();
+            var userId = UUID.fromString(server.gameSession("new-user", round, batch).split(" ")[1]);
+            sessionBenchmarks(runner, server, userId);
+            loopbackBenchmarks(runner, server, userId);
+        }
+    }
+
+    private static void cardBenchmarks(@NotNull BenchmarkRunner runner) throws Exception {
+        runner.run("card.new", () -> new Card().getCode());
+
+        var cards = new int[GameRound.CARDS];
+        runner.run("card.deal", () -> {
+            Deck.current().deal(cards, GameRound.CARDS);
+            return cards[GameRound.CARDS - 1];
+        });
+    }
+
+    private static void scoreBenchmarks(@NotNull BenchmarkRunner runner) throws Exception {
+        var hands = new Card[HANDS * 3];
+        var scores = new Score[HANDS];
+        var codes = new int[GameRound.CARDS];
+        for (int i = 0; i < HANDS; i++) {
+            Deck.current().deal(codes, 3);
+            scores[i] = new Score();
+            for (int j = 0; j < 3; j++) {
+                hands[3 * i + j] = Card.fromCode(codes[j]);
+                scores[i].setPoint(hands[3 * i + j]);
+            }
+        }
+
+        var next = new int[1];
+        runner.run("score.setPoint", () -> {
+            var i = next[0];
+            next[0] = (i + 1) & (HANDS - 1);
+            var score = new Score();
+            score.setPoint(hands[3 * i]);
+            score.setPoint(hands[3 * i + 1]);
+            score.setPoint(hands[3 * i + 2]);
+            return score.getRank();
+        });
+        runner.run("score.compareTo", () -> {
+            var i = next[0];
+            next[0] = (i + 1) & (HANDS - 1);
+            return scores[i].compareTo(scores[(i + 1) & (HANDS - 1)]);
+        });
+    }
+
+    private static void sessionBenchmarks(@NotNull BenchmarkRunner runner, @NotNull Server server,
+                                          @NotNull UUID userId) throws Exception {
+        var round = new GameRound();
+        var batch = new Batch();
+
+        var query = "new-game user-id " + userId + " bet-money 0";
+        var text = ByteBuffer.allocate(TextProtocol.MAX_ROUND_LENGTH);
+        runner.run("session.text.newGame", () -> {
+            server.gameSession(query, round, batch);
+            text.clear();
+            TextProtocol.encodeRound(text, round);
+            return text.position();
+        });
+
+        var invalid = "new-game user-id not-a-user-id bet-money 0";
+        runner.run("session.text.invalid", () -> {
+            try {
+                return server.gameSession(invalid, round, batch).length();
+            } catch (IllegalGameQueryException e) {
+                return e.getMessage().length();
+            }
+        });
+
+        var request = new BinaryProtocol.Request();
+        request.opcode = BinaryProtocol.NEW_GAME;
+        request.mostSigBits = userId.getMostSignificantBits();
+        request.leastSigBits = userId.getLeastSignificantBits();
+        runner.run("session.binary.newGame", () -> {
+            server.binarySession(request, round, batch);
+            return round.outcome;
+        });
+    }
+
+    private static void loopbackBenchmarks(@NotNull BenchmarkRunner runner, @NotNull Server server,
+                                           @NotNull UUID userId) throws Exception {
+        var bufferPool = new BufferPool(Connection.BUFFER_SIZE, 4);
+        try (var listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            try (var client = SocketChannel.open(listener.getLocalAddress())) {
+                var connection = new Connection(listener.accept(), bufferPool, new ServerMetrics());
+                try {
+                    loopbackBenchmarks(runner, server, userId, client, connection);
+                } finally {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    private static void loopbackBenchmarks(@NotNull BenchmarkRunner runner, @NotNull Server server,
+                                           @NotNull UUID userId, @NotNull SocketChannel client,
+                                           @NotNull Connection connection) throws Exception {
+        var round = new GameRound();
+        var batch = new Batch();
+        var scratch = new byte[Connection.BUFFER_SIZE];
+        var outbound = ByteBuffer.allocateDirect(Connection.BUFFER_SIZE);
+        var inbound = ByteBuffer.allocateDirect(Connection.BUFFER_SIZE);
+
+        var query = ("new-game user-id " + userId + " bet-money 0\n").getBytes(StandardCharsets.ISO_8859_1);
+        runner.run("loopback.text.newGame", () -> {
+            outbound.clear();
+            outbound.put(query).flip();
+            writeFully(client, outbound);
+
+            String received;
+            do {
+                connection.read();
+            } while ((received = connection.nextQuery(scratch)) == null);
+            server.gameSession(received, round, batch);
+            TextProtocol.encodeRound(connection.outbound(TextProtocol.MAX_ROUND_LENGTH), round);
+            connection.endText();
+            connection.flush();
+
+            // the client's side of the framing: read up to the delimiter
+            inbound.clear();
+            while (true) {
+                if (client.read(inbound) < 0) {
+                    throw new EOFException();
+                }
+                if (inbound.get(inbound.position() - 1) == Connection.RESPONSE_DELIMITER) {
+                    return inbound.position();
+                }
+            }
+        });
+
+        connection.upgradeToBinary();
+        var request = new BinaryProtocol.Request();
+        var response = new GameRound();
+        runner.run("loopback.binary.newGame", () -> {
+            outbound.clear();
+            BinaryProtocol.encodeRequest(outbound, BinaryProtocol.NEW_GAME, userId, 0);
+            outbound.flip();
+            writeFully(client, outbound);
+
+            do {
+                connection.read();
+            } while (!connection.nextRequest(request));
+            server.binarySession(request, round, batch);
+            BinaryProtocol.encodeResponse(
+                    connection.outbound(BinaryProtocol.HEADER_LENGTH + BinaryProtocol.RESPONSE_LENGTH),
+                    request.opcode, round);
+            connection.flush();
+
+            inbound.clear();
+            while (true) {
+                if (client.read(inbound) < 0) {
+                    throw new EOFException();
+                }
+                inbound.flip();
+                var decoded = BinaryProtocol.decodeResponse(inbound, response);
+                inbound.compact();
+                if (decoded) {
+                    return response.outcome;
+                }
+            }
+        });
+    }
+
+    private static void writeFully(@NotNull SocketChannel channel, @NotNull ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
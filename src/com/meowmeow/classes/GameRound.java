@@ -0,0 +1,93 @@
+package com.meowmeow.classes;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * <h3>Game Round class</h3>
+ * <p>The result of a single query, in a form that can be sent as either text or binary</p>
+ * <p>
+ *     For a game, the 6 dealt cards are stored in the dealing order: client -> server -> client -> ...
+ *     The cards are stored as their {@link Card#getCode()} so that a round can be reused without allocating.
+ * </p>
+ */
+public final class GameRound {
+    public static final int CARDS = 6;
+
+    public static final int NO_CARD = -1;
+
+    public static final int OUTCOME_NONE = 0, OUTCOME_WIN = 1, OUTCOME_LOSS = 2, OUTCOME_DRAW = 3;
+
+    int status = BinaryProtocol.STATUS_OK;
+    /** The user ID, both 0 if there is none */
+    long mostSigBits, leastSigBits;
+    final int[] cards = new int[CARDS];
+    int clientPoint, serverPoint;
+    int outcome;
+    long balance;
+    boolean bankrupt;
+
+    public GameRound() {
+        reset();
+    }
+
+    /**
+     * Clear the round so that it can be reused for the next query
+     */
+    void reset() {
+        status = BinaryProtocol.STATUS_OK;
+        mostSigBits = 0;
+        leastSigBits = 0;
+        Arrays.fill(cards, NO_CARD);
+        clientPoint = 0;
+        serverPoint = 0;
+        outcome = OUTCOME_NONE;
+        balance = 0;
+        bankrupt = false;
+    }
+
+    /**
+     * @return one of the {@code BinaryProtocol.STATUS_*} codes
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the user ID, or null if there is none
+     */
+    public UUID getUserId() {
+        return mostSigBits == 0 && leastSigBits == 0 ? null : new UUID(mostSigBits, leastSigBits);
+    }
+
+    /**
+     * @param index the dealing order, from 0 to 5. Even numbers are the client's cards
+     * @return the card, or null if no card was dealt
+     */
+    public Card getCard(int index) {
+        return cards[index] == NO_CARD ? null : Card.fromCode(cards[index]);
+    }
+
+    public int getClientPoint() {
+        return clientPoint;
+    }
+
+    public int getServerPoint() {
+        return serverPoint;
+    }
+
+    /**
+     * @return one of the {@code OUTCOME_*} values
+     */
+    public int getOutcome() {
+        return outcome;
+    }
+
+    public long getBalance() {
+        return balance;
+    }
+
+    public boolean isBankrupt() {
+        return bankrupt;
+    }
+}
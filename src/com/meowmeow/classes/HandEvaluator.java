@@ -0,0 +1,105 @@
+package com.meowmeow.classes;
+
+/**
+ * <h3>Hand Evaluator class</h3>
+ * <p>Scores hands by the rules of {@link Score}, with the whole score packed into a single {@code int}:</p>
+ * <ul>
+ *     <li>bits 8 and up - the point</li>
+ *     <li>bits 1 to 7 - the suit point</li>
+ *     <li>bit 0 - set if the hand has the Ace of Diamonds</li>
+ * </ul>
+ * <p>
+ *     The three stages of the rules compare the fields in exactly that order, so comparing two hands is
+ *     a single integer comparison, and equal ranks mean a draw.
+ * </p>
+ * <p>
+ *     The point only depends on the card types, and on the order they were dealt in (a running point of exactly
+ *     10 is kept as is). It is looked up from a table of every ordered 3-card combination of types, precomputed
+ *     with the same running rule as {@link Score#setPoint(Card)}. Suit points and the Ace of Diamonds just add up,
+ *     so evaluating a hand is one table lookup and a few additions.
+ * </p>
+ */
+public final class HandEvaluator {
+    /** The {@link Card#getCode()} of the Ace of Diamonds */
+    public static final int ACE_OF_DIAMONDS = 2;
+
+    private static final int TYPES = 13;
+
+    private static final byte[] POINTS = new byte[TYPES * TYPES * TYPES];
+
+    static {
+        for (int first = 1; first <= TYPES; first++) {
+            for (int second = 1; second <= TYPES; second++) {
+                for (int third = 1; third <= TYPES; third++) {
+                    var point = addPoint(addPoint(addPoint(0, first), second), third);
+                    POINTS[((first - 1) * TYPES + second - 1) * TYPES + third - 1] = (byte) point;
+                }
+            }
+        }
+    }
+
+    private HandEvaluator() {}
+
+    /**
+     * The running point rule: add the card's score, and if the point goes over 10 keep only the last digit
+     * @param point the point so far
+     * @param score the score of the next card, from 1 to 13
+     * @return the new point
+     */
+    private static int addPoint(int point, int score) {
+        point += score;
+        if (point > 10) {
+            point %= 10;
+        }
+        return point;
+    }
+
+    /**
+     * Score a 3-card hand
+     * @param first the {@link Card#getCode()} of the first card dealt to the hand
+     * @param second the code of the second one
+     * @param third the code of the third one
+     * @return the packed rank
+     */
+    public static int evaluate(int first, int second, int third) {
+        var point = POINTS[((first >> 2) * TYPES + (second >> 2)) * TYPES + (third >> 2)];
+        var suitPoint = (first & 3) + (second & 3) + (third & 3) + 3;
+        var fallback = first == ACE_OF_DIAMONDS || second == ACE_OF_DIAMONDS || third == ACE_OF_DIAMONDS ? 1 : 0;
+        return point << 8 | suitPoint << 1 | fallback;
+    }
+
+    /**
+     * Add one more card to a hand, for hands built card by card
+     * @param rank the packed rank so far, 0 for an empty hand
+     * @param card the {@link Card#getCode()} of the new card
+     * @return the new packed rank
+     */
+    public static int addCard(int rank, int card) {
+        var point = addPoint(point(rank), (card >> 2) + 1);
+        var suitPoint = Math.min(suitPoint(rank) + (card & 3) + 1, 0x7F);
+        var fallback = (rank & 1) | (card == ACE_OF_DIAMONDS ? 1 : 0);
+        return point << 8 | suitPoint << 1 | fallback;
+    }
+
+    public static int point(int rank) {
+        return rank >>> 8;
+    }
+
+    public static int suitPoint(int rank) {
+        return rank >>> 1 & 0x7F;
+    }
+
+    public static boolean hasAceOfDiamonds(int rank) {
+        return (rank & 1) != 0;
+    }
+
+    /**
+     * Compare two hands
+     * @param rank this side's packed rank
+     * @param opponent the opponent's packed rank
+     * @return 1 if this side wins, -1 if the opponent wins, 0 if it's a draw
+     */
+    public static int compare(int rank, int opponent) {
+        return Integer.compare(rank, opponent);
+    }
+}
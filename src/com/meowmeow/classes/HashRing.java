@@ -0,0 +1,130 @@
+package com.meowmeow.classes;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * <h3>Hash Ring class</h3>
+ * <p>Which node of a cluster owns which users, by consistent hashing of the user IDs.</p>
+ * <p>
+ *     Every node gets {@value #POINTS_PER_NODE} points on a ring of 64-bit hashes, and a user belongs to the node
+ *     of the first point at or after the hash of its ID. Adding a node to the cluster only takes users from the
+ *     other nodes, about a fair share from each, instead of reshuffling everybody.
+ * </p>
+ * <p>
+ *     The points only depend on the number of nodes and their position in the list, not on their addresses,
+ *     so the servers and the clients agree on the owners as long as they are given the nodes in the same order.
+ *     A lookup is a binary search in a sorted array, without allocating.
+ * </p>
+ */
+public final class HashRing {
+    private static final int POINTS_PER_NODE = 160;
+
+    private final List<InetSocketAddress> nodes;
+
+    /** The points, sorted */
+    private final long[] points;
+
+    /** The node of every point */
+    private final int[] owners;
+
+    /**
+     * @param nodes the addresses of the nodes, in the same order everywhere
+     */
+    public HashRing(@NotNull List<InetSocketAddress> nodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A cluster needs at least one node");
+        }
+        this.nodes = List.copyOf(nodes);
+
+        var count = nodes.size() * POINTS_PER_NODE;
+        var unsorted = new long[count];
+        for (int node = 0; node < nodes.size(); node++) {
+            for (int i = 0; i < POINTS_PER_NODE; i++) {
+                unsorted[node * POINTS_PER_NODE + i] = mix(((long) node << 32) | i);
+            }
+        }
+        // sort the points together with their node, through their index
+        var order = new ArrayList<Integer>(count);
+        for (int i = 0; i < count; i++) {
+            order.add(i);
+        }
+        order.sort((a, b) -> Long.compareUnsigned(unsorted[a], unsorted[b]));
+        points = new long[count];
+        owners = new int[count];
+        for (int i = 0; i < count; i++) {
+            points[i] = unsorted[order.get(i)];
+            owners[i] = order.get(i) / POINTS_PER_NODE;
+        }
+    }
+
+    /**
+     * A strong 64-bit mix (SplitMix64's finalizer), so that nearby inputs land all over the ring
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+
+    /**
+     * @param mostSigBits the user ID's most significant bits
+     * @param leastSigBits the user ID's least significant bits
+     * @return the position of the user's node in the list
+     */
+    public int ownerOf(long mostSigBits, long leastSigBits) {
+        var hash = mix(mostSigBits ^ mix(leastSigBits));
+        // the first point at or after the hash, going round past the last one
+        int low = 0, high = points.length;
+        while (low < high) {
+            var middle = (low + high) >>> 1;
+            if (Long.compareUnsigned(points[middle], hash) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return owners[low == points.length ? 0 : low];
+    }
+
+    public int ownerOf(@NotNull UUID userId) {
+        return ownerOf(userId.getMostSignificantBits(), userId.getLeastSignificantBits());
+    }
+
+    @NotNull
+    public InetSocketAddress getNode(int index) {
+        return nodes.get(index);
+    }
+
+    /**
+     * @param address an address, resolved or not
+     * @return the position of the node with that address, or -1 if there is none
+     */
+    public int indexOf(@NotNull InetSocketAddress address) {
+        return nodes.indexOf(address);
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * @param index the position of a node
+     * @return the node's address as "host:port", the way it was given
+     */
+    @NotNull
+    public String describe(int index) {
+        var node = nodes.get(index);
+        return node.getHostString() + ":" + node.getPort();
+    }
+
+    @Override
+    public String toString() {
+        return "HashRing" + Arrays.toString(nodes.toArray());
+    }
+}
@@ -13,4 +13,8 @@ public class IllegalGameQueryException extends Exception {
     public IllegalGameQueryException(UUID id) {
         super("User ID " + id.toString() + " does not exist, please create the user first");
     }
+
+    public IllegalGameQueryException(UUID id, long cash) {
+        super("User ID " + id.toString() + " only has " + cash + " cash, please bet less");
+    }
 }
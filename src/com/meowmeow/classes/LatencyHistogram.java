@@ -0,0 +1,141 @@
+package com.meowmeow.classes;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.PrintStream;
+import java.util.Locale;
+
+/**
+ * <h3>Latency Histogram class</h3>
+ * <p>A histogram of latencies in nanoseconds, with a fixed relative precision, in the spirit of HdrHistogram.</p>
+ * <p>
+ *     The values are counted in log-linear buckets: every power of two is split into 64 sub-buckets, so any
+ *     recorded value is known within 1.6%, from a nanosecond to centuries, in a fixed 30 KB array. Recording
+ *     a value is a couple of shifts and an increment, and never allocates.
+ * </p>
+ * <p>
+ *     A histogram is meant to be recorded by a single thread. Give every thread its own histogram and
+ *     {@link #add(LatencyHistogram)} them up at the end.
+ * </p>
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+
+    private static final int HALF_SUB_BUCKETS = 1 << (SUB_BUCKET_BITS - 1);
+
+    /** Shifts go up to 63 - SUB_BUCKET_BITS + 1, each with the upper half of the sub-buckets */
+    static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+
+    private long totalCount = 0, max = 0;
+
+    private double sum = 0;
+
+    public LatencyHistogram() {}
+
+    /**
+     * A histogram made of counts which have been recorded elsewhere
+     * @param counts the count of every bucket, see {@link #indexOf(long)}
+     * @param sum the sum of the recorded values
+     * @param max the biggest recorded value
+     */
+    LatencyHistogram(long[] counts, double sum, long max) {
+        System.arraycopy(counts, 0, this.counts, 0, BUCKETS);
+        for (var count : counts) {
+            totalCount += count;
+        }
+        this.sum = sum;
+        this.max = max;
+    }
+
+    /**
+     * @return the bucket of a value, between 0 and {@link #BUCKETS}
+     */
+    static int indexOf(long value) {
+        var shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return (shift << (SUB_BUCKET_BITS - 1)) + (int) (value >>> shift);
+    }
+
+    /**
+     * @return the highest value counted by the bucket
+     */
+    private static long highestValueAt(int index) {
+        var shift = Math.max(0, (index >> (SUB_BUCKET_BITS - 1)) - 1);
+        var subBucket = index - (shift << (SUB_BUCKET_BITS - 1));
+        return ((subBucket + 1L) << shift) - 1;
+    }
+
+    /**
+     * Count a value
+     * @param nanos the latency, negative values are counted as 0
+     */
+    public void record(long nanos) {
+        var value = Math.max(0, nanos);
+        counts[indexOf(value)]++;
+        totalCount++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Add up the counts of another histogram into this one
+     * @param other the other histogram, which isn't changed
+     */
+    public void add(@NotNull LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return totalCount == 0 ? 0 : sum / totalCount;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the value which that percentage of the recorded values are at or below, within the precision
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        var target = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+        var seen = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(highestValueAt(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Print the usual percentiles on a line, in milliseconds
+     * @param out where to print
+     * @param title what the latencies are
+     */
+    public void printPercentiles(@NotNull PrintStream out, @NotNull String title) {
+        out.println(String.format(Locale.ROOT,
+                "%-22s p50 %9.3f  p90 %9.3f  p99 %9.3f  p99.9 %9.3f  p99.99 %9.3f  max %9.3f  mean %9.3f ms",
+                title, millis(getValueAtPercentile(50)), millis(getValueAtPercentile(90)),
+                millis(getValueAtPercentile(99)), millis(getValueAtPercentile(99.9)),
+                millis(getValueAtPercentile(99.99)), millis(max), getMean() / 1e6));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
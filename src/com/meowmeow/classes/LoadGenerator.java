@@ -0,0 +1,482 @@
+package com.meowmeow.classes;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <h3>Load Generator class</h3>
+ * <p>Simulates thousands of users playing at once against a server, and measures its throughput and latencies.</p>
+ * <p>
+ *     Every simulated user goes through a whole session, over and over: "new-user", a number of "new-game"
+ *     rounds, then "quit-game" (or a new user straight away if it went bankrupt). The queries of all users go
+ *     through a single {@link AsyncClient}, so a few connections carry all of them. There are two ways to
+ *     send the load:
+ * </p>
+ * <ul>
+ *     <li>
+ *         <strong>Closed loop</strong> - every user sends its next query once the previous one has been answered,
+ *         optionally waiting a think time between them. The load adapts to the server
+ *     </li>
+ *     <li>
+ *         <strong>Open loop</strong> - queries arrive at a fixed rate, spread over the users, whether or not the
+ *         server keeps up. A user which is still waiting for a response queues its arrivals
+ *     </li>
+ * </ul>
+ * <p>
+ *     Every query has an intended start time: when it arrives in open loop, or when it should be sent
+ *     according to the think time in closed loop. The <em>response time</em> is measured from that time, so a
+ *     server which stalls is charged for all of the queries which should have been sent meanwhile, instead
+ *     of only for the one it was stuck on (the coordinated omission problem). The <em>service time</em>,
+ *     measured from when the query was actually sent, is reported too. The two are almost the same for a closed
+ *     loop without think time, which has no schedule to fall behind.
+ * </p>
+ */
+public class LoadGenerator {
+    /**
+     * How the queries are sent
+     */
+    public enum Mode {
+        CLOSED_LOOP, OPEN_LOOP
+    }
+
+    private ClientConfig clientConfig = new ClientConfig().setConnectionsPerEndpoint(4);
+
+    private Mode mode = Mode.CLOSED_LOOP;
+
+    private int users = 1000;
+
+    private int roundsPerUser = 100;
+
+    private int betMoney = 1;
+
+    private long thinkMillis = 0;
+
+    private double rate = 10000;
+
+    private long durationSeconds = 30;
+
+    /** A server started by the generator itself, or null to use one which is already running */
+    private ServerConfig inProcessServer = null;
+
+    /** All recorded on the client's I/O thread, which completes every answered query */
+    private final LatencyHistogram responseTimes = new LatencyHistogram();
+
+    private final LatencyHistogram serviceTimes = new LatencyHistogram();
+
+    private final AtomicLong completed = new AtomicLong(), errors = new AtomicLong(), outstanding = new AtomicLong();
+
+    private volatile boolean stopping = false;
+
+    /** Open loop: the arrivals still queued at the end, see {@link User#abandon(long)} */
+    private long abandoned = 0;
+
+    private AsyncClient client;
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * A simulated user, going through its session one query at a time
+     */
+    private final class User {
+        /** The user ID, null before "new-user" has been answered */
+        String userId = null;
+
+        int roundsLeft = 0;
+
+        boolean waiting = false;
+
+        /** Open loop: the intended start times of the queries which arrived while waiting */
+        final ArrayDeque<Long> arrivals = new ArrayDeque<>();
+
+        /** Closed loop: the intended start time of the next query */
+        long nextIntended;
+
+        /**
+         * Send the next query of the session
+         * @param intended the intended start time of the query
+         */
+        synchronized void send(long intended) {
+            waiting = true;
+            String query;
+            if (userId == null) {
+                query = "new-user";
+            } else if (roundsLeft > 0) {
+                query = "new-game user-id " + userId + " bet-money " + betMoney;
+            } else {
+                query = "quit-game user-id " + userId;
+            }
+            outstanding.incrementAndGet();
+            var sent = System.nanoTime();
+            client.query(query).whenComplete((response, failure) -> {
+                if (failure != null) {
+                    // the connection broke, maybe all of them: try again a bit later, not in a tight loop
+                    errors.incrementAndGet();
+                    outstanding.decrementAndGet();
+                    scheduler.schedule(() -> retry(intended), 100, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                var now = System.nanoTime();
+                responseTimes.record(now - intended);
+                serviceTimes.record(now - sent);
+                completed.incrementAndGet();
+                advance(response);
+                // the next query is counted before this one, so the count never drops to 0 in between
+                next(now);
+                outstanding.decrementAndGet();
+            });
+        }
+
+        /**
+         * Move on in the session according to the response
+         */
+        private synchronized void advance(@NotNull String response) {
+            if (userId == null) {
+                if (response.startsWith("user-id ")) {
+                    userId = response.split(" ")[1];
+                    roundsLeft = roundsPerUser;
+                } else {
+                    errors.incrementAndGet();
+                }
+            } else if (roundsLeft > 0) {
+                roundsLeft--;
+                if (response.contains("You've lost all of the cash")) {
+                    userId = null;
+                } else if (!response.contains("Your current money is")) {
+                    errors.incrementAndGet();
+                }
+            } else {
+                // quit, then start over as a new user
+                userId = null;
+            }
+        }
+
+        /**
+         * The previous query has been answered: send the next one, now or when it is due
+         */
+        private synchronized void next(long now) {
+            waiting = false;
+            if (mode == Mode.OPEN_LOOP) {
+                // even once stopping: the queued arrivals are the ones which have waited the longest
+                if (!arrivals.isEmpty()) {
+                    send(arrivals.poll());
+                }
+                return;
+            }
+            if (stopping) {
+                return;
+            }
+            if (thinkMillis == 0) {
+                send(now);
+                return;
+            }
+            nextIntended += TimeUnit.MILLISECONDS.toNanos(thinkMillis);
+            var delay = nextIntended - now;
+            if (delay <= 0) {
+                // late already: send now, but the lateness counts
+                send(nextIntended);
+            } else {
+                var intended = nextIntended;
+                scheduler.schedule(() -> send(intended), delay, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private synchronized void retry(long intended) {
+            if (!stopping) {
+                send(intended);
+            }
+        }
+
+        /**
+         * Open loop: record the arrivals still queued once the generator gives up waiting, at the latency they have
+         * reached so far
+         * @param now the current time
+         * @return the number of arrivals which were never sent
+         */
+        synchronized int abandon(long now) {
+            var abandoned = arrivals.size();
+            for (var intended : arrivals) {
+                responseTimes.record(now - intended);
+            }
+            arrivals.clear();
+            return abandoned;
+        }
+
+        /**
+         * Open loop: a query arrives for this user
+         */
+        synchronized void arrive(long intended) {
+            if (waiting) {
+                arrivals.add(intended);
+            } else {
+                send(intended);
+            }
+        }
+    }
+
+    public LoadGenerator setClientConfig(@NotNull ClientConfig clientConfig) {
+        this.clientConfig = clientConfig;
+        return this;
+    }
+
+    public LoadGenerator setMode(@NotNull Mode mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    public LoadGenerator setUsers(int users) {
+        if (users < 1) {
+            throw new IllegalArgumentException("At least one user is needed");
+        }
+        this.users = users;
+        return this;
+    }
+
+    public LoadGenerator setRoundsPerUser(int roundsPerUser) {
+        this.roundsPerUser = roundsPerUser;
+        return this;
+    }
+
+    public LoadGenerator setBetMoney(int betMoney) {
+        this.betMoney = betMoney;
+        return this;
+    }
+
+    /**
+     * @param thinkMillis closed loop: the time between the starts of two queries of a user, 0 to send the next
+     *                    query as soon as the previous one is answered
+     * @return this generator
+     */
+    public LoadGenerator setThinkMillis(long thinkMillis) {
+        this.thinkMillis = thinkMillis;
+        return this;
+    }
+
+    /**
+     * @param rate open loop: the number of queries arriving per second, over all users
+     * @return this generator
+     */
+    public LoadGenerator setRate(double rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("The rate must be positive");
+        }
+        this.rate = rate;
+        return this;
+    }
+
+    /**
+     * @param inProcessServer the config of a server started by the generator before the load, and closed after
+     *                        it, or null to use one which is already running
+     * @return this generator
+     */
+    public LoadGenerator setInProcessServer(ServerConfig inProcessServer) {
+        this.inProcessServer = inProcessServer;
+        return this;
+    }
+
+    public LoadGenerator setDurationSeconds(long durationSeconds) {
+        this.durationSeconds = durationSeconds;
+        return this;
+    }
+
+    /**
+     * Read the settings from the command line. The accepted options are:
+     * <ul>
+     *     <li>{@code --server <host:port>} - the server, can be given several times, 127.0.0.1:12345 by default</li>
+     *     <li>{@code --connections <number>} - connections per server, 4 by default</li>
+     *     <li>{@code --cluster <host:port>,<host:port>,...} - the nodes of a cluster instead, see
+     *     {@link ClientConfig#setCluster(boolean)}</li>
+     *     <li>{@code --mode closed|open} - closed loop by default</li>
+     *     <li>{@code --users <number>} - simulated users, 1000 by default</li>
+     *     <li>{@code --rounds <number>} - games per session, 100 by default</li>
+     *     <li>{@code --bet <number>} - the bet of every game, 1 by default</li>
+     *     <li>{@code --think <ms>} - closed loop think time, 0 by default</li>
+     *     <li>{@code --rate <number>} - open loop queries per second, 10000 by default</li>
+     *     <li>{@code --duration <s>} - 30 by default</li>
+     *     <li>{@code --in-process <reactors>} - start a server with that many reactor threads (see
+     *     {@link ServerConfig#setReactorThreads(int)}) on the port of the first server, instead of using one which
+     *     is already running</li>
+     * </ul>
+     * @param args the arguments of {@code main()}
+     * @return the generator
+     * @throws IllegalArgumentException if an option is unknown or has no value
+     */
+    @NotNull
+    public static LoadGenerator fromArgs(@NotNull String[] args) {
+        var generator = new LoadGenerator();
+        var endpoints = new ArrayList<InetSocketAddress>();
+        var inProcessReactors = -1;
+        for (int i = 0; i < args.length; i++) {
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            }
+            var value = args[++i];
+            switch (args[i - 1]) {
+                case "--server":
+                    endpoints.add(ClientConfig.parseEndpoint(value));
+                    break;
+                case "--connections":
+                    generator.clientConfig.setConnectionsPerEndpoint(Integer.parseInt(value));
+                    break;
+                case "--cluster":
+                    for (var node : value.split(",")) {
+                        endpoints.add(ClientConfig.parseEndpoint(node));
+                    }
+                    generator.clientConfig.setCluster(true);
+                    break;
+                case "--mode":
+                    generator.setMode(value.equals("open") ? Mode.OPEN_LOOP : Mode.CLOSED_LOOP);
+                    break;
+                case "--users":
+                    generator.setUsers(Integer.parseInt(value));
+                    break;
+                case "--rounds":
+                    generator.setRoundsPerUser(Integer.parseInt(value));
+                    break;
+                case "--bet":
+                    generator.setBetMoney(Integer.parseInt(value));
+                    break;
+                case "--think":
+                    generator.setThinkMillis(Long.parseLong(value));
+                    break;
+                case "--rate":
+                    generator.setRate(Double.parseDouble(value));
+                    break;
+                case "--duration":
+                    generator.setDurationSeconds(Long.parseLong(value));
+                    break;
+                case "--in-process":
+                    inProcessReactors = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i - 1]);
+            }
+        }
+        if (!endpoints.isEmpty()) {
+            generator.clientConfig.setEndpoints(endpoints);
+        }
+        if (inProcessReactors >= 0) {
+            generator.setInProcessServer(new ServerConfig().setReactorThreads(inProcessReactors)
+                    .setPort(generator.clientConfig.getEndpoints().get(0).getPort()));
+        }
+        return generator;
+    }
+
+    /**
+     * Run the load for the configured duration, wait for the last responses, then print the report
+     * @throws Exception if the server can't be reached
+     */
+    public void run() throws Exception {
+        if (inProcessServer == null) {
+            generate();
+            return;
+        }
+        try (var server = new Server(inProcessServer)) {
+            var serverThread = new Thread(() -> {
+                try {
+                    server.startServer();
+                } catch (IOException e) {
+                    Log.error("The in-process server has crashed", e);
+                }
+            }, "in-process-server");
+            serverThread.setDaemon(true);
+            serverThread.start();
+            generate();
+        }
+    }
+
+    private void generate() throws Exception {
+        try (var asyncClient = new AsyncClient(clientConfig)) {
+            client = asyncClient;
+            scheduler = Executors.newSingleThreadScheduledExecutor();
+            var simulated = new ArrayList<User>(users);
+            for (int i = 0; i < users; i++) {
+                simulated.add(new User());
+            }
+
+            var start = System.nanoTime();
+            var end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+            if (mode == Mode.CLOSED_LOOP) {
+                for (var user : simulated) {
+                    user.nextIntended = start;
+                    user.send(start);
+                }
+                LockSupport.parkNanos(end - System.nanoTime());
+            } else {
+                openLoop(simulated, start, end);
+            }
+            stopping = true;
+            var elapsed = System.nanoTime() - start;
+
+            // let the last queries come back, and the queued arrivals go out, so they are counted with their full
+            // latency
+            var drained = new CountDownLatch(1);
+            var wait = scheduler.scheduleAtFixedRate(() -> {
+                if (outstanding.get() == 0) {
+                    drained.countDown();
+                }
+            }, 0, 10, TimeUnit.MILLISECONDS);
+            drained.await(10, TimeUnit.SECONDS);
+            wait.cancel(false);
+            scheduler.shutdownNow();
+            var now = System.nanoTime();
+            for (var user : simulated) {
+                abandoned += user.abandon(now);
+            }
+            report(elapsed, now - start);
+        }
+    }
+
+    /**
+     * Generate the arrivals at the fixed rate, round-robin over the users, catching up on any that are late
+     */
+    private void openLoop(@NotNull List<User> simulated, long start, long end) {
+        var interval = 1e9 / rate;
+        long arrivals = 0;
+        while (true) {
+            var now = System.nanoTime();
+            if (now - end >= 0) {
+                return;
+            }
+            long intended;
+            while ((intended = start + (long) (arrivals * interval)) - now <= 0) {
+                simulated.get((int) (arrivals % simulated.size())).arrive(intended);
+                arrivals++;
+            }
+            LockSupport.parkNanos(intended - now);
+        }
+    }
+
+    /**
+     * @param elapsedNanos how long the load was generated for
+     * @param drainedNanos how long until the last queries came back, which the throughput is measured over
+     */
+    private void report(long elapsedNanos, long drainedNanos) {
+        var seconds = elapsedNanos / 1e9;
+        System.out.println(String.format(Locale.ROOT, "%s, %d users, %d rounds per session, %.1f s%s",
+                mode == Mode.CLOSED_LOOP ? "Closed loop" : "Open loop", users, roundsPerUser, seconds,
+                mode == Mode.OPEN_LOOP ? String.format(Locale.ROOT, ", target %.0f req/s", rate)
+                        : thinkMillis > 0 ? ", think time " + thinkMillis + " ms" : ""));
+        System.out.println(String.format(Locale.ROOT, "requests %d  errors %d  throughput %.1f req/s",
+                completed.get(), errors.get(), completed.get() / (drainedNanos / 1e9)));
+        responseTimes.printPercentiles(System.out, "response time");
+        serviceTimes.printPercentiles(System.out, "service time");
+        if (outstanding.get() > 0) {
+            System.out.println(outstanding.get() + " queries never came back");
+        }
+        if (abandoned > 0) {
+            System.out.println(abandoned + " queued queries were never sent, counted with the time they had waited");
+        }
+    }
+}
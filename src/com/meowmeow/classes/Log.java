@@ -0,0 +1,269 @@
+package com.meowmeow.classes;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <h3>Log class</h3>
+ * <p>The server's logging: leveled, and asynchronous so the I/O threads never wait on the console.</p>
+ * <p>
+ *     A log call only stores its level, its template and up to two arguments in a preallocated ring of slots;
+ *     a background thread formats them and writes them to stdout through a buffered writer. Below the level,
+ *     a call returns straight away, before anything is built. The templates use {@code {}} for the arguments,
+ *     and a {@link Throwable} as the last argument gets its stack trace printed.
+ * </p>
+ * <p>
+ *     If the ring is full the line is dropped instead of waiting for room, and the number of dropped lines
+ *     is logged once there is room again. The lines of different threads come out in the order they claimed
+ *     their slots.
+ * </p>
+ */
+public final class Log {
+    /**
+     * How much is logged, each level includes the ones after it
+     */
+    public enum Level {
+        /** Every query and response, every select */
+        DEBUG,
+        /** Starting, stopping, recovering */
+        INFO,
+        /** Something odd which the server got over, like a client crashing */
+        WARN,
+        /** Something broken */
+        ERROR,
+        /** Nothing at all */
+        OFF
+    }
+
+    /** A power of two */
+    private static final int CAPACITY = 1 << 13;
+
+    private static final int MASK = CAPACITY - 1;
+
+    /** How long the writer sleeps when there is nothing to write */
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss.SSS")
+            .withZone(ZoneId.systemDefault());
+
+    private static volatile Level level = Level.INFO;
+
+    // the slots, written by the thread which claimed them before they are published
+    private static final Level[] levels = new Level[CAPACITY];
+
+    private static final String[] templates = new String[CAPACITY];
+
+    private static final Object[] firstArgs = new Object[CAPACITY], secondArgs = new Object[CAPACITY];
+
+    private static final String[] threadNames = new String[CAPACITY];
+
+    private static final long[] times = new long[CAPACITY];
+
+    /** The sequence each slot has been published for, plus one. Publishing is what hands the slot to the writer */
+    private static final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+
+    /** The next sequence to claim */
+    private static final AtomicLong tail = new AtomicLong();
+
+    /** The next sequence to write, only moved by the writer */
+    private static final AtomicLong head = new AtomicLong();
+
+    /** The sequences before this one are out of the writer's buffer */
+    private static volatile long flushed = 0;
+
+    private static final LongAdder dropped = new LongAdder();
+
+    static {
+        var writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private Log() {}
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    /**
+     * @param level the lowest level which is logged
+     */
+    public static void setLevel(@NotNull Level level) {
+        Log.level = level;
+    }
+
+    /**
+     * @return whether something of that level would be logged. Only needed to skip computing the arguments
+     */
+    public static boolean isEnabled(@NotNull Level level) {
+        return level.compareTo(Log.level) >= 0;
+    }
+
+    /**
+     * @return the number of lines dropped because the ring was full, since the start
+     */
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    public static void debug(@NotNull String template) {
+        log(Level.DEBUG, template, null, null);
+    }
+
+    public static void debug(@NotNull String template, @Nullable Object arg) {
+        log(Level.DEBUG, template, arg, null);
+    }
+
+    public static void debug(@NotNull String template, @Nullable Object first, @Nullable Object second) {
+        log(Level.DEBUG, template, first, second);
+    }
+
+    public static void info(@NotNull String template) {
+        log(Level.INFO, template, null, null);
+    }
+
+    public static void info(@NotNull String template, @Nullable Object arg) {
+        log(Level.INFO, template, arg, null);
+    }
+
+    public static void info(@NotNull String template, @Nullable Object first, @Nullable Object second) {
+        log(Level.INFO, template, first, second);
+    }
+
+    public static void warn(@NotNull String template) {
+        log(Level.WARN, template, null, null);
+    }
+
+    public static void warn(@NotNull String template, @Nullable Object arg) {
+        log(Level.WARN, template, arg, null);
+    }
+
+    public static void warn(@NotNull String template, @Nullable Object first, @Nullable Object second) {
+        log(Level.WARN, template, first, second);
+    }
+
+    public static void error(@NotNull String template) {
+        log(Level.ERROR, template, null, null);
+    }
+
+    public static void error(@NotNull String template, @Nullable Object arg) {
+        log(Level.ERROR, template, arg, null);
+    }
+
+    public static void error(@NotNull String template, @Nullable Object first, @Nullable Object second) {
+        log(Level.ERROR, template, first, second);
+    }
+
+    private static void log(@NotNull Level lineLevel, @NotNull String template, @Nullable Object first,
+                            @Nullable Object second) {
+        if (!isEnabled(lineLevel)) {
+            return;
+        }
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence - head.get() >= CAPACITY) {
+                // full: losing a line beats stalling an I/O thread
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+
+        var slot = (int) sequence & MASK;
+        levels[slot] = lineLevel;
+        templates[slot] = template;
+        firstArgs[slot] = first;
+        secondArgs[slot] = second;
+        threadNames[slot] = Thread.currentThread().getName();
+        times[slot] = System.currentTimeMillis();
+        published.set(slot, sequence + 1);
+    }
+
+    /**
+     * Wait until the lines logged so far have been written, or a second at most
+     */
+    public static void flush() {
+        var target = tail.get();
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (flushed < target && System.nanoTime() - deadline < 0) {
+            LockSupport.parkNanos(IDLE_NANOS);
+        }
+    }
+
+    /**
+     * The writer thread: format the published slots in order, and flush stdout whenever it catches up
+     */
+    private static void writeLoop() {
+        var out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), 1 << 16), false);
+        var line = new StringBuilder(256);
+        var reportedDrops = 0L;
+        while (true) {
+            var sequence = head.get();
+            var slot = (int) sequence & MASK;
+            if (published.get(slot) != sequence + 1) {
+                var drops = dropped.sum();
+                if (drops != reportedDrops) {
+                    out.println("Log is overloaded, dropped " + (drops - reportedDrops) + " lines");
+                    reportedDrops = drops;
+                }
+                out.flush();
+                flushed = sequence;
+                LockSupport.parkNanos(IDLE_NANOS);
+                continue;
+            }
+
+            line.setLength(0);
+            TIME_FORMAT.formatTo(Instant.ofEpochMilli(times[slot]), line);
+            line.append(' ').append(levels[slot]).append(" [").append(threadNames[slot]).append("] ");
+            var thrown = format(line, templates[slot], firstArgs[slot], secondArgs[slot]);
+            out.println(line);
+            if (thrown != null) {
+                thrown.printStackTrace(out);
+            }
+
+            // let go of the arguments before handing the slot back
+            templates[slot] = null;
+            firstArgs[slot] = null;
+            secondArgs[slot] = null;
+            head.set(sequence + 1);
+        }
+    }
+
+    /**
+     * Fill the template's {@code {}} with the arguments
+     * @return the last argument if it is a {@link Throwable} which has no {@code {}} of its own, otherwise null
+     */
+    @Nullable
+    private static Throwable format(@NotNull StringBuilder line, @NotNull String template, @Nullable Object first,
+                                    @Nullable Object second) {
+        var args = 0;
+        var start = 0;
+        int found;
+        while ((found = template.indexOf("{}", start)) >= 0 && args < 2) {
+            line.append(template, start, found).append(args == 0 ? first : second);
+            args++;
+            start = found + 2;
+        }
+        line.append(template, start, template.length());
+
+        var last = second != null ? second : first;
+        var lastUsed = second != null ? args >= 2 : args >= 1;
+        return last instanceof Throwable && !lastUsed ? (Throwable) last : null;
+    }
+}
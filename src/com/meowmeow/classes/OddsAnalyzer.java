@@ -0,0 +1,359 @@
+package com.meowmeow.classes;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * <h3>Odds Analyzer class</h3>
+ * <p>Works out the win, draw and loss probabilities of a game, and the expected value of a bet, by the rules of
+ * {@link Score}.</p>
+ * <p>
+ *     A deal is the 6 cards in the order they come off the deck: the client gets the 1st, 3rd and 5th, the server
+ *     the others. The order matters, since the running point keeps an exact 10 (8 then 12 is a 10, 12 then 8 is
+ *     a 0). There are two modes:
+ * </p>
+ * <ul>
+ *     <li>
+ *         <strong>Exact</strong> - goes through all 52 x 51 x 50 x 49 x 48 x 47 deals. Every ordered 3-card hand
+ *         is scored once with a {@link Score}, then the client's hands are split over a fork/join pool. For each
+ *         client hand, the server hands are tallied by rank: all of them, minus the ones sharing a card with the
+ *         client's, found by going through every hand. The counts below, equal to and above every client rank
+ *         then give the outcome of all of its deals at once, down to the stage of the rules which decided it
+ *     </li>
+ *     <li>
+ *         <strong>Monte Carlo</strong> - deals random rounds with the {@link Deck} of every fork/join thread, the
+ *         way a game does, and reports the same figures with their standard error
+ *     </li>
+ * </ul>
+ * <p>
+ *     A win pays the bet, a loss takes it and a draw gives it back, so the expected value per unit bet is
+ *     P(win) - P(loss), and the house edge is the opposite.
+ * </p>
+ */
+public class OddsAnalyzer {
+    /**
+     * How the deals are counted
+     */
+    public enum Mode {
+        EXACT, MONTE_CARLO
+    }
+
+    private static final int DECK = 52, HAND = 3;
+
+    /** Every rank is below that: the point goes up to 10, and takes the bits from 8 up */
+    private static final int RANKS = 11 << 8;
+
+    /** The client hands of an exact task, or the samples of a Monte Carlo one, before it splits no further */
+    private static final int EXACT_LEAF = 64, SAMPLES_LEAF = 1 << 20;
+
+    private Mode mode = Mode.EXACT;
+
+    private long samples = 100_000_000L;
+
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The outcomes of a number of deals, from the client's side. The wins and losses are split by the stage
+     * which decided them: the point, the suit point, then the Ace of Diamonds
+     */
+    static final class Tally {
+        final long[] wins = new long[3], losses = new long[3];
+        long draws = 0;
+
+        void add(@NotNull Tally tally) {
+            for (int stage = 0; stage < 3; stage++) {
+                wins[stage] += tally.wins[stage];
+                losses[stage] += tally.losses[stage];
+            }
+            draws += tally.draws;
+        }
+
+        void add(int clientRank, int serverRank) {
+            var winState = HandEvaluator.compare(clientRank, serverRank);
+            if (winState == 0) {
+                draws++;
+            } else if (winState > 0) {
+                wins[stage(clientRank, serverRank)]++;
+            } else {
+                losses[stage(clientRank, serverRank)]++;
+            }
+        }
+
+        private static int stage(int rank, int opponent) {
+            if (HandEvaluator.point(rank) != HandEvaluator.point(opponent)) {
+                return 0;
+            }
+            return HandEvaluator.suitPoint(rank) != HandEvaluator.suitPoint(opponent) ? 1 : 2;
+        }
+
+        long wins() {
+            return wins[0] + wins[1] + wins[2];
+        }
+
+        long losses() {
+            return losses[0] + losses[1] + losses[2];
+        }
+
+        long total() {
+            return wins() + losses() + draws;
+        }
+    }
+
+    /**
+     * Every distinct 3-card hand, as a bit mask of its cards, with the ranks of its 6 orders
+     */
+    private static final class Hands {
+        final int size;
+        final long[] masks;
+        final int[] ranks;
+        /** The number of ordered hands of every rank */
+        final int[] all = new int[RANKS];
+
+        Hands() {
+            size = DECK * (DECK - 1) * (DECK - 2) / 6;
+            masks = new long[size];
+            ranks = new int[size * 6];
+            var hand = 0;
+            for (int a = 0; a < DECK; a++) {
+                for (int b = a + 1; b < DECK; b++) {
+                    for (int c = b + 1; c < DECK; c++) {
+                        masks[hand] = 1L << a | 1L << b | 1L << c;
+                        var orders = new int[][]{{a, b, c}, {a, c, b}, {b, a, c}, {b, c, a}, {c, a, b}, {c, b, a}};
+                        for (int order = 0; order < 6; order++) {
+                            var rank = score(orders[order]);
+                            ranks[hand * 6 + order] = rank;
+                            all[rank]++;
+                        }
+                        hand++;
+                    }
+                }
+            }
+        }
+
+        private static int score(int[] cards) {
+            var score = new Score();
+            for (var card : cards) {
+                score.setPoint(Card.fromCode(card));
+            }
+            return score.getRank();
+        }
+    }
+
+    /**
+     * The deals of a range of client hands
+     */
+    private static final class ExactTask extends RecursiveTask<Tally> {
+        private static final long serialVersionUID = 1L;
+
+        private final Hands hands;
+        private final int from, to;
+
+        ExactTask(@NotNull Hands hands, int from, int to) {
+            this.hands = hands;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Tally compute() {
+            if (to - from > EXACT_LEAF) {
+                var middle = (from + to) >>> 1;
+                var left = new ExactTask(hands, from, middle);
+                left.fork();
+                var tally = new ExactTask(hands, middle, to).compute();
+                tally.add(left.join());
+                return tally;
+            }
+
+            var tally = new Tally();
+            var counts = new int[RANKS];
+            // below[rank] is the number of server hands ranked below it
+            var below = new long[RANKS + 1];
+            for (int client = from; client < to; client++) {
+                System.arraycopy(hands.all, 0, counts, 0, RANKS);
+                var mask = hands.masks[client];
+                for (int server = 0; server < hands.size; server++) {
+                    if ((hands.masks[server] & mask) != 0) {
+                        for (int order = 0; order < 6; order++) {
+                            counts[hands.ranks[server * 6 + order]]--;
+                        }
+                    }
+                }
+                for (int rank = 0; rank < RANKS; rank++) {
+                    below[rank + 1] = below[rank] + counts[rank];
+                }
+
+                var total = below[RANKS];
+                for (int order = 0; order < 6; order++) {
+                    var rank = hands.ranks[client * 6 + order];
+                    // the same point, then the same suit point too
+                    var point = rank & ~0xFF;
+                    var suitPoint = rank & ~1;
+                    tally.wins[0] += below[point];
+                    tally.wins[1] += below[suitPoint] - below[point];
+                    tally.wins[2] += below[rank] - below[suitPoint];
+                    tally.draws += below[rank + 1] - below[rank];
+                    tally.losses[2] += below[suitPoint + 2] - below[rank + 1];
+                    tally.losses[1] += below[point + 0x100] - below[suitPoint + 2];
+                    tally.losses[0] += total - below[point + 0x100];
+                }
+            }
+            return tally;
+        }
+    }
+
+    /**
+     * A number of random deals
+     */
+    private static final class SampleTask extends RecursiveTask<Tally> {
+        private static final long serialVersionUID = 1L;
+
+        private final long samples;
+
+        SampleTask(long samples) {
+            this.samples = samples;
+        }
+
+        @Override
+        protected Tally compute() {
+            if (samples > SAMPLES_LEAF) {
+                var half = samples / 2;
+                var left = new SampleTask(half);
+                left.fork();
+                var tally = new SampleTask(samples - half).compute();
+                tally.add(left.join());
+                return tally;
+            }
+
+            var tally = new Tally();
+            var deck = Deck.current();
+            var cards = new int[2 * HAND];
+            for (long i = 0; i < samples; i++) {
+                deck.deal(cards, 2 * HAND);
+                tally.add(HandEvaluator.evaluate(cards[0], cards[2], cards[4]),
+                        HandEvaluator.evaluate(cards[1], cards[3], cards[5]));
+            }
+            return tally;
+        }
+    }
+
+    public OddsAnalyzer setMode(@NotNull Mode mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    /**
+     * @param samples Monte Carlo: the number of random deals
+     * @return this analyzer
+     */
+    public OddsAnalyzer setSamples(long samples) {
+        if (samples < 1) {
+            throw new IllegalArgumentException("At least one sample is needed");
+        }
+        this.samples = samples;
+        return this;
+    }
+
+    /**
+     * @param parallelism the number of fork/join threads, the number of cores by default
+     * @return this analyzer
+     */
+    public OddsAnalyzer setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("At least one thread is needed");
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Read the settings from the command line. The accepted options are:
+     * <ul>
+     *     <li>{@code --mode exact|monte-carlo} - exact by default</li>
+     *     <li>{@code --samples <number>} - Monte Carlo deals, 100000000 by default</li>
+     *     <li>{@code --parallelism <number>} - fork/join threads, the number of cores by default</li>
+     * </ul>
+     * @param args the arguments of {@code main()}
+     * @return the analyzer
+     * @throws IllegalArgumentException if an option is unknown or has no value
+     */
+    @NotNull
+    public static OddsAnalyzer fromArgs(@NotNull String[] args) {
+        var analyzer = new OddsAnalyzer();
+        for (int i = 0; i < args.length; i++) {
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            }
+            var value = args[++i];
+            switch (args[i - 1]) {
+                case "--mode":
+                    if (value.equals("exact")) {
+                        analyzer.setMode(Mode.EXACT);
+                    } else if (value.equals("monte-carlo")) {
+                        analyzer.setMode(Mode.MONTE_CARLO);
+                    } else {
+                        throw new IllegalArgumentException("Unknown mode " + value);
+                    }
+                    break;
+                case "--samples":
+                    analyzer.setSamples(Long.parseLong(value));
+                    break;
+                case "--parallelism":
+                    analyzer.setParallelism(Integer.parseInt(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i - 1]);
+            }
+        }
+        return analyzer;
+    }
+
+    /**
+     * Count the deals and print the odds
+     */
+    public void run() {
+        var start = System.nanoTime();
+        var pool = new ForkJoinPool(parallelism);
+        Tally tally;
+        try {
+            if (mode == Mode.EXACT) {
+                var hands = new Hands();
+                tally = pool.invoke(new ExactTask(hands, 0, hands.size));
+            } else {
+                tally = pool.invoke(new SampleTask(samples));
+            }
+        } finally {
+            pool.shutdown();
+        }
+        report(tally, System.nanoTime() - start);
+    }
+
+    private void report(@NotNull Tally tally, long elapsedNanos) {
+        var total = (double) tally.total();
+        System.out.println(String.format(Locale.ROOT, "%s, %d deals, %d threads, %.1f s",
+                mode == Mode.EXACT ? "Exact" : "Monte Carlo", tally.total(), parallelism, elapsedNanos / 1e9));
+        var stages = new String[]{"point", "suit point", "Ace of Diamonds"};
+        for (int stage = 0; stage < 3; stage++) {
+            System.out.println(String.format(Locale.ROOT, "  %-18s wins %14d (%.9f)  losses %14d (%.9f)",
+                    "by " + stages[stage], tally.wins[stage], tally.wins[stage] / total,
+                    tally.losses[stage], tally.losses[stage] / total));
+        }
+        var win = tally.wins() / total;
+        var loss = tally.losses() / total;
+        var draw = tally.draws / total;
+        System.out.println(String.format(Locale.ROOT, "P(win) %.9f  P(draw) %.9f  P(loss) %.9f", win, draw, loss));
+
+        var expectedValue = win - loss;
+        var error = "";
+        if (mode == Mode.MONTE_CARLO) {
+            // every deal pays 1, 0 or -1
+            var variance = win + loss - expectedValue * expectedValue;
+            error = String.format(Locale.ROOT, " +- %.9f", Math.sqrt(variance / total));
+        }
+        System.out.println(String.format(Locale.ROOT, "expected value per unit bet %+.9f%s  house edge %+.9f%s",
+                expectedValue, error, 0.0 - expectedValue, error));
+    }
+}
@@ -0,0 +1,241 @@
+package com.meowmeow.classes;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * <h3>Query Dispatcher class</h3>
+ * <p>Turns the queries of a {@link Connection} into responses, whichever thread model serves the connection.</p>
+ * <p>
+ *     A dispatcher is used by a single thread at a time: a {@link Reactor} has one for all of its connections,
+ *     a {@link BlockingSession} has its own. Everything a query needs apart from the wallets (the round, the decoded
+ *     frame, the scratch array) belongs to the dispatcher, so serving a query doesn't allocate them.
+ * </p>
+ * <p>
+ *     The responses go to a {@link ResponseOutput}: the connection itself, or the buffer of a {@link WorkerPool}
+ *     job when a reactor only decodes the queries and leaves the games to the workers.
+ * </p>
+ */
+class QueryDispatcher {
+    private final Server server;
+
+    private final ServerMetrics metrics;
+
+    private final AdmissionControl admission;
+
+    /** Reused for every query */
+    private final GameRound round = new GameRound();
+
+    private final BinaryProtocol.Request request = new BinaryProtocol.Request();
+
+    private final byte[] queryScratch = new byte[Connection.BUFFER_SIZE];
+
+    /** The number of queries served. Read racily by the stats */
+    private long requestsServed = 0;
+
+    QueryDispatcher(@NotNull Server server) {
+        this.server = server;
+        this.metrics = server.getMetrics();
+        this.admission = server.getAdmission();
+    }
+
+    long getRequestsServed() {
+        return requestsServed;
+    }
+
+    /**
+     * Serve the next complete query in the connection's buffer. A multi-round query only starts its batch, see
+     * {@link #continueBatch(ResponseOutput, Batch, int)}
+     *
+     * @param connection the client's connection
+     * @return true if a query has been served, false if no complete query has arrived yet
+     * @throws IOException if the client has sent an oversized binary frame
+     */
+    boolean serveNext(@NotNull Connection connection) throws IOException {
+        if (connection.isBinary()) {
+            if (!connection.nextRequest(request)) {
+                return false;
+            }
+            serveBinary(connection, request, connection);
+            return true;
+        }
+
+        // the query comes out lowercased already
+        var query = connection.nextQuery(queryScratch);
+        if (query == null) {
+            return false;
+        }
+        serveText(connection, query, connection);
+        return true;
+    }
+
+    /**
+     * Serve a decoded binary frame. A multi-round query only starts its batch
+     *
+     * @param connection the client's connection, for its batch and its address
+     * @param request the frame
+     * @param output where the response goes
+     */
+    void serveBinary(@NotNull Connection connection, @NotNull BinaryProtocol.Request request,
+                     @NotNull ResponseOutput output) {
+        requestsServed++;
+        if (request.opcode != BinaryProtocol.QUIT_GAME && request.opcode != BinaryProtocol.BALANCE
+                && !admission.admitPeer(connection.peer)) {
+            round.reset();
+            round.status = BinaryProtocol.STATUS_RATE_LIMITED;
+            BinaryProtocol.encodeResponse(
+                    output.outbound(BinaryProtocol.HEADER_LENGTH + BinaryProtocol.RESPONSE_LENGTH),
+                    request.opcode, round);
+            return;
+        }
+        var start = System.nanoTime();
+        boolean batchStarted;
+        try {
+            batchStarted = server.binarySession(request, round, connection.getBatch());
+        } catch (RuntimeException e) {
+            Log.error("A query has crashed", e);
+            round.reset();
+            round.status = BinaryProtocol.STATUS_INVALID_QUERY;
+            batchStarted = false;
+        }
+        if (!batchStarted) {
+            metrics.recordCommand(request.opcode, System.nanoTime() - start);
+            // the refusals of the admission control and the redirects are counted on their own
+            if (round.status != BinaryProtocol.STATUS_OK && round.status < BinaryProtocol.STATUS_BUSY) {
+                metrics.errors.increment();
+            }
+            BinaryProtocol.encodeResponse(
+                    output.outbound(BinaryProtocol.HEADER_LENGTH + BinaryProtocol.RESPONSE_LENGTH),
+                    request.opcode, round);
+        }
+    }
+
+    /**
+     * Serve a text query. A multi-round query only starts its batch
+     *
+     * @param connection the client's connection, for its batch, its address and its protocol
+     * @param query the query, lowercased
+     * @param output where the response goes
+     */
+    void serveText(@NotNull Connection connection, @NotNull String query, @NotNull ResponseOutput output) {
+        var batch = connection.getBatch();
+        requestsServed++;
+        Log.debug("Read query: {}", query);
+        String response;
+        if (query.equals(BinaryProtocol.UPGRADE_QUERY)) {
+            // everything after this query is binary
+            connection.upgradeToBinary();
+            response = BinaryProtocol.UPGRADE_RESPONSE;
+        } else if (query.equals("server-stats")) {
+            response = server.serverStats();
+        } else if (query.equals("server-metrics")) {
+            response = server.serverMetrics();
+        } else if (query.equals("promote")) {
+            response = server.promote();
+        } else if (query.startsWith("join-table ") || query.startsWith("leave-table ")) {
+            try {
+                response = server.tableSession(query, connection);
+            } catch (IllegalGameQueryException e) {
+                response = e.getMessage();
+                metrics.errors.increment();
+            } catch (RuntimeException e) {
+                response = crashed(e);
+            }
+        } else if (isLimited(query) && !admission.admitPeer(connection.peer)) {
+            response = AdmissionControl.RATE_LIMITED_RESPONSE;
+        } else {
+            var start = System.nanoTime();
+            try {
+                response = server.gameSession(query, round, batch);
+            } catch (IllegalGameQueryException e) {
+                response = e.getMessage();
+                metrics.errors.increment();
+            } catch (RuntimeException e) {
+                response = crashed(e);
+            }
+            if (response != null || !batch.open) {
+                metrics.recordCommand(ServerMetrics.textCommand(query), System.nanoTime() - start);
+            }
+        }
+        if (response != null) {
+            Log.debug("Sending to client: {}", response);
+            output.writeText(response);
+        } else if (!batch.open) {
+            // a single round, straight into the buffer
+            if (Log.isEnabled(Log.Level.DEBUG)) {
+                Log.debug("Sending to client: {}", server.roundText(round));
+            }
+            TextProtocol.encodeRound(output.outbound(TextProtocol.MAX_ROUND_LENGTH), round);
+            output.endText();
+        }
+    }
+
+    /**
+     * Play the next chunk of a batch, streaming every round to the client unless only the summary was asked for.
+     * Once the batch is over, its summary ends the response
+     *
+     * @param output where the rounds go: the client's connection, or a job's buffer
+     * @param batch the connection's open batch
+     * @param chunk the most rounds to play in one go
+     * @return true if the batch is over, false if it has to carry on later
+     */
+    boolean continueBatch(@NotNull ResponseOutput output, @NotNull Batch batch, int chunk) {
+        for (int i = 0; i < chunk && batch.isActive(); i++) {
+            if (output.isBacklogged()) {
+                return false;
+            }
+            server.playBatchRound(batch, round);
+            if (batch.summary) {
+                continue;
+            }
+            if (batch.binary) {
+                BinaryProtocol.encodeResponse(
+                        output.outbound(BinaryProtocol.HEADER_LENGTH + BinaryProtocol.RESPONSE_LENGTH),
+                        BinaryProtocol.NEW_GAME_ROUNDS, round);
+            } else if (round.status == BinaryProtocol.STATUS_OK) {
+                TextProtocol.encodeBatchRound(output.outbound(TextProtocol.MAX_ROUND_LENGTH), batch.played,
+                        round);
+            }
+        }
+        if (batch.isActive()) {
+            return false;
+        }
+
+        if (batch.binary) {
+            if (batch.summary) {
+                BinaryProtocol.encodeSummary(
+                        output.outbound(BinaryProtocol.HEADER_LENGTH + BinaryProtocol.SUMMARY_LENGTH), batch);
+            }
+        } else {
+            var summary = server.batchSummary(batch);
+            Log.debug("Sending to client: {}", summary);
+            output.appendText(summary);
+            output.endText();
+        }
+        admission.finishBatch(batch);
+        batch.open = false;
+        return true;
+    }
+
+    /**
+     * A bug shouldn't take the whole thread down with the connections it serves: answer the query as an invalid one
+     * @param e what the query has thrown
+     * @return the response to the query
+     */
+    @NotNull
+    private String crashed(@NotNull RuntimeException e) {
+        Log.error("A query has crashed", e);
+        metrics.errors.increment();
+        return new IllegalGameQueryException().getMessage();
+    }
+
+    /**
+     * @return whether a text query counts against the rate limit of the client's address: the games and the new
+     * users
+     */
+    private static boolean isLimited(@NotNull String query) {
+        var command = ServerMetrics.textCommand(query);
+        return command == BinaryProtocol.NEW_GAME || command == BinaryProtocol.NEW_USER;
+    }
+}
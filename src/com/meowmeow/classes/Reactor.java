@@ -0,0 +1,525 @@
+package com.meowmeow.classes;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <h3>Reactor class</h3>
+ * <p>An I/O thread of the {@link Server}, with its own {@link Selector} and its own set of connections.</p>
+ * <p>
+ *     The connections are handed over by the acceptor through {@link #assign(SocketChannel)}, and from then on
+ *     only this reactor touches them. The reactor's {@link QueryDispatcher} serves all of them, so reactors never
+ *     have to wait for each other.
+ * </p>
+ * <p>
+ *     The results of the {@link TableDealer}'s rounds come in through {@link #deliver(TableDealer.Delivery)}, one
+ *     delivery per tick for all of the reactor's players, and are written to the connections by the reactor itself.
+ * </p>
+ * <p>
+ *     With a {@link WorkerPool}, the reactor only cuts the queries and hands them over, and the results come back
+ *     through {@link #complete(WorkerPool.Job)}. The games never hold up the reads and writes of the other
+ *     connections, however long they take.
+ * </p>
+ */
+class Reactor implements Runnable {
+    /** The number of batch rounds a connection gets to play before the other connections get their turn */
+    static final int BATCH_CHUNK = 256;
+
+    private final Server server;
+
+    private final BufferPool bufferPool;
+
+    private final Selector selector = Selector.open();
+
+    private final ConcurrentLinkedQueue<SocketChannel> assigned = new ConcurrentLinkedQueue<>();
+
+    private final ConcurrentLinkedQueue<TableDealer.Delivery> deliveries = new ConcurrentLinkedQueue<>();
+
+    /** Serves the queries instead of the reactor's own dispatcher, null to serve them right here */
+    @Nullable
+    private final WorkerPool workers;
+
+    /** The jobs back from the workers */
+    private final ConcurrentLinkedQueue<WorkerPool.Job> completions = new ConcurrentLinkedQueue<>();
+
+    /** Whether the selector has already been woken up since the reactor last looked at the completions */
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+
+    /** Where the queries are cut for the workers */
+    private final byte[] queryScratch = new byte[Connection.BUFFER_SIZE];
+
+    /** Serves the queries of every connection, each reactor only has a single thread */
+    private final QueryDispatcher dispatcher;
+
+    /** The heap bytes allocated while serving the queries. Read racily by the stats */
+    private long bytesAllocated = 0;
+
+    /** Connections with a batch or queries left over, because they had their fair share of the reactor */
+    private final ArrayDeque<SelectionKey> resumable = new ArrayDeque<>();
+
+    private volatile Thread thread;
+
+    private volatile boolean closing = false;
+
+    /** Set once the event loop is over, whether closed or crashed */
+    private volatile boolean exited = false;
+
+    Reactor(@NotNull Server server, @NotNull BufferPool bufferPool) throws IOException {
+        this.server = server;
+        this.bufferPool = bufferPool;
+        this.dispatcher = new QueryDispatcher(server);
+        this.workers = server.getWorkers();
+    }
+
+    Selector getSelector() {
+        return selector;
+    }
+
+    long getRequestsServed() {
+        return dispatcher.getRequestsServed();
+    }
+
+    long getBytesAllocated() {
+        return bytesAllocated;
+    }
+
+    /**
+     * @return false once the reactor's thread has exited, after which it serves no new connection
+     */
+    boolean isRunning() {
+        return !exited;
+    }
+
+    /**
+     * Hand a freshly accepted connection over to this reactor. Safe to call from any thread
+     * @param socketChannel the accepted channel
+     */
+    void assign(@NotNull SocketChannel socketChannel) {
+        assigned.add(socketChannel);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Hand the table results of some of this reactor's connections over, to be written by the reactor. Safe to call
+     * from any thread
+     * @param delivery the results
+     */
+    void deliver(@NotNull TableDealer.Delivery delivery) {
+        deliveries.add(delivery);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Give a job back from the workers, for the reactor to write its responses. Safe to call from any thread
+     * @param job the served job
+     */
+    void complete(@NotNull WorkerPool.Job job) {
+        completions.add(job);
+        // the reactor takes every completion at once, so one wake-up will do for all of them
+        if (!wakeupPending.getAndSet(true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * The event loop: wait for events, register the newly assigned connections and serve the ready ones
+     */
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        try {
+            while (!closing) {
+                registerAssigned();
+                writeDeliveries();
+                writeCompletions();
+
+                // reactor is ready - but don't wait for events if some work is left over
+                Log.debug("Server is waiting for events...");
+                var select = resumable.isEmpty() ? selector.select() : selector.selectNow();
+                Log.debug("Received {} events", select);
+                server.getMetrics().selects.increment();
+                server.getMetrics().events.add(select);
+
+                //get all the keys from selector, and loop through each of them
+                var keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    var key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        server.acceptRequest(key);
+                        continue;
+                    }
+                    if (key.isWritable()) {
+                        flushRequest(key);
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        var allocatedBefore = AllocationMeter.allocatedBytes();
+                        processRequest(key);
+                        bytesAllocated += AllocationMeter.allocatedSince(allocatedBefore);
+                    }
+                }
+                resumeLeftovers();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (!closing) {
+                Log.error("The reactor has crashed", e);
+            }
+        } catch (RuntimeException e) {
+            Log.error("The reactor has crashed", e);
+        } finally {
+            exited = true;
+            shutdown();
+        }
+    }
+
+    /**
+     * Register the "ready-to-read" operation of every newly assigned connection, with a {@link Connection}
+     * attached to keep track of the partially received queries
+     */
+    private void registerAssigned() {
+        SocketChannel socketChannel;
+        while ((socketChannel = assigned.poll()) != null) {
+            var peer = server.getAdmission().open(socketChannel);
+            if (peer == null) {
+                continue;
+            }
+            Connection connection = null;
+            try {
+                socketChannel.configureBlocking(false);
+                connection = new Connection(socketChannel, bufferPool, server.getMetrics());
+                connection.peer = peer;
+                connection.reactor = this;
+                socketChannel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                Log.warn("Weird crash but ok");
+                if (connection != null) {
+                    // gives the admission slot and the buffers back too
+                    connection.close();
+                    continue;
+                }
+                // also gives the slot of --max-connections back
+                peer.release(null);
+                try {
+                    socketChannel.close();
+                } catch (IOException ignored) {
+                    // closing anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the table results handed over since the last round of events, each one as a response of its own
+     * between the connection's other responses. A result is dropped if the connection is too far behind, or if
+     * it is in the middle of a batch, whose response can't be cut in two
+     */
+    private void writeDeliveries() {
+        TableDealer.Delivery delivery;
+        while ((delivery = deliveries.poll()) != null) {
+            var start = 0;
+            for (int i = 0; i < delivery.connections.length; i++) {
+                var connection = delivery.connections[i];
+                var end = delivery.ends[i];
+                var key = connection.getSocketChannel().keyFor(selector);
+                if (key == null || !key.isValid() || connection.isBinary()) {
+                    // gone, or has switched to the binary protocol since it sat down
+                } else if (connection.isBacklogged() || isStreaming(connection)) {
+                    server.getMetrics().droppedPushes.increment();
+                } else {
+                    connection.outbound(end - start).put(delivery.bytes, start, end - start);
+                    try {
+                        updateInterest(key, connection.flush());
+                    } catch (IOException e) {
+                        Log.warn("Weird crash but ok");
+                        closeConnection(key);
+                    }
+                }
+                start = end;
+            }
+        }
+    }
+
+    /**
+     * @return whether a batch response is half-written to the connection, so that nothing can go in between
+     */
+    private static boolean isStreaming(@NotNull Connection connection) {
+        return connection.job == null ? connection.getBatch().open : connection.job.streaming;
+    }
+
+    /**
+     * Write the responses of the jobs back from the workers, and hand the next queries of their connections over
+     */
+    private void writeCompletions() {
+        wakeupPending.set(false);
+        WorkerPool.Job job;
+        while ((job = completions.poll()) != null) {
+            job.inFlight = false;
+            job.streaming = job.batchOpen;
+            var key = job.key;
+            if (job.closeWhenDone || job.failed) {
+                key.cancel();
+                job.connection.close();
+                continue;
+            }
+            job.output.drainTo(job.connection);
+            try {
+                submitJob(key, job.connection);
+                updateInterest(key, job.connection.flush());
+            } catch (IOException e) {
+                Log.warn("Weird crash but ok");
+                closeConnection(key);
+            }
+        }
+    }
+
+    /**
+     * Hand the connection's next queries over to the workers, or what is left of the last ones, unless they
+     * still have some or the client is backlogged
+     * @param key the client's key
+     * @param connection the client's connection
+     * @throws IOException if the client has sent an oversized binary frame
+     */
+    private void submitJob(@NotNull SelectionKey key, @NotNull Connection connection) throws IOException {
+        var job = connection.job;
+        if (job == null) {
+            job = new WorkerPool.Job(connection, this, key);
+            connection.job = job;
+        }
+        if (job.inFlight || connection.isBacklogged()) {
+            return;
+        }
+        if (!job.hasWork()) {
+            job.count = 0;
+            job.next = 0;
+            job.binary = connection.isBinary();
+            while (job.count < WorkerPool.MAX_JOB_QUERIES) {
+                if (job.binary) {
+                    if (!connection.nextRequest(job.nextRequest())) {
+                        break;
+                    }
+                    job.count++;
+                    continue;
+                }
+                var query = connection.nextQuery(queryScratch);
+                if (query == null) {
+                    break;
+                }
+                job.queries[job.count++] = query;
+                if (query.equals(BinaryProtocol.UPGRADE_QUERY)) {
+                    // what follows is binary, once the worker has switched the connection
+                    break;
+                }
+            }
+            if (job.count == 0) {
+                return;
+            }
+        }
+        job.inFlight = true;
+        workers.submit(job);
+    }
+
+    /**
+     * <p>
+     *     Process the queries from the client. The client may send several queries at once (or half of one),
+     *     so every complete query in the connection's buffer is resolved, and the responses are sent back
+     *     in the same order. Whatever is left stays in the buffer until the rest of it arrives.
+     * </p>
+     *
+     * @param key to extract the {@link Connection}
+     */
+    private void processRequest(@NotNull SelectionKey key) {
+        var connection = (Connection) key.attachment();
+
+        // read the user queries
+        Log.debug("Reading the request");
+        // bug fix: If the client crashes oddly, catch Broken Pipe IOException to cancel the key
+        try {
+            if (connection.read() < 0) {
+                Log.debug("Client has disconnected");
+                closeConnection(key);
+                return;
+            }
+        } catch (IOException e) {
+            Log.warn("Weird crash but ok");
+            closeConnection(key);
+            return;
+        }
+
+        // process every complete query, in order, and send output to client (or whatever part of it the client
+        // takes right now)
+        try {
+            serveQueries(key, connection);
+            updateInterest(key, connection.flush());
+        } catch (IOException e) {
+            // bug fix: If the client crashes oddly, catch Broken Pipe IOException to cancel the key
+            Log.warn("Weird crash but ok");
+            closeConnection(key);
+        }
+    }
+
+    /**
+     * Process the complete queries in the connection's buffer, in order. This stops early if the client is
+     * backlogged, or if a batch has used up its chunk of rounds; in the latter case the connection is put on
+     * the list of leftovers, and carries on after the other connections have been served.
+     *
+     * @param key the client's key
+     * @param connection the client's connection
+     * @throws IOException if the client has sent an oversized binary frame
+     */
+    private void serveQueries(@NotNull SelectionKey key, @NotNull Connection connection) throws IOException {
+        if (workers != null) {
+            submitJob(key, connection);
+            return;
+        }
+        var batch = connection.getBatch();
+        while (true) {
+            if (batch.open && !dispatcher.continueBatch(connection, batch, BATCH_CHUNK)) {
+                if (!connection.isBacklogged() && !connection.resumePending) {
+                    connection.resumePending = true;
+                    resumable.add(key);
+                }
+                return;
+            }
+            if (connection.isBacklogged() || !dispatcher.serveNext(connection)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * The client is ready to take more of its responses, so send them. If that gets the client out of its backlog,
+     * carry on with its queries as well
+     * @param key to extract the {@link Connection}
+     */
+    private void flushRequest(@NotNull SelectionKey key) {
+        var connection = (Connection) key.attachment();
+        try {
+            var flushed = connection.flush();
+            if (!connection.isBacklogged()) {
+                serveQueries(key, connection);
+                flushed = connection.flush();
+            }
+            updateInterest(key, flushed);
+        } catch (IOException e) {
+            // bug fix: If the client crashes oddly, catch Broken Pipe IOException to cancel the key
+            Log.warn("Weird crash but ok");
+            closeConnection(key);
+        }
+    }
+
+    /**
+     * Carry on with the connections which were cut short during the last round of events. The ones cut short
+     * again go to the back of the list
+     */
+    private void resumeLeftovers() {
+        for (int i = resumable.size(); i > 0; i--) {
+            var key = resumable.poll();
+            var connection = (Connection) key.attachment();
+            connection.resumePending = false;
+            if (!key.isValid()) {
+                continue;
+            }
+            try {
+                serveQueries(key, connection);
+                updateInterest(key, connection.flush());
+            } catch (IOException e) {
+                Log.warn("Weird crash but ok");
+                closeConnection(key);
+            }
+        }
+    }
+
+    /**
+     * Ask the selector for the events the connection needs next: "ready-to-write" while some responses are still
+     * unsent, and "ready-to-read" unless the client is so far behind that reading more would only pile up
+     * more responses, or the queries already in are still waiting their turn: behind a batch, or with the workers.
+     * Reading more would only fill the buffer up
+     * @param key the client's key
+     * @param flushed whether all of the responses have been sent
+     */
+    private void updateInterest(@NotNull SelectionKey key, boolean flushed) {
+        var connection = (Connection) key.attachment();
+        var ops = 0;
+        if (!flushed) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        var waiting = connection.job != null ? connection.job.inFlight
+                : connection.hasOpenBatch() || connection.hasCompleteQuery();
+        if (!connection.isBacklogged() && !waiting) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (key.interestOps() != ops) {
+            key.interestOps(ops);
+        }
+    }
+
+    /**
+     * Cancel the key and close the client's connection
+     * @param key the client's key
+     */
+    private void closeConnection(@NotNull SelectionKey key) {
+        key.cancel();
+        var connection = (Connection) key.attachment();
+        if (connection.job != null && connection.job.inFlight) {
+            // a worker still has its batch, the rest waits until the job is back
+            connection.job.closeWhenDone = true;
+            return;
+        }
+        connection.close();
+    }
+
+    /**
+     * Stop the event loop. The connections are closed by the reactor's own thread on its way out
+     */
+    void close() {
+        closing = true;
+        if (thread == null) {
+            shutdown();
+        } else {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Close every connection and the selector
+     */
+    private void shutdown() {
+        if (!selector.isOpen()) {
+            return;
+        }
+        for (var key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                ((Connection) key.attachment()).close();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+            // closing anyway
+        }
+        SocketChannel socketChannel;
+        while ((socketChannel = assigned.poll()) != null) {
+            try {
+                socketChannel.close();
+            } catch (IOException ignored) {
+                // closing anyway
+            }
+        }
+    }
+}
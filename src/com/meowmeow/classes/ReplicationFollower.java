@@ -0,0 +1,79 @@
+package com.meowmeow.classes;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * <h3>Replication Follower class</h3>
+ * <p>Keeps the wallets of a {@link Server} in step with those of a {@link ReplicationLeader}.</p>
+ * <p>
+ *     A thread of its own reads the leader's records with a blocking socket and applies them to the wallets as
+ *     they come: first the leader's users, then every change. In the meantime the server only answers the
+ *     read-only queries. If the leader goes away, the wallets stay as they were last, until the server is
+ *     promoted to a leader itself (the "promote" query).
+ * </p>
+ */
+class ReplicationFollower implements AutoCloseable {
+    private final InetSocketAddress leader;
+
+    private final SocketChannel socketChannel;
+
+    private final WalletStore wallets;
+
+    private final ServerMetrics metrics;
+
+    private final Thread thread;
+
+    private volatile boolean closing = false;
+
+    /**
+     * Connect to the leader, and start applying its records
+     * @param leader where the leader takes its followers, see {@link ServerConfig#setReplicationPort(int)}
+     * @param wallets an empty store, which gets the leader's users
+     * @param metrics counts the records applied
+     * @throws IOException if the leader can't be reached
+     */
+    ReplicationFollower(@NotNull InetSocketAddress leader, @NotNull WalletStore wallets,
+                        @NotNull ServerMetrics metrics) throws IOException {
+        this.leader = leader;
+        this.wallets = wallets;
+        this.metrics = metrics;
+        socketChannel = SocketChannel.open(leader);
+        thread = new Thread(this::run, "replication-follower");
+        thread.setDaemon(true);
+        thread.start();
+        Log.info("Following the leader {}", leader);
+    }
+
+    private void run() {
+        var buffer = ByteBuffer.allocate(1 << 16);
+        try {
+            while (socketChannel.read(buffer) >= 0) {
+                buffer.flip();
+                metrics.appliedRecords.add(ReplicationLeader.apply(buffer, wallets));
+                buffer.compact();
+            }
+            Log.warn("The leader {} has gone, serving the last known wallets until promoted", leader);
+        } catch (IOException | IllegalStateException e) {
+            if (!closing) {
+                Log.warn("Lost the leader {}, serving the last known wallets until promoted", leader, e);
+            }
+        }
+    }
+
+    /**
+     * Stop following. The wallets are left as they are
+     * @throws Exception if the thread is interrupted
+     */
+    @Override
+    public void close() throws Exception {
+        closing = true;
+        // makes the blocked read fail
+        socketChannel.close();
+        thread.join();
+    }
+}
@@ -0,0 +1,335 @@
+package com.meowmeow.classes;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+
+/**
+ * <h3>Replication Leader class</h3>
+ * <p>Streams every change of the wallets to the followers, so one of them can take over if this server dies.</p>
+ * <p>
+ *     The changes are appended to an in-memory log under a short lock, the same way as to the
+ *     {@link WalletJournal}, and that's all a query pays: it never waits for a follower. Every replication interval
+ *     a background thread takes the whole log in one go and sends it to every follower, as fixed-size records
+ *     ({@value #RECORD_LENGTH} bytes: the type, the user ID, the amount), through its own selector.
+ * </p>
+ * <p>
+ *     The thread also applies the log to a mirror of the wallets, which is exactly what the followers have. A new
+ *     follower first gets the mirror as a list of new users, then the log from there on, so it never sees a
+ *     change twice, even though the live wallets keep changing while it connects. The mirror costs a second copy
+ *     of every wallet.
+ * </p>
+ * <p>
+ *     A follower which can't keep up with {@value #MAX_BACKLOG} bytes is dropped. The followers are behind by
+ *     about one interval, so that's what the leader dying can lose.
+ * </p>
+ */
+class ReplicationLeader implements WalletChanges, AutoCloseable {
+    /** type, msb, lsb, value */
+    static final int RECORD_LENGTH = 25;
+
+    private static final int MAX_BACKLOG = 64 << 20;
+
+    /** The wallets as the followers have them. Only touched by the thread */
+    private final WalletStore mirror = new WalletStore();
+
+    private final ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+
+    private final Selector selector = Selector.open();
+
+    private final ServerMetrics metrics;
+
+    private final long intervalMillis;
+
+    /** Only touched by the thread */
+    private final ArrayList<Follower> followers = new ArrayList<>();
+
+    /** The size of the list, for the stats */
+    private volatile int followerCount = 0;
+
+    /** The records since the last shipment. Guarded by the leader's lock */
+    private ByteBuffer appending = ByteBuffer.allocate(1 << 16);
+
+    /** Swapped with the records being shipped, so appending never waits for the sockets */
+    private ByteBuffer shipping = ByteBuffer.allocate(1 << 16);
+
+    private final Thread thread;
+
+    private volatile boolean closing = false;
+
+    /**
+     * A connected follower. Only touched by the thread
+     */
+    private static final class Follower {
+        final SocketChannel socketChannel;
+        SelectionKey key;
+        ByteBuffer outbound;
+
+        Follower(SocketChannel socketChannel, int capacity) {
+            this.socketChannel = socketChannel;
+            this.outbound = ByteBuffer.allocate(capacity);
+        }
+    }
+
+    /**
+     * Start listening for followers
+     * @param port where the followers connect
+     * @param wallets the wallets, which must not change until this returns
+     * @param intervalMillis how often the changes are shipped
+     * @param metrics counts the records shipped
+     * @throws IOException if the port can't be listened on
+     */
+    ReplicationLeader(int port, @NotNull WalletStore wallets, long intervalMillis, @NotNull ServerMetrics metrics)
+            throws IOException {
+        this.intervalMillis = intervalMillis;
+        this.metrics = metrics;
+        wallets.forEach(mirror::create);
+        try {
+            serverSocketChannel.configureBlocking(false);
+            serverSocketChannel.bind(new InetSocketAddress(port));
+            serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverSocketChannel.close();
+            selector.close();
+            throw e;
+        }
+        thread = new Thread(this::run, "replication-leader");
+        thread.setDaemon(true);
+        thread.start();
+        Log.info("Replicating to the followers connecting on port {}", port);
+    }
+
+    @Override
+    public void created(long mostSigBits, long leastSigBits, long balance) {
+        append(WalletJournal.CREATED, mostSigBits, leastSigBits, balance);
+    }
+
+    @Override
+    public void changed(long mostSigBits, long leastSigBits, long amount) {
+        append(WalletJournal.CHANGED, mostSigBits, leastSigBits, amount);
+    }
+
+    @Override
+    public void removed(long mostSigBits, long leastSigBits) {
+        append(WalletJournal.REMOVED, mostSigBits, leastSigBits, 0);
+    }
+
+    private synchronized void append(byte type, long mostSigBits, long leastSigBits, long value) {
+        if (appending.remaining() < RECORD_LENGTH) {
+            appending = grow(appending, RECORD_LENGTH);
+        }
+        appending.put(type).putLong(mostSigBits).putLong(leastSigBits).putLong(value);
+    }
+
+    /**
+     * @return a buffer with the same content and room for {@code length} more bytes
+     */
+    @NotNull
+    private static ByteBuffer grow(@NotNull ByteBuffer buffer, int length) {
+        var capacity = buffer.capacity();
+        while (capacity - buffer.position() < length) {
+            capacity *= 2;
+        }
+        var bigger = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        return bigger.put(buffer);
+    }
+
+    /**
+     * Apply the whole records of a buffer to some wallets
+     * @param records the records, ready to be read. A partial record at the end is left there
+     * @param wallets the wallets
+     * @return the number of records applied
+     * @throws IllegalStateException if a record has an unknown type
+     */
+    static int apply(@NotNull ByteBuffer records, @NotNull WalletStore wallets) {
+        var count = 0;
+        while (records.remaining() >= RECORD_LENGTH) {
+            var type = records.get();
+            var mostSigBits = records.getLong();
+            var leastSigBits = records.getLong();
+            var value = records.getLong();
+            switch (type) {
+                case WalletJournal.CREATED:
+                    wallets.create(mostSigBits, leastSigBits, value);
+                    break;
+                case WalletJournal.CHANGED:
+                    wallets.add(mostSigBits, leastSigBits, value);
+                    break;
+                case WalletJournal.REMOVED:
+                    wallets.remove(mostSigBits, leastSigBits);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown replication record " + type);
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * The thread: take the new followers, ship the log every interval, and send whatever the sockets take
+     */
+    private void run() {
+        try {
+            while (!closing) {
+                selector.select(intervalMillis);
+                var keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    var key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    var follower = (Follower) key.attachment();
+                    if (key.isValid() && key.isWritable()) {
+                        write(follower);
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        read(follower);
+                    }
+                }
+                ship();
+            }
+            // the last changes, as far as the sockets take them
+            ship();
+        } catch (IOException | ClosedSelectorException e) {
+            if (!closing) {
+                Log.error("The replication has crashed, the followers are on their own", e);
+            }
+        } finally {
+            for (var follower : new ArrayList<>(followers)) {
+                drop(follower, null);
+            }
+        }
+    }
+
+    /**
+     * Take a new follower, and send it the mirror to start from
+     */
+    private void accept() throws IOException {
+        SocketChannel socketChannel;
+        while ((socketChannel = serverSocketChannel.accept()) != null) {
+            socketChannel.configureBlocking(false);
+            socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            var follower = new Follower(socketChannel,
+                    (int) Math.min(MAX_BACKLOG, Math.max(1 << 16, mirror.size() * RECORD_LENGTH + RECORD_LENGTH)));
+            follower.key = socketChannel.register(selector, SelectionKey.OP_READ, follower);
+            followers.add(follower);
+            followerCount = followers.size();
+            mirror.forEach((mostSigBits, leastSigBits, balance) -> {
+                if (follower.outbound.remaining() < RECORD_LENGTH) {
+                    follower.outbound = grow(follower.outbound, RECORD_LENGTH);
+                }
+                follower.outbound.put(WalletJournal.CREATED).putLong(mostSigBits).putLong(leastSigBits)
+                        .putLong(balance);
+            });
+            Log.info("Follower {} has connected, starting it with {} users", socketChannel.getRemoteAddress(),
+                    mirror.size());
+            write(follower);
+        }
+    }
+
+    /**
+     * Take the records appended since the last shipment, apply them to the mirror and queue them for every
+     * follower
+     */
+    private void ship() {
+        synchronized (this) {
+            var full = appending;
+            appending = shipping;
+            shipping = full;
+        }
+        shipping.flip();
+        if (!shipping.hasRemaining()) {
+            shipping.clear();
+            return;
+        }
+        metrics.replicatedRecords.add(apply(shipping.duplicate(), mirror));
+        for (var follower : new ArrayList<>(followers)) {
+            if (follower.outbound.position() + shipping.remaining() > MAX_BACKLOG) {
+                drop(follower, "it can't keep up");
+                continue;
+            }
+            if (follower.outbound.remaining() < shipping.remaining()) {
+                follower.outbound = grow(follower.outbound, shipping.remaining());
+            }
+            follower.outbound.put(shipping.duplicate());
+            write(follower);
+        }
+        shipping.clear();
+    }
+
+    /**
+     * Send as much as the socket takes, and ask for "ready-to-write" if there's more
+     */
+    private void write(@NotNull Follower follower) {
+        try {
+            follower.outbound.flip();
+            follower.socketChannel.write(follower.outbound);
+            follower.outbound.compact();
+            var ops = follower.outbound.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                    : SelectionKey.OP_READ;
+            if (follower.key.interestOps() != ops) {
+                follower.key.interestOps(ops);
+            }
+        } catch (IOException e) {
+            drop(follower, e.getMessage());
+        }
+    }
+
+    /**
+     * The followers never send anything, so this only finds out when they have gone
+     */
+    private void read(@NotNull Follower follower) {
+        try {
+            if (follower.socketChannel.read(ByteBuffer.allocate(64)) < 0) {
+                drop(follower, "it has disconnected");
+            }
+        } catch (IOException e) {
+            drop(follower, e.getMessage());
+        }
+    }
+
+    private void drop(@NotNull Follower follower, @Nullable String reason) {
+        followers.remove(follower);
+        followerCount = followers.size();
+        follower.key.cancel();
+        try {
+            follower.socketChannel.close();
+        } catch (IOException ignored) {
+            // closing anyway
+        }
+        if (reason != null) {
+            Log.warn("Dropped a follower, {}", reason);
+        }
+    }
+
+    int getFollowers() {
+        return followerCount;
+    }
+
+    /**
+     * Ship the last changes and stop. Must be called once nothing changes the wallets anymore
+     * @throws Exception if the thread is interrupted
+     */
+    @Override
+    public void close() throws Exception {
+        closing = true;
+        selector.wakeup();
+        thread.join();
+        serverSocketChannel.close();
+        selector.close();
+    }
+}
@@ -0,0 +1,69 @@
+package com.meowmeow.classes;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <h3>Response Buffer class</h3>
+ * <p>The responses of a {@link WorkerPool} job, written by a worker and copied into the connection by its reactor.</p>
+ * <p>
+ *     It grows to whatever the job writes, and shrinks back once a big batch chunk has gone through, so an idle
+ *     connection only keeps a single small array.
+ * </p>
+ */
+final class ResponseBuffer implements ResponseOutput {
+    private ByteBuffer buffer = ByteBuffer.allocate(Connection.BUFFER_SIZE);
+
+    @Override
+    public ByteBuffer outbound(int length) {
+        if (buffer.remaining() < length) {
+            var capacity = buffer.capacity();
+            while (capacity - buffer.position() < length) {
+                capacity *= 2;
+            }
+            buffer = ByteBuffer.allocate(capacity).put(buffer.flip());
+        }
+        return buffer;
+    }
+
+    @Override
+    public void appendText(String part) {
+        var out = outbound(part.length());
+        for (int i = 0; i < part.length(); i++) {
+            out.put((byte) part.charAt(i));
+        }
+    }
+
+    @Override
+    public void endText() {
+        outbound(1).put(Connection.RESPONSE_DELIMITER);
+    }
+
+    /**
+     * A job's chunk of a batch is already bounded, there's nobody to catch up with
+     */
+    @Override
+    public boolean isBacklogged() {
+        return false;
+    }
+
+    /**
+     * Copy the responses into the connection's buffers, and start over empty
+     * @param connection the client's connection
+     */
+    void drainTo(@NotNull Connection connection) {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            var out = connection.outbound(1);
+            var length = Math.min(out.remaining(), buffer.remaining());
+            out.put(buffer.array(), buffer.position(), length);
+            buffer.position(buffer.position() + length);
+        }
+        if (buffer.capacity() > 16 * Connection.BUFFER_SIZE) {
+            buffer = ByteBuffer.allocate(Connection.BUFFER_SIZE);
+        } else {
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.meowmeow.classes;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <h3>Response Output interface</h3>
+ * <p>
+ *     Where the {@link QueryDispatcher} writes its responses: straight into a {@link Connection}, or into the
+ *     {@link ResponseBuffer} of a job when a {@link WorkerPool} serves the queries, for the reactor to copy out.
+ * </p>
+ */
+interface ResponseOutput {
+    /**
+     * Make room for at least {@code length} more bytes of responses
+     * @param length the number of bytes about to be written, at most {@link Connection#BUFFER_SIZE}
+     * @return the buffer to write them to
+     */
+    ByteBuffer outbound(int length);
+
+    /**
+     * Write a part of a text response, as ISO-8859-1 bytes
+     */
+    void appendText(String part);
+
+    /**
+     * Write the {@link Connection#RESPONSE_DELIMITER} after the parts of a text response
+     */
+    void endText();
+
+    /**
+     * Write a whole text response, followed by the {@link Connection#RESPONSE_DELIMITER}
+     */
+    default void writeText(String response) {
+        appendText(response);
+        endText();
+    }
+
+    /**
+     * @return true if a batch should stop for now and let the client catch up
+     */
+    boolean isBacklogged();
+}
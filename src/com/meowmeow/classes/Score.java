@@ -30,13 +30,23 @@ import org.jetbrains.annotations.NotNull;
  *     If both sides have equal points, suit points, and neither sides have the Ace of Diamond,
  *     the game will result in a draw
  * </p>
+ * <p>
+ *     This is a thin wrapper around a {@link HandEvaluator} rank, which packs all 3 attributes into a single
+ *     {@code int}. The game itself works with the ranks directly.
+ * </p>
  */
 public class Score implements Comparable<Score> {
-    private int point = 0, suitPoint = 0;
-    private boolean winFallback = false;
+    private int rank = 0;
 
     public int getPoint() {
-        return point;
+        return HandEvaluator.point(rank);
+    }
+
+    /**
+     * @return the packed {@link HandEvaluator} rank of this score
+     */
+    public int getRank() {
+        return rank;
     }
 
     /**
@@ -51,25 +61,7 @@ public class Score implements Comparable<Score> {
      */
     @Override
     public int compareTo(@NotNull Score score) {
-        if (point > score.point) {
-            return 1;
-        }
-        if (point < score.point) {
-            return -1;
-        }
-        if (suitPoint > score.suitPoint) {
-            return 1;
-        }
-        if (suitPoint < score.suitPoint) {
-            return -1;
-        }
-        if (winFallback) {
-            return 1;
-        }
-        if (score.winFallback) {
-            return -1;
-        }
-        return 0;
+        return HandEvaluator.compare(rank, score.rank);
     }
 
     /**
@@ -82,14 +74,6 @@ public class Score implements Comparable<Score> {
      * @param card the input card
      */
     public void setPoint(Card card) {
-        this.point += card.getScore();
-        this.suitPoint += card.getSuit();
-        if (this.point > 10) {
-            this.point %= 10;
-        }
-        final var aceOfDiamond = new Card(1,3);
-        if (card.equals(aceOfDiamond)) {
-            winFallback = true;
-        }
+        rank = HandEvaluator.addCard(rank, card.getCode());
     }
 }
@@ -1,19 +1,24 @@
 package com.meowmeow.classes;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
-import java.util.HashSet;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * <h3>Java NIO Game Server Class</h3>
@@ -27,7 +32,8 @@ import java.util.concurrent.ConcurrentHashMap;
  * <p>The server operate as follows:</p>
  * <ul>
  *     <li>Once the client connects to this server, the server will accept the request and maintain the connection</li>
- *     <li>The client can send queries to the server which the server can handle. The valid query formats are:
+ *     <li>The client can send queries to the server which the server can handle, each one ending with a '\n'.
+ *     Several queries can be sent back-to-back over the same connection. The valid query formats are:
  *     <ul>
  *         <li>"new-user" - generate a new user server-side and send the user-id to the client.
  *         That user will have 1000000 cash by default
@@ -35,27 +41,128 @@ import java.util.concurrent.ConcurrentHashMap;
  *         <li>"new-game user-id <i>your-user-id</i> bet-money <i>your-bet-money</i>" - initiate a new game
  *         and update the the user's cash server-side
  *         </li>
+ *         <li>"new-game user-id <i>your-user-id</i> bet-money <i>your-bet-money</i> rounds <i>n</i>" - play up to
+ *         n games in a row, stopping early if the user runs out of cash. The games are streamed back as they are
+ *         played, followed by a summary. Add " summary" at the end to only get the summary
+ *         </li>
  *         <li>"delete-user user-id <i>your-user-id</i>" - delete the user data from the server</li>
+ *         <li>"balance user-id <i>your-user-id</i>" - the user's cash, without playing</li>
+ *         <li>"join-table user-id <i>your-user-id</i> bet-money <i>your-bet-money</i>" - sit down at a shared table,
+ *         see below. Sent again, it changes the bet</li>
+ *         <li>"leave-table user-id <i>your-user-id</i>" - get up from the table</li>
+ *         <li>"binary-protocol" - switch the connection to the compact {@link BinaryProtocol}</li>
+ *         <li>"server-stats" - the number of queries served, the heap bytes allocated per query
+ *         and the state of the {@link BufferPool}</li>
+ *         <li>"server-metrics" - the {@link ServerMetrics}: selector, accept and byte counts, the latency of
+ *         every command, errors, active users and the house profit</li>
+ *         <li>"promote" - turn a follower into a leader, see below</li>
  *         <li>Any queries not conforming to the above specification will throw an {@link IllegalGameQueryException},
  *         which will be handled internally on the server</li>
  *     </ul>
  *     </li>
- *     <li>The server can process the query and send a string to the client representing the result</li>
+ *     <li>The server can process the query and send a string to the client representing the result, ending with
+ *     a '\0'. The responses are always sent in the same order as the queries</li>
  * </ul>
- * <p>The server's buffer is a {@link ConcurrentHashMap}, storing the user ID and their corresponding amount of cash</p>
+ * <p>The server's buffer is a {@link WalletStore}, storing the user ID and their corresponding amount of cash.
+ * It is shared by every {@link Reactor}, so the cash is only ever changed through its atomic operations: a game
+ * takes the bet first (and is refused if the bet is more than the cash), then pays back whatever was won</p>
+ * <p>With {@link ServerConfig#setDataDirectory(java.nio.file.Path)}, every change of the buffer is also written to
+ * a {@link WalletJournal}, and the users are still there after a restart</p>
+ * <p>With {@link ServerConfig#setIdleTtlSeconds(long)}, the users who stop playing are removed by a
+ * {@link WalletExpiry} after a while</p>
+ * <p>With {@link ServerConfig#setCluster(java.util.List, int)}, the server is one node of a cluster and only keeps
+ * the users its slice of the {@link HashRing} owns. The new users are given IDs which land on this node, and a query
+ * about somebody else's user gets "redirect <i>host:port</i>" (or {@link BinaryProtocol#STATUS_REDIRECT}) back,
+ * naming the node to ask instead</p>
+ * <p>With {@link ServerConfig#setReplicationPort(int)}, every change of the buffer is streamed to the followers by a
+ * {@link ReplicationLeader}. A server started with {@link ServerConfig#setLeader(java.net.InetSocketAddress)} is such
+ * a follower: it only answers "balance" until it gets the "promote" query, and then carries on as a leader</p>
+ * <p>With {@link ServerConfig#setWorkerThreads(int)}, the reactors only read, cut and write the queries, and the games
+ * are played by a {@link WorkerPool}</p>
+ * <p>With {@link ServerConfig#setTableTickMillis(long)}, the users can sit down at the tables of a {@link TableDealer},
+ * which deals them a round every tick without being asked. Every round comes as a response of its own, starting
+ * with "Table <i>T</i> round <i>R</i> user-id <i>U</i>", in between the responses to the queries</p>
  *
  * @author Ih8Cocoa
  */
 public class Server implements AutoCloseable {
 
-    private ConcurrentHashMap<UUID, Integer> serverData = new ConcurrentHashMap<>();
+    private static final int START_MONEY = 1000000;
+
+    private final WalletStore wallets = new WalletStore();
+
+    static final String READ_ONLY_RESPONSE = "Read-only follower, send the query to the leader";
+
+    private final ServerConfig config;
+
+    /** Every change of the wallets goes there, null if they are kept in memory only */
+    @Nullable
+    private final WalletJournal journal;
+
+    /** Streams every change of the wallets to the followers, null if there are none */
+    @Nullable
+    private volatile ReplicationLeader replication;
+
+    /** Keeps the wallets in step with the leader, null unless this server is a follower which hasn't been promoted */
+    @Nullable
+    private volatile ReplicationFollower follower;
+
+    /** Where every change of the wallets is reported: the journal and the replication, null if neither */
+    @Nullable
+    private volatile WalletChanges changes;
+
+    /** Removes the idle users, null if they stay until they quit. A follower only starts it once promoted */
+    @Nullable
+    private volatile WalletExpiry expiry;
+
+    /** Serves the queries for the reactors, null if they serve them themselves */
+    @Nullable
+    private final WorkerPool workers;
+
+    /** Deals the rounds of the tables, null if there are none */
+    @Nullable
+    private final TableDealer tables;
+
+    /** One read and one write buffer per connection, kept around for up to 512 idle connections */
+    private final BufferPool bufferPool = new BufferPool(Connection.BUFFER_SIZE, 1024);
 
     private ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
 
     private ServerSocket serverSocket = serverSocketChannel.socket();
 
+    /** Only used by the dedicated acceptor, in multi-reactor mode */
     private Selector selector = Selector.open();
 
+    private final Reactor[] reactors;
+
+    private final Thread[] reactorThreads;
+
+    private int nextReactor = 0;
+
+    /** How the connections are served */
+    private final ServerConfig.Mode mode;
+
+    /** The live sessions in thread-per-connection mode, so that they can be closed with the server */
+    private final Set<BlockingSession> sessions = ConcurrentHashMap.newKeySet();
+
+    private final ServerMetrics metrics = new ServerMetrics();
+
+    private final AdmissionControl admission;
+
+    /** Who owns which users, null if the server runs alone */
+    @Nullable
+    private final HashRing ring;
+
+    /** This server's node in the ring */
+    private final int nodeIndex;
+
+    /** Prints the metrics every now and then, null if they are never printed */
+    @Nullable
+    private final ScheduledExecutorService metricsDump;
+
+    /** The number of queries served by the sessions which have ended */
+    private final LongAdder endedSessionRequests = new LongAdder();
+
     /**
      * <p>- Mommy can you hire me?</p>
      * <p>- To write good and readable {@code code}?</p>
@@ -67,16 +174,121 @@ public class Server implements AutoCloseable {
      * @throws IOException An IOException to be handled in main
      */
     public Server() throws IOException {
+        this(new ServerConfig());
+    }
+
+    /**
+     * Creates a server with the given config
+     * @param config see {@link ServerConfig}
+     * @throws IOException An IOException to be handled in main
+     */
+    public Server(@NotNull ServerConfig config) throws IOException {
+        Log.setLevel(config.getLogLevel());
+        this.config = config;
+        admission = new AdmissionControl(config, wallets, metrics);
+        ring = config.getClusterNodes().isEmpty() ? null : new HashRing(config.getClusterNodes());
+        nodeIndex = config.getNodeIndex();
+
+        // get the users back before anyone can connect
+        if (config.getLeader() != null && config.getDataDirectory() != null) {
+            throw new IllegalArgumentException("A follower keeps the wallets in memory only");
+        }
+        journal = config.getDataDirectory() == null ? null : WalletJournal.open(config.getDataDirectory(), wallets,
+                config.getCommitIntervalMillis(), config.getSnapshotIntervalSeconds());
+        changes = journal;
+        if (config.getLeader() != null) {
+            // the leader's users come in the background, nothing else changes the wallets until a promotion
+            follower = new ReplicationFollower(config.getLeader(), wallets, metrics);
+        } else {
+            startWriting();
+        }
+
+        metricsDump = config.getMetricsIntervalSeconds() == 0 ? null : Executors.newSingleThreadScheduledExecutor(
+                runnable -> {
+                    var thread = new Thread(runnable, "metrics-dump");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        if (metricsDump != null) {
+            metricsDump.scheduleAtFixedRate(() -> Log.info("server-metrics\n{}", serverMetrics()),
+                    config.getMetricsIntervalSeconds(), config.getMetricsIntervalSeconds(), TimeUnit.SECONDS);
+        }
+
+        mode = config.getMode();
+        if (mode == ServerConfig.Mode.THREAD_PER_CONNECTION) {
+            if (config.getTableTickMillis() != 0) {
+                throw new IllegalArgumentException("The tables need the selector mode");
+            }
+            if (config.getWorkerThreads() != 0) {
+                throw new IllegalArgumentException("The workers need the selector mode");
+            }
+            // the calling thread accepts the connections, blocking, and every connection gets its own thread
+            workers = null;
+            tables = null;
+            reactors = new Reactor[0];
+            reactorThreads = new Thread[0];
+            serverSocket.bind(new InetSocketAddress(config.getPort()));
+            return;
+        }
+        workers = config.getWorkerThreads() == 0 ? null : new WorkerPool(this, config.getWorkerThreads());
+        tables = config.getTableTickMillis() == 0 ? null
+                : new TableDealer(this, config.getTableTickMillis(), config.getTableSeats());
+
+        var reactorCount = Math.max(1, config.getReactorThreads());
+        reactors = new Reactor[reactorCount];
+        for (int i = 0; i < reactorCount; i++) {
+            reactors[i] = new Reactor(this, bufferPool);
+        }
+        reactorThreads = new Thread[config.getReactorThreads()];
+
         serverSocketChannel.configureBlocking(false);
-        serverSocket.bind(new InetSocketAddress(12345));
-        serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+        serverSocket.bind(new InetSocketAddress(config.getPort()));
+        // single-threaded mode: the only reactor accepts the connections as well
+        serverSocketChannel.register(reactorThreads.length == 0 ? reactors[0].getSelector() : selector,
+                SelectionKey.OP_ACCEPT);
     }
 
     @Override
     public void close() throws Exception {
+        if (metricsDump != null) {
+            metricsDump.shutdownNow();
+        }
+        if (tables != null) {
+            tables.close();
+        }
+        // the reactors close the connections once the workers are done with them
+        if (workers != null) {
+            workers.close();
+        }
+        for (var reactor : reactors) {
+            reactor.close();
+        }
+        for (var thread : reactorThreads) {
+            if (thread != null) {
+                thread.join();
+            }
+        }
         selector.close();
         serverSocketChannel.close();
         serverSocket.close();
+        for (var session : sessions) {
+            session.close();
+        }
+        // nothing changes the wallets anymore
+        if (follower != null) {
+            follower.close();
+        }
+        if (expiry != null) {
+            expiry.close();
+        }
+        if (replication != null) {
+            replication.close();
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        Log.info("Server has stopped");
+        Log.flush();
     }
 
     /**
@@ -85,118 +297,249 @@ public class Server implements AutoCloseable {
      * <p>The client connection lifecycle within the server is as follows:</p>
      * <ul>
      *     <li>Accepts the connection</li>
-     *     <li>Read, processes the query from the connection, and send back a response</li>
-     *     <li>Terminate the connection</li>
+     *     <li>
+     *         Read, processes every query from the connection, and send back the responses in order.
+     *         The connection stays registered so the client can keep sending queries
+     *     </li>
+     *     <li>Terminate the connection once the client closes it</li>
      * </ul>
      *
+     * <p>
+     *     By default everything happens on the calling thread. With {@link ServerConfig#setReactorThreads(int)},
+     *     the calling thread only accepts the connections and spreads them over the {@link Reactor} threads,
+     *     each of them running its own selector loop.
+     * </p>
+     * <p>
+     *     With {@link ServerConfig.Mode#THREAD_PER_CONNECTION}, the calling thread only accepts the connections and
+     *     every connection is served by a {@link BlockingSession} on its own thread instead.
+     * </p>
+     *
      * @throws IOException to be handled in main
      */
-    @SuppressWarnings("InfiniteLoopStatement")
     public void startServer() throws IOException {
-        while (true) {
-            // server is ready
-            System.out.println("Server is waiting for events...");
-            var select = selector.select();
-            System.out.printf("Received %d events\n", select);
-
-            //get all the keys from selector, and loop through each of them
-            var keys = selector.selectedKeys();
-            for (var key : keys) {
-                if (key.isAcceptable()) {
-                    acceptRequest(key);
-                    keys.remove(key);
-                } else if (key.isReadable()) {
-                    processRequest(key);
-                    keys.remove(key);
-                    //cancel the key after read operation
-                    key.cancel();
+        Log.info("Server is listening on port {}", serverSocket.getLocalPort());
+        if (ring != null) {
+            Log.info("Running as node {} of {}", nodeIndex, ring);
+        }
+        if (mode == ServerConfig.Mode.THREAD_PER_CONNECTION) {
+            acceptSessions();
+            return;
+        }
+        if (reactorThreads.length == 0) {
+            reactors[0].run();
+            return;
+        }
+
+        for (int i = 0; i < reactorThreads.length; i++) {
+            reactorThreads[i] = new Thread(reactors[i], "reactor-" + i);
+            reactorThreads[i].start();
+        }
+        try {
+            while (selector.isOpen()) {
+                var select = selector.select();
+                metrics.selects.increment();
+                metrics.events.add(select);
+                var keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    var key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isAcceptable()) {
+                        acceptRequest(key);
+                    }
                 }
             }
+        } catch (ClosedSelectorException e) {
+            // the server has been closed
         }
     }
 
     /**
-     * Accepting a request from a new client. After that, register the "ready-to-read" operation to the selector
+     * Accepting a request from a new client. After that, hand the connection over to the next reactor which is
+     * still running, round-robin
      * @param key to extract the {@link ServerSocketChannel}
      * @throws IOException bounce this exception to main
      */
-    private void acceptRequest(@NotNull SelectionKey key) throws IOException {
-        System.out.println("Accepting the request");
+    void acceptRequest(@NotNull SelectionKey key) throws IOException {
+        Log.debug("Accepting the request");
         var channel = (ServerSocketChannel) key.channel();
-        var socketChannel = channel.accept();
-        socketChannel.configureBlocking(false);
-        socketChannel.register(this.selector, SelectionKey.OP_READ);
+        SocketChannel socketChannel;
+        while ((socketChannel = channel.accept()) != null) {
+            metrics.accepts.increment();
+            var reactor = nextRunningReactor();
+            if (reactor == null) {
+                // nobody would ever serve it
+                socketChannel.close();
+                continue;
+            }
+            reactor.assign(socketChannel);
+        }
     }
 
     /**
-     * <p>
-     *     Process a query from the client. Haven't implemented a query buffer yet, so the query has to be
-     *     resolved immediately.
-     * </p>
-     *
-     * @param key to extract the {@link SocketChannel}
+     * Skip the reactors whose thread has exited, so that their share of the connections goes to the others
+     * @return the next running reactor, round-robin, or null if none is left
      */
-    private void processRequest(@NotNull SelectionKey key) {
-        // get socket channel and prepare the reading buffer
-        var socketChannel = (SocketChannel) key.channel();
-        var byteBuffer = ByteBuffer.allocate(1048576);
-
-        // read and decode the user query
-        System.out.println("Reading the request");
-        // bug fix: If the client crashes oddly, catch Broken Pipe IOException to cancel the key
-        try {
-            socketChannel.read(byteBuffer);
-        } catch (IOException e) {
-            System.out.println("Weird crash but ok\n");
-            key.cancel();
-            return;
+    @Nullable
+    private Reactor nextRunningReactor() {
+        for (int i = 0; i < reactors.length; i++) {
+            var reactor = reactors[nextReactor];
+            nextReactor = (nextReactor + 1) % reactors.length;
+            if (reactor.isRunning()) {
+                return reactor;
+            }
         }
-        byteBuffer.flip();
-        var charBuffer = StandardCharsets.ISO_8859_1.decode(byteBuffer);
-        var query = new String(charBuffer.array()).toLowerCase();
-        System.out.println("Read query: " + query);
+        return null;
+    }
 
-        // process the query
-        var serverOutput = "";
+    /**
+     * Accept the connections until the server is closed, starting a {@link BlockingSession} for each one
+     * @throws IOException bounce this exception to main
+     */
+    private void acceptSessions() throws IOException {
+        var threadFactory = BlockingSession.threadFactory();
         try {
-            serverOutput = gameSession(query);
-        } catch (IllegalGameQueryException e) {
-            serverOutput = e.getMessage();
+            while (true) {
+                var socketChannel = serverSocketChannel.accept();
+                metrics.accepts.increment();
+                Log.debug("Accepting the request");
+                var peer = admission.open(socketChannel);
+                if (peer == null) {
+                    continue;
+                }
+                var session = new BlockingSession(this, bufferPool, socketChannel, peer);
+                sessions.add(session);
+                threadFactory.newThread(session).start();
+            }
+        } catch (ClosedChannelException e) {
+            // the server has been closed
         }
+    }
 
-        System.out.println("Sending to client: " + serverOutput + "\n");
+    /**
+     * Forget a session whose client has gone, keeping its share of the stats
+     * @param session the session
+     */
+    void sessionEnded(@NotNull BlockingSession session) {
+        endedSessionRequests.add(session.getRequestsServed());
+        sessions.remove(session);
+    }
+
+    /**
+     * Start what a server which takes the games needs on top of the journal: the replication to the followers,
+     * then the expiry, which has to report its removals to it
+     * @throws IOException if the replication port or the archive can't be opened
+     */
+    private void startWriting() throws IOException {
+        if (config.getReplicationPort() != 0) {
+            replication = new ReplicationLeader(config.getReplicationPort(), wallets,
+                    config.getReplicationIntervalMillis(), metrics);
+        }
+        changes = WalletChanges.both(journal, replication);
+        if (config.getIdleTtlSeconds() != 0) {
+            expiry = new WalletExpiry(wallets, changes, config.getArchiveFile(), config.getIdleTtlSeconds(), metrics);
+        }
+    }
 
-        // send output to client
-        byteBuffer = StandardCharsets.ISO_8859_1.encode(serverOutput);
-        // bug fix: If the client crashes oddly, catch Broken Pipe IOException to cancel the key
+    /**
+     * Turn a follower into a leader: stop following, then take the games, the new users and followers of its own
+     * @return the response to the "promote" query
+     */
+    @NotNull
+    synchronized String promote() {
+        var current = follower;
+        if (current == null) {
+            return "Already a leader";
+        }
         try {
-            socketChannel.write(byteBuffer);
-        } catch (IOException e) {
-            System.out.println("Weird crash but ok\n");
-            key.cancel();
+            current.close();
+            startWriting();
+        } catch (Exception e) {
+            Log.error("The promotion has failed", e);
+            return "Promotion failed: " + e.getMessage();
         }
+        // only now can the queries change the wallets
+        follower = null;
+        Log.info("Promoted to leader with {} users", wallets.size());
+        return "Promoted to leader with " + wallets.size() + " users";
+    }
+
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    AdmissionControl getAdmission() {
+        return admission;
+    }
 
+    @Nullable
+    WorkerPool getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Describe the {@link ServerMetrics}, for the "server-metrics" query and the periodic dump
+     * @return the metrics, one per line
+     */
+    @NotNull
+    String serverMetrics() {
+        return metrics.describe(wallets.size());
+    }
+
+    /**
+     * Describe how the server is doing, for the "server-stats" query
+     * @return the stats as a single line
+     */
+    @NotNull
+    String serverStats() {
+        long reactorRequests = 0, bytesAllocated = 0;
+        for (var reactor : reactors) {
+            reactorRequests += reactor.getRequestsServed();
+            bytesAllocated += reactor.getBytesAllocated();
+        }
+        // the allocations are only measured on the reactors, the sessions' threads may be virtual
+        var requestsServed = reactorRequests + endedSessionRequests.sum()
+                + (workers == null ? 0 : workers.getRequestsServed());
+        for (var session : sessions) {
+            requestsServed += session.getRequestsServed();
+        }
+        return "requests " + requestsServed
+                + " allocated-bytes-per-request " + (reactorRequests == 0 ? 0 : bytesAllocated / reactorRequests)
+                + " buffers-idle " + bufferPool.getIdle()
+                + " buffers-acquired " + bufferPool.getAcquired()
+                + " buffers-missed " + bufferPool.getMisses()
+                + " users " + wallets.size()
+                + " reactors " + reactors.length
+                + " workers " + (workers == null ? 0 : workers.size())
+                + " sessions " + sessions.size()
+                + " role " + (follower != null ? "follower" : "leader")
+                + " followers " + (replication == null ? 0 : replication.getFollowers())
+                + " tables " + (tables == null ? 0 : tables.getTables())
+                + " seated " + (tables == null ? 0 : tables.getSeated());
     }
 
     /**
      * Executes the query sent from the client
      *
      * @param query the user's query
-     * @return a string representing the result
+     * @param round the caller's reusable round
+     * @param batch the connection's batch, started if the query asks for several rounds
+     * @return a string representing the result, or null if the query was a game: either the round has been played
+     * and is left in the round (for {@link TextProtocol#encodeRound(java.nio.ByteBuffer, GameRound)}), or a batch
+     * has been started
      * @throws IllegalGameQueryException representing an invalid query
      */
-    @NotNull
-    private String gameSession(@NotNull String query) throws IllegalGameQueryException {
-        final int START_MONEY = 1000000;
+    @Nullable
+    String gameSession(@NotNull String query, @NotNull GameRound round, @NotNull Batch batch)
+            throws IllegalGameQueryException {
+        // a follower only answers the balances until it is promoted
+        if (follower != null && !query.startsWith("balance ")) {
+            return READ_ONLY_RESPONSE;
+        }
 
         // if new-user -> make a new user in the server buffer
         if (query.equals("new-user")) {
-            System.out.println("Creating a new user...");
-            var newId = UUID.randomUUID();
-            //just in case the ID already exists
-            while (this.serverData.put(newId, START_MONEY) != null) {
-                newId = UUID.randomUUID();
-            }
+            Log.debug("Creating a new user...");
+            var newId = newUser();
             return "user-id " + newId + " amount " + START_MONEY;
         }
 
@@ -211,24 +554,74 @@ public class Server implements AutoCloseable {
             throw new IllegalGameQueryException();
         }
 
+        // somebody else's user -> tell the client where to go
+        var mostSigBits = userId.getMostSignificantBits();
+        var leastSigBits = userId.getLeastSignificantBits();
+        var owner = ownerOf(mostSigBits, leastSigBits);
+        if (owner != nodeIndex) {
+            metrics.redirects.increment();
+            return "redirect " + ring.describe(owner);
+        }
+
         // if the user is not found -> invalid query
-        if (!this.serverData.containsKey(userId)) {
+        var balance = wallets.get(mostSigBits, leastSigBits);
+        if (balance == WalletStore.MISSING) {
             throw new IllegalGameQueryException(userId);
         }
 
+        // read-only, so a follower answers it too
+        if (query.startsWith("balance user-id ")) {
+            return "user-id " + userId + " amount " + balance;
+        }
+
         //initiate a new game?
-        if (query.substring(0, 17).equals("new-game user-id ") && queryFragments[3].equals("bet-money")) {
+        if (query.startsWith("new-game user-id ") && queryFragments.length > 4
+                && queryFragments[3].equals("bet-money")) {
+            if (!admission.admitUser(mostSigBits, leastSigBits)) {
+                return AdmissionControl.RATE_LIMITED_RESPONSE;
+            }
             try {
                 var betMoney = Integer.parseInt(queryFragments[4]);
-                return gameResult(userId, betMoney);
+                if (betMoney < 0) {
+                    throw new IllegalGameQueryException();
+                }
+                if (queryFragments.length == 5) {
+                    if (!admission.reserve(1)) {
+                        return AdmissionControl.BUSY_RESPONSE;
+                    }
+                    try {
+                        playTextRound(mostSigBits, leastSigBits, betMoney, round);
+                    } finally {
+                        admission.release(1);
+                    }
+                    return null;
+                }
+
+                // "... rounds N" or "... rounds N summary" -> several rounds in a row
+                var rounds = Integer.parseInt(queryFragments[6]);
+                var summary = queryFragments.length > 7 && queryFragments[7].equals("summary");
+                if (!queryFragments[5].equals("rounds") || rounds < 1 || rounds > Batch.MAX_ROUNDS) {
+                    throw new IllegalGameQueryException();
+                }
+                if (!admission.reserve(rounds)) {
+                    return AdmissionControl.BUSY_RESPONSE;
+                }
+                batch.start(mostSigBits, leastSigBits, betMoney, rounds, summary, false);
+                batch.reserved = rounds;
+                return null;
             } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
                 throw new IllegalGameQueryException();
             }
         }
 
         // quit a game -> remove the user ID from the buffer
-        if (query.substring(0, 18).equals("quit-game user-id ")) {
-            serverData.remove(userId);
+        if (query.startsWith("quit-game user-id ")) {
+            if (wallets.remove(mostSigBits, leastSigBits) == WalletStore.MISSING) {
+                throw new IllegalGameQueryException(userId);
+            }
+            if (changes != null) {
+                changes.removed(mostSigBits, leastSigBits);
+            }
             return "User ID " + userId + " have quit. Have a nice day!";
         }
 
@@ -237,83 +630,422 @@ public class Server implements AutoCloseable {
     }
 
     /**
-     * Initiate a new game and modify the server's buffer accordingly
+     * Executes a "join-table" or "leave-table" query. The tables only take text connections
      *
-     * @param userId the user's {@link UUID} value
+     * @param query the user's query
+     * @param connection the client's connection, where the rounds of the table go
+     * @return a string representing the result
+     * @throws IllegalGameQueryException representing an invalid query
+     */
+    @NotNull
+    String tableSession(@NotNull String query, @NotNull Connection connection) throws IllegalGameQueryException {
+        if (tables == null) {
+            return "No tables here, start the server with --table-tick";
+        }
+        if (follower != null) {
+            return READ_ONLY_RESPONSE;
+        }
+        var queryFragments = query.split(" ");
+        UUID userId;
+        try {
+            if (!queryFragments[1].equals("user-id")) {
+                throw new IllegalGameQueryException();
+            }
+            userId = UUID.fromString(queryFragments[2]);
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            throw new IllegalGameQueryException();
+        }
+        var mostSigBits = userId.getMostSignificantBits();
+        var leastSigBits = userId.getLeastSignificantBits();
+        var owner = ownerOf(mostSigBits, leastSigBits);
+        if (owner != nodeIndex) {
+            metrics.redirects.increment();
+            return "redirect " + ring.describe(owner);
+        }
+        if (wallets.get(mostSigBits, leastSigBits) == WalletStore.MISSING) {
+            throw new IllegalGameQueryException(userId);
+        }
+
+        if (queryFragments[0].equals("leave-table") && queryFragments.length == 3) {
+            return tables.leave(mostSigBits, leastSigBits);
+        }
+        if (queryFragments[0].equals("join-table") && queryFragments.length == 5
+                && queryFragments[3].equals("bet-money")) {
+            try {
+                var betMoney = Integer.parseInt(queryFragments[4]);
+                if (betMoney >= 0) {
+                    return tables.join(mostSigBits, leastSigBits, betMoney, connection);
+                }
+            } catch (NumberFormatException e) {
+                // invalid, like any other bet
+            }
+        }
+        throw new IllegalGameQueryException();
+    }
+
+    /**
+     * Executes a query sent with the {@link BinaryProtocol}. No strings are involved at all
+     *
+     * @param request the decoded frame
+     * @param round where the result goes
+     * @param batch the connection's batch, started if the query asks for several rounds
+     * @return true if a batch has been started, false if the result is in the round
+     */
+    boolean binarySession(@NotNull BinaryProtocol.Request request, @NotNull GameRound round, @NotNull Batch batch) {
+        round.reset();
+        if (follower != null && request.opcode != BinaryProtocol.BALANCE) {
+            round.status = BinaryProtocol.STATUS_READ_ONLY;
+            return false;
+        }
+        if (request.opcode != BinaryProtocol.NEW_USER) {
+            var owner = ownerOf(request.mostSigBits, request.leastSigBits);
+            if (owner != nodeIndex) {
+                // somebody else's user -> the response carries the node to ask instead
+                metrics.redirects.increment();
+                round.status = BinaryProtocol.STATUS_REDIRECT;
+                round.mostSigBits = request.mostSigBits;
+                round.leastSigBits = request.leastSigBits;
+                round.balance = owner;
+                return false;
+            }
+        }
+        switch (request.opcode) {
+            case BinaryProtocol.NEW_GAME_ROUNDS:
+            case BinaryProtocol.NEW_GAME_SUMMARY:
+                if (request.rounds < 1 || request.rounds > Batch.MAX_ROUNDS || request.betMoney < 0) {
+                    round.status = BinaryProtocol.STATUS_INVALID_QUERY;
+                    break;
+                }
+                if (!admission.admitUser(request.mostSigBits, request.leastSigBits)) {
+                    round.status = BinaryProtocol.STATUS_RATE_LIMITED;
+                    break;
+                }
+                if (!admission.reserve(request.rounds)) {
+                    round.status = BinaryProtocol.STATUS_BUSY;
+                    break;
+                }
+                batch.start(request.mostSigBits, request.leastSigBits, request.betMoney, request.rounds,
+                        request.opcode == BinaryProtocol.NEW_GAME_SUMMARY, true);
+                batch.reserved = request.rounds;
+                return true;
+            case BinaryProtocol.NEW_USER:
+                var newId = newUser();
+                round.mostSigBits = newId.getMostSignificantBits();
+                round.leastSigBits = newId.getLeastSignificantBits();
+                round.balance = START_MONEY;
+                break;
+            case BinaryProtocol.NEW_GAME:
+                if (request.betMoney < 0) {
+                    round.status = BinaryProtocol.STATUS_INVALID_QUERY;
+                    break;
+                }
+                if (!admission.admitUser(request.mostSigBits, request.leastSigBits)) {
+                    round.status = BinaryProtocol.STATUS_RATE_LIMITED;
+                    break;
+                }
+                if (!admission.reserve(1)) {
+                    round.status = BinaryProtocol.STATUS_BUSY;
+                    break;
+                }
+                try {
+                    playRound(request.mostSigBits, request.leastSigBits, request.betMoney, round);
+                } finally {
+                    admission.release(1);
+                }
+                break;
+            case BinaryProtocol.BALANCE:
+                round.mostSigBits = request.mostSigBits;
+                round.leastSigBits = request.leastSigBits;
+                round.balance = wallets.get(request.mostSigBits, request.leastSigBits);
+                if (round.balance == WalletStore.MISSING) {
+                    round.status = BinaryProtocol.STATUS_UNKNOWN_USER;
+                    round.balance = 0;
+                }
+                break;
+            case BinaryProtocol.QUIT_GAME:
+                round.mostSigBits = request.mostSigBits;
+                round.leastSigBits = request.leastSigBits;
+                var cash = wallets.remove(request.mostSigBits, request.leastSigBits);
+                if (cash == WalletStore.MISSING) {
+                    round.status = BinaryProtocol.STATUS_UNKNOWN_USER;
+                    break;
+                }
+                round.balance = cash;
+                if (changes != null) {
+                    changes.removed(request.mostSigBits, request.leastSigBits);
+                }
+                break;
+            default:
+                round.status = BinaryProtocol.STATUS_INVALID_QUERY;
+        }
+        return false;
+    }
+
+    /**
+     * @param mostSigBits the user ID's most significant bits
+     * @param leastSigBits the user ID's least significant bits
+     * @return the node which keeps the user, always this one if the server runs alone
+     */
+    private int ownerOf(long mostSigBits, long leastSigBits) {
+        return ring == null ? nodeIndex : ring.ownerOf(mostSigBits, leastSigBits);
+    }
+
+    /**
+     * Make a new user in the server buffer. In a cluster, the IDs are drawn until one lands on this node, which
+     * takes as many draws as there are nodes on average
+     * @return the new user's ID
+     */
+    @NotNull
+    private UUID newUser() {
+        var newId = UUID.randomUUID();
+        //just in case the ID already exists, or belongs to another node
+        while (ownerOf(newId.getMostSignificantBits(), newId.getLeastSignificantBits()) != nodeIndex
+                || !wallets.create(newId.getMostSignificantBits(), newId.getLeastSignificantBits(), START_MONEY)) {
+            newId = UUID.randomUUID();
+        }
+        if (changes != null) {
+            changes.created(newId.getMostSignificantBits(), newId.getLeastSignificantBits(), START_MONEY);
+        }
+        if (expiry != null) {
+            expiry.schedule(newId.getMostSignificantBits(), newId.getLeastSignificantBits());
+        }
+        return newId;
+    }
+
+    /**
+     * Initiate a new game for a text query, and modify the server's buffer accordingly
+     *
+     * @param mostSigBits the user ID's most significant bits
+     * @param leastSigBits the user ID's least significant bits
+     * @param betMoney the amount of cash that the user has bet
+     * @param round the caller's reusable round, where the result goes
+     * @throws IllegalGameQueryException if the user has quit in the meantime, or can't cover the bet
+     */
+    private void playTextRound(long mostSigBits, long leastSigBits, int betMoney, @NotNull GameRound round)
+            throws IllegalGameQueryException {
+        playRound(mostSigBits, leastSigBits, betMoney, round);
+        if (round.status == BinaryProtocol.STATUS_UNKNOWN_USER) {
+            throw new IllegalGameQueryException(round.getUserId());
+        }
+        if (round.status == BinaryProtocol.STATUS_INSUFFICIENT_FUNDS) {
+            throw new IllegalGameQueryException(round.getUserId(), round.balance);
+        }
+    }
+
+    /**
+     * Settle the bet of a player of a table, whose hand has been dealt and compared already: the user wins or
+     * loses the bet in one atomic step, provided the cash covers it
+     *
+     * @param round the dealt round, with the user ID and the outcome. The status, balance and bankruptcy go there
      * @param betMoney the amount of cash that the user has bet
+     */
+    void settleTableRound(@NotNull GameRound round, int betMoney) {
+        var amount = round.outcome == GameRound.OUTCOME_WIN ? betMoney
+                : round.outcome == GameRound.OUTCOME_LOSS ? -betMoney : 0;
+        var cash = wallets.settle(round.mostSigBits, round.leastSigBits, betMoney, amount);
+        if (cash == WalletStore.MISSING) {
+            round.status = BinaryProtocol.STATUS_UNKNOWN_USER;
+            return;
+        }
+        if (cash == WalletStore.INSUFFICIENT) {
+            round.status = BinaryProtocol.STATUS_INSUFFICIENT_FUNDS;
+            round.balance = wallets.get(round.mostSigBits, round.leastSigBits);
+            return;
+        }
+        round.balance = cash;
+        if (amount != 0) {
+            metrics.houseProfit.add(-amount);
+            if (changes != null) {
+                changes.changed(round.mostSigBits, round.leastSigBits, amount);
+            }
+        }
+        // same as a game, see serverWinProtocol()
+        if (round.outcome == GameRound.OUTCOME_LOSS && cash < 1) {
+            round.bankrupt = true;
+            if (wallets.removeIfBelow(round.mostSigBits, round.leastSigBits, 1) != WalletStore.MISSING
+                    && changes != null) {
+                changes.removed(round.mostSigBits, round.leastSigBits);
+            }
+        }
+    }
+
+    /**
+     * Describe a played round as text. The responses are written by {@link TextProtocol} instead, which gives the
+     * same bytes without building a string; this is for the logs
+     *
+     * @param round the result of the game
      * @return a new string representing the result of the game
      */
     @NotNull
-    private String gameResult(final UUID userId, final int betMoney) {
-        //prepare stuff
+    String roundText(@NotNull GameRound round) {
         var rtn = new StringBuilder();
-        var drawnCardsStr = new HashSet<String>();
-        var clientScore = new Score();
-        var serverScore = new Score();
-
-        // draw 6 cards
-        for (int i = 0; i < 6; i++) {
-            //ensure that all card's uniqueness by storing each card's string form into a HashSet
-            var card = new Card();
-            while (!drawnCardsStr.add(card.toString())) {
-                card = new Card();
-            }
+        for (int i = 0; i < GameRound.CARDS; i++) {
+            rtn.append(i % 2 == 0 ? "Client card " : "Server card ").append(round.getCard(i)).append("\n");
+        }
+        rtn.append("Server point: ").append(round.serverPoint).append("\nYour point: ")
+                .append(round.clientPoint).append("\n");
 
-            // draw cards sequentially: client -> server -> client -> ...
-            if (i % 2 == 0) {
-                clientScore.setPoint(card);
-                var str = "Client card " + card.toString() + "\n";
-                rtn.append(str);
-            } else {
-                serverScore.setPoint(card);
-                var str = "Server card " + card.toString() + "\n";
-                rtn.append(str);
+        if (round.outcome == GameRound.OUTCOME_WIN) {
+            rtn.append("You won! Your current money is ").append(round.balance).append("\n");
+        } else if (round.outcome == GameRound.OUTCOME_LOSS) {
+            rtn.append("You lost! Your current money is ").append(round.balance).append("\n");
+            if (round.bankrupt) {
+                rtn.append("You've lost all of the cash. Come back next time.");
             }
+        } else {
+            rtn.append("Draw! Your current money is ").append(round.balance).append("\n");
         }
+        return rtn.toString();
+    }
 
-        rtn.append("Server point: ").append(serverScore.getPoint()).append("\nYour point: ")
-                .append(clientScore.getPoint()).append("\n");
+    /**
+     * Play the next round of a batch
+     *
+     * @param batch the batch, which must still be active
+     * @param round where the result of the round goes
+     */
+    void playBatchRound(@NotNull Batch batch, @NotNull GameRound round) {
+        playRound(batch.mostSigBits, batch.leastSigBits, batch.betMoney, round);
+        batch.record(round);
+    }
+
+    /**
+     * Describe a finished batch as text
+     *
+     * @param batch the batch
+     * @return a new string summing up the batch
+     */
+    @NotNull
+    String batchSummary(@NotNull Batch batch) {
+        var userId = new UUID(batch.mostSigBits, batch.leastSigBits);
+        if (batch.played == 0 && batch.stopStatus == BinaryProtocol.STATUS_UNKNOWN_USER) {
+            return new IllegalGameQueryException(userId).getMessage();
+        }
+        if (batch.played == 0 && batch.stopStatus == BinaryProtocol.STATUS_INSUFFICIENT_FUNDS) {
+            return new IllegalGameQueryException(userId, batch.balance).getMessage();
+        }
+        var rtn = new StringBuilder();
+        if (batch.bankrupt && !batch.summary) {
+            // the last round ended with the bankruptcy line
+            rtn.append("\n");
+        }
+        rtn.append("Rounds played: ").append(batch.played)
+                .append("\nWins: ").append(batch.wins)
+                .append(", losses: ").append(batch.losses)
+                .append(", draws: ").append(batch.draws)
+                .append("\nNet result: ").append(batch.net > 0 ? "+" : "").append(batch.net)
+                .append("\nYour current money is ").append(batch.balance).append("\n");
+        if (batch.stopStatus == BinaryProtocol.STATUS_UNKNOWN_USER) {
+            rtn.append(new IllegalGameQueryException(userId).getMessage());
+        } else if (batch.stopStatus == BinaryProtocol.STATUS_INSUFFICIENT_FUNDS) {
+            rtn.append("Stopped early, the bet is more than your cash.");
+        } else if (batch.bankrupt) {
+            rtn.append("You've lost all of the cash. Come back next time.");
+        }
+        return rtn.toString();
+    }
+
+    /**
+     * Initiate a new game and modify the server's buffer accordingly
+     *
+     * @param mostSigBits the user ID's most significant bits
+     * @param leastSigBits the user ID's least significant bits
+     * @param betMoney the amount of cash that the user has bet
+     * @param round where the result goes
+     */
+    private void playRound(long mostSigBits, long leastSigBits, int betMoney, @NotNull GameRound round) {
+        //prepare stuff
+        round.reset();
+        round.mostSigBits = mostSigBits;
+        round.leastSigBits = leastSigBits;
+
+        // take the bet first - no cash, no game
+        var cash = wallets.debit(mostSigBits, leastSigBits, betMoney);
+        if (cash == WalletStore.MISSING) {
+            round.status = BinaryProtocol.STATUS_UNKNOWN_USER;
+            return;
+        }
+        if (cash == WalletStore.INSUFFICIENT) {
+            round.status = BinaryProtocol.STATUS_INSUFFICIENT_FUNDS;
+            round.balance = wallets.get(mostSigBits, leastSigBits);
+            return;
+        }
+
+        // deal 6 distinct cards, sequentially: client -> server -> client -> ...
+        var cards = round.cards;
+        Deck.current().deal(cards, GameRound.CARDS);
+        var clientRank = HandEvaluator.evaluate(cards[0], cards[2], cards[4]);
+        var serverRank = HandEvaluator.evaluate(cards[1], cards[3], cards[5]);
+        round.clientPoint = HandEvaluator.point(clientRank);
+        round.serverPoint = HandEvaluator.point(serverRank);
 
         //determine who won the game
-        var winState = clientScore.compareTo(serverScore);
+        var winState = HandEvaluator.compare(clientRank, serverRank);
         if (winState > 0) {
-            clientWinProtocol(userId, betMoney, rtn);
+            clientWinProtocol(betMoney, round);
         } else if (winState < 0) {
-            serverWinProtocol(userId, betMoney, rtn);
+            serverWinProtocol(betMoney, cash, round);
         } else {
-            rtn.append("Draw! Your current money is ").append(serverData.get(userId)).append("\n");
+            // draw -> the bet goes back
+            round.outcome = GameRound.OUTCOME_DRAW;
+            settle(wallets.add(mostSigBits, leastSigBits, betMoney), round);
         }
-        return rtn.toString();
     }
 
     /**
-     * The client won so add the money to the correct user
-     * @param userId the user ID
-     * @param betMoney the amount of cash to add
-     * @param rtn from the parent method
+     * The client won so give back the bet, plus as much again
+     * @param betMoney the amount of cash that the user has bet
+     * @param round from the parent method
      */
-    private void clientWinProtocol(final UUID userId, final int betMoney, @NotNull StringBuilder rtn) {
+    private void clientWinProtocol(final int betMoney, @NotNull GameRound round) {
         //in the case of client winning
-        serverData.computeIfPresent(userId, (k,v) -> v + betMoney);
-        rtn.append("You won! Your current money is ").append(serverData.get(userId)).append("\n");
+        round.outcome = GameRound.OUTCOME_WIN;
+        settle(wallets.add(round.mostSigBits, round.leastSigBits, 2L * betMoney), round);
+        if (round.status == BinaryProtocol.STATUS_OK) {
+            metrics.houseProfit.add(-betMoney);
+            if (changes != null) {
+                changes.changed(round.mostSigBits, round.leastSigBits, betMoney);
+            }
+        }
     }
 
     /**
-     * The server won so deduct the money from the correct user
-     * @param userId the user ID
-     * @param betMoney the amount of cash to remove
-     * @param rtn from the parent method
+     * The server won so the bet is gone already
+     * @param betMoney the amount of cash that the user has bet
+     * @param cash the user's cash after the bet was taken
+     * @param round from the parent method
      */
-    private void serverWinProtocol(final UUID userId, final int betMoney, @NotNull StringBuilder rtn) {
+    private void serverWinProtocol(final int betMoney, final long cash, @NotNull GameRound round) {
         //in the case of client losing
-        serverData.computeIfPresent(userId, (k,v) -> v - betMoney);
-        var cash = serverData.get(userId);
-        rtn.append("You lost! Your current money is ").append(cash).append("\n");
+        round.outcome = GameRound.OUTCOME_LOSS;
+        round.balance = cash;
+        metrics.houseProfit.add(betMoney);
+        if (changes != null) {
+            changes.changed(round.mostSigBits, round.leastSigBits, -betMoney);
+        }
 
-        //if the amount of cash is negative -> kicks the user out
+        //if the amount of cash is gone -> kicks the user out
+        //(unless another reactor has added some cash in the meantime, then it's their call)
         if (cash < 1) {
-            rtn.append("You've lost all of the cash. Come back next time.");
-            serverData.remove(userId);
+            round.bankrupt = true;
+            if (wallets.removeIfBelow(round.mostSigBits, round.leastSigBits, 1) != WalletStore.MISSING
+                    && changes != null) {
+                changes.removed(round.mostSigBits, round.leastSigBits);
+            }
+        }
+    }
+
+    /**
+     * Record the user's cash after paying back the bet
+     * @param cash the result of the payment
+     * @param round from the parent method
+     */
+    private void settle(long cash, @NotNull GameRound round) {
+        if (cash == WalletStore.MISSING) {
+            // the user has quit halfway through the game
+            round.status = BinaryProtocol.STATUS_UNKNOWN_USER;
+            return;
         }
+        round.balance = cash;
     }
 }
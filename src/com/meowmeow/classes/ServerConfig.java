@@ -0,0 +1,567 @@
+package com.meowmeow.classes;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * <h3>Server Config class</h3>
+ * <p>All of the knobs of a {@link Server}, with the defaults matching the original single-threaded server.</p>
+ * <p>The setters return the config itself so they can be chained.</p>
+ */
+public class ServerConfig {
+    /**
+     * How the connections are served
+     */
+    public enum Mode {
+        /** A few {@link Reactor} threads with a selector each, see {@link #setReactorThreads(int)} */
+        SELECTOR,
+        /** A {@link BlockingSession} thread per connection, virtual if the JVM has them */
+        THREAD_PER_CONNECTION
+    }
+
+    private Mode mode = Mode.SELECTOR;
+
+    private int port = 12345;
+
+    private int reactorThreads = 0;
+
+    private int workerThreads = 0;
+
+    private Path dataDirectory = null;
+
+    private long commitIntervalMillis = 10;
+
+    private long snapshotIntervalSeconds = 60;
+
+    private long metricsIntervalSeconds = 0;
+
+    private Log.Level logLevel = Log.Level.INFO;
+
+    private long idleTtlSeconds = 0;
+
+    private Path archiveFile = null;
+
+    private int maxConnections = 0;
+
+    private double userRate = 0, ipRate = 0;
+
+    private int userBurst = 0, ipBurst = 0;
+
+    private long pendingBudget = 0;
+
+    private List<InetSocketAddress> clusterNodes = List.of();
+
+    private int nodeIndex = 0;
+
+    private int replicationPort = 0;
+
+    private InetSocketAddress leader = null;
+
+    private long replicationIntervalMillis = 5;
+
+    private long tableTickMillis = 0;
+
+    private int tableSeats = 64;
+
+    public int getPort() {
+        return port;
+    }
+
+    public ServerConfig setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public ServerConfig setMode(@NotNull Mode mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    public int getReactorThreads() {
+        return reactorThreads;
+    }
+
+    /**
+     * @param reactorThreads 0 to run everything on the thread calling {@link Server#startServer()}, or the number
+     *                       of I/O threads which serve the connections handed over by a dedicated acceptor
+     * @return this config
+     */
+    public ServerConfig setReactorThreads(int reactorThreads) {
+        if (reactorThreads < 0) {
+            throw new IllegalArgumentException("The number of reactor threads can't be negative");
+        }
+        this.reactorThreads = reactorThreads;
+        return this;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    /**
+     * @param workerThreads the number of threads which serve the queries for the reactors (see {@link WorkerPool}),
+     *                      0 to serve them on the reactors themselves. Only the selector mode has them
+     * @return this config
+     */
+    public ServerConfig setWorkerThreads(int workerThreads) {
+        if (workerThreads < 0) {
+            throw new IllegalArgumentException("The number of workers can't be negative");
+        }
+        this.workerThreads = workerThreads;
+        return this;
+    }
+
+    @Nullable
+    public Path getDataDirectory() {
+        return dataDirectory;
+    }
+
+    /**
+     * @param dataDirectory where the wallets are kept between restarts (see {@link WalletJournal}),
+     *                      or null to keep them in memory only
+     * @return this config
+     */
+    public ServerConfig setDataDirectory(@Nullable Path dataDirectory) {
+        this.dataDirectory = dataDirectory;
+        return this;
+    }
+
+    public long getCommitIntervalMillis() {
+        return commitIntervalMillis;
+    }
+
+    /**
+     * @param commitIntervalMillis how often the journal is forced to the disk, which is also the most a crash of
+     *                             the whole machine can lose
+     * @return this config
+     */
+    public ServerConfig setCommitIntervalMillis(long commitIntervalMillis) {
+        if (commitIntervalMillis < 1) {
+            throw new IllegalArgumentException("The commit interval must be at least 1 ms");
+        }
+        this.commitIntervalMillis = commitIntervalMillis;
+        return this;
+    }
+
+    public long getSnapshotIntervalSeconds() {
+        return snapshotIntervalSeconds;
+    }
+
+    /**
+     * @param snapshotIntervalSeconds how often the journal is compacted into a snapshot
+     * @return this config
+     */
+    public ServerConfig setSnapshotIntervalSeconds(long snapshotIntervalSeconds) {
+        if (snapshotIntervalSeconds < 1) {
+            throw new IllegalArgumentException("The snapshot interval must be at least 1 s");
+        }
+        this.snapshotIntervalSeconds = snapshotIntervalSeconds;
+        return this;
+    }
+
+    public long getMetricsIntervalSeconds() {
+        return metricsIntervalSeconds;
+    }
+
+    /**
+     * @param metricsIntervalSeconds how often the metrics are printed, 0 to never print them. They can be asked
+     *                               for with the "server-metrics" query anyway
+     * @return this config
+     */
+    public ServerConfig setMetricsIntervalSeconds(long metricsIntervalSeconds) {
+        if (metricsIntervalSeconds < 0) {
+            throw new IllegalArgumentException("The metrics interval can't be negative");
+        }
+        this.metricsIntervalSeconds = metricsIntervalSeconds;
+        return this;
+    }
+
+    public long getIdleTtlSeconds() {
+        return idleTtlSeconds;
+    }
+
+    /**
+     * @param idleTtlSeconds how long a user can go without playing before being removed (see {@link WalletExpiry}),
+     *                       or 0 to keep the users until they quit
+     * @return this config
+     */
+    public ServerConfig setIdleTtlSeconds(long idleTtlSeconds) {
+        if (idleTtlSeconds < 0) {
+            throw new IllegalArgumentException("The idle TTL can't be negative");
+        }
+        this.idleTtlSeconds = idleTtlSeconds;
+        return this;
+    }
+
+    @Nullable
+    public Path getArchiveFile() {
+        return archiveFile;
+    }
+
+    /**
+     * @param archiveFile where the users removed for being idle are appended with their cash, or null to drop them
+     * @return this config
+     */
+    public ServerConfig setArchiveFile(@Nullable Path archiveFile) {
+        this.archiveFile = archiveFile;
+        return this;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @param maxConnections the most connections open at once, the ones over it are told the server is busy and
+     *                       closed. 0 for no limit
+     * @return this config
+     */
+    public ServerConfig setMaxConnections(int maxConnections) {
+        if (maxConnections < 0) {
+            throw new IllegalArgumentException("The maximum number of connections can't be negative");
+        }
+        this.maxConnections = maxConnections;
+        return this;
+    }
+
+    public double getUserRate() {
+        return userRate;
+    }
+
+    public int getUserBurst() {
+        return userBurst;
+    }
+
+    /**
+     * @param userRate the game queries per second a user can keep up, 0 for no limit
+     * @param userBurst how many game queries a user can send at once on top of that, 0 for as many as in a second
+     * @return this config
+     */
+    public ServerConfig setUserRateLimit(double userRate, int userBurst) {
+        if (userRate < 0 || userBurst < 0) {
+            throw new IllegalArgumentException("The user rate limit can't be negative");
+        }
+        this.userRate = userRate;
+        this.userBurst = userBurst == 0 ? (int) Math.ceil(userRate) : userBurst;
+        return this;
+    }
+
+    public double getIpRate() {
+        return ipRate;
+    }
+
+    public int getIpBurst() {
+        return ipBurst;
+    }
+
+    /**
+     * @param ipRate the game and "new-user" queries per second the clients of an IP address can keep up together,
+     *               0 for no limit
+     * @param ipBurst how many of them can come at once on top of that, 0 for as many as in a second
+     * @return this config
+     */
+    public ServerConfig setIpRateLimit(double ipRate, int ipBurst) {
+        if (ipRate < 0 || ipBurst < 0) {
+            throw new IllegalArgumentException("The IP rate limit can't be negative");
+        }
+        this.ipRate = ipRate;
+        this.ipBurst = ipBurst == 0 ? (int) Math.ceil(ipRate) : ipBurst;
+        return this;
+    }
+
+    public long getPendingBudget() {
+        return pendingBudget;
+    }
+
+    /**
+     * @param pendingBudget the most rounds being played or booked by batches at once, server-wide. The games over
+     *                      it are told the server is busy. 0 for no limit
+     * @return this config
+     */
+    public ServerConfig setPendingBudget(long pendingBudget) {
+        if (pendingBudget < 0) {
+            throw new IllegalArgumentException("The pending work budget can't be negative");
+        }
+        this.pendingBudget = pendingBudget;
+        return this;
+    }
+
+    /**
+     * @return the nodes of the cluster, empty if the server runs alone
+     */
+    @NotNull
+    public List<InetSocketAddress> getClusterNodes() {
+        return clusterNodes;
+    }
+
+    /**
+     * @return this server's position in {@link #getClusterNodes()}
+     */
+    public int getNodeIndex() {
+        return nodeIndex;
+    }
+
+    /**
+     * Run as one node of a cluster, which splits the users between its nodes by their ID (see {@link HashRing}).
+     * Every node has to be given the same nodes in the same order
+     * @param clusterNodes the addresses of all of the nodes, this one included, as the clients reach them.
+     *                     Empty to run alone
+     * @param nodeIndex this server's position in the list
+     * @return this config
+     */
+    public ServerConfig setCluster(@NotNull List<InetSocketAddress> clusterNodes, int nodeIndex) {
+        if (!clusterNodes.isEmpty() && (nodeIndex < 0 || nodeIndex >= clusterNodes.size())) {
+            throw new IllegalArgumentException("The node index must be between 0 and " + (clusterNodes.size() - 1));
+        }
+        this.clusterNodes = List.copyOf(clusterNodes);
+        this.nodeIndex = nodeIndex;
+        return this;
+    }
+
+    public int getReplicationPort() {
+        return replicationPort;
+    }
+
+    /**
+     * @param replicationPort where the followers connect to get every change of the wallets (see
+     *                        {@link ReplicationLeader}), 0 to have no followers. A follower only starts taking
+     *                        them once it is promoted
+     * @return this config
+     */
+    public ServerConfig setReplicationPort(int replicationPort) {
+        if (replicationPort < 0) {
+            throw new IllegalArgumentException("The replication port can't be negative");
+        }
+        this.replicationPort = replicationPort;
+        return this;
+    }
+
+    @Nullable
+    public InetSocketAddress getLeader() {
+        return leader;
+    }
+
+    /**
+     * @param leader the replication port of the server to follow (see {@link ReplicationFollower}), or null to be
+     *               a leader. A follower only answers the read-only queries until it is promoted, and keeps the
+     *               wallets in memory only
+     * @return this config
+     */
+    public ServerConfig setLeader(@Nullable InetSocketAddress leader) {
+        this.leader = leader;
+        return this;
+    }
+
+    public long getReplicationIntervalMillis() {
+        return replicationIntervalMillis;
+    }
+
+    /**
+     * @param replicationIntervalMillis how often the changes are shipped to the followers, which is also about how
+     *                                  far behind they are
+     * @return this config
+     */
+    public ServerConfig setReplicationIntervalMillis(long replicationIntervalMillis) {
+        if (replicationIntervalMillis < 1) {
+            throw new IllegalArgumentException("The replication interval must be at least 1 ms");
+        }
+        this.replicationIntervalMillis = replicationIntervalMillis;
+        return this;
+    }
+
+    public long getTableTickMillis() {
+        return tableTickMillis;
+    }
+
+    /**
+     * @param tableTickMillis how often every table deals a round to its players (see {@link TableDealer}), 0 to have
+     *                        no tables. Only the selector mode has them
+     * @return this config
+     */
+    public ServerConfig setTableTickMillis(long tableTickMillis) {
+        if (tableTickMillis < 0) {
+            throw new IllegalArgumentException("The table tick can't be negative");
+        }
+        this.tableTickMillis = tableTickMillis;
+        return this;
+    }
+
+    public int getTableSeats() {
+        return tableSeats;
+    }
+
+    /**
+     * @param tableSeats the most players a table seats, a new table is opened once they are all full
+     * @return this config
+     */
+    public ServerConfig setTableSeats(int tableSeats) {
+        if (tableSeats < 1) {
+            throw new IllegalArgumentException("A table needs at least one seat");
+        }
+        this.tableSeats = tableSeats;
+        return this;
+    }
+
+    public Log.Level getLogLevel() {
+        return logLevel;
+    }
+
+    /**
+     * @param logLevel the lowest level which is logged, see {@link Log}. {@link Log.Level#DEBUG} logs every query
+     *                 and response
+     * @return this config
+     */
+    public ServerConfig setLogLevel(@NotNull Log.Level logLevel) {
+        this.logLevel = logLevel;
+        return this;
+    }
+
+    /**
+     * Read the config from the command line. The accepted options are:
+     * <ul>
+     *     <li>{@code --port <number>} - the port to listen on</li>
+     *     <li>{@code --mode selector|threads} - see {@link Mode}</li>
+     *     <li>{@code --reactors <number>} - see {@link #setReactorThreads(int)}</li>
+     *     <li>{@code --workers <number>} - see {@link #setWorkerThreads(int)}</li>
+     *     <li>{@code --data-dir <path>} - see {@link #setDataDirectory(Path)}</li>
+     *     <li>{@code --commit-interval <ms>} - see {@link #setCommitIntervalMillis(long)}</li>
+     *     <li>{@code --snapshot-interval <s>} - see {@link #setSnapshotIntervalSeconds(long)}</li>
+     *     <li>{@code --metrics-interval <s>} - see {@link #setMetricsIntervalSeconds(long)}</li>
+     *     <li>{@code --log-level debug|info|warn|error|off} - see {@link #setLogLevel(Log.Level)}</li>
+     *     <li>{@code --idle-ttl <s>} - see {@link #setIdleTtlSeconds(long)}</li>
+     *     <li>{@code --archive-file <path>} - see {@link #setArchiveFile(Path)}</li>
+     *     <li>{@code --max-connections <number>} - see {@link #setMaxConnections(int)}</li>
+     *     <li>{@code --user-rate <per-second>[:<burst>]} - see {@link #setUserRateLimit(double, int)}</li>
+     *     <li>{@code --ip-rate <per-second>[:<burst>]} - see {@link #setIpRateLimit(double, int)}</li>
+     *     <li>{@code --pending-budget <rounds>} - see {@link #setPendingBudget(long)}</li>
+     *     <li>{@code --cluster <host:port>,<host:port>,...} and {@code --node <index>} - see
+     *     {@link #setCluster(List, int)}</li>
+     *     <li>{@code --replication-port <number>} - see {@link #setReplicationPort(int)}</li>
+     *     <li>{@code --follow <host:port>} - see {@link #setLeader(InetSocketAddress)}</li>
+     *     <li>{@code --replication-interval <ms>} - see {@link #setReplicationIntervalMillis(long)}</li>
+     *     <li>{@code --table-tick <ms>} - see {@link #setTableTickMillis(long)}</li>
+     *     <li>{@code --table-seats <number>} - see {@link #setTableSeats(int)}</li>
+     * </ul>
+     * @param args the arguments of {@code main()}
+     * @return the config
+     * @throws IllegalArgumentException if an option is unknown or has no value
+     */
+    @NotNull
+    public static ServerConfig fromArgs(@NotNull String[] args) {
+        var config = new ServerConfig();
+        var clusterNodes = new ArrayList<InetSocketAddress>();
+        var nodeIndex = 0;
+        for (int i = 0; i < args.length; i++) {
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            }
+            var value = args[++i];
+            switch (args[i - 1]) {
+                case "--port":
+                    config.setPort(Integer.parseInt(value));
+                    break;
+                case "--mode":
+                    if (value.equals("selector")) {
+                        config.setMode(Mode.SELECTOR);
+                    } else if (value.equals("threads")) {
+                        config.setMode(Mode.THREAD_PER_CONNECTION);
+                    } else {
+                        throw new IllegalArgumentException("Unknown mode " + value);
+                    }
+                    break;
+                case "--reactors":
+                    config.setReactorThreads(Integer.parseInt(value));
+                    break;
+                case "--workers":
+                    config.setWorkerThreads(Integer.parseInt(value));
+                    break;
+                case "--data-dir":
+                    config.setDataDirectory(Path.of(value));
+                    break;
+                case "--commit-interval":
+                    config.setCommitIntervalMillis(Long.parseLong(value));
+                    break;
+                case "--snapshot-interval":
+                    config.setSnapshotIntervalSeconds(Long.parseLong(value));
+                    break;
+                case "--metrics-interval":
+                    config.setMetricsIntervalSeconds(Long.parseLong(value));
+                    break;
+                case "--idle-ttl":
+                    config.setIdleTtlSeconds(Long.parseLong(value));
+                    break;
+                case "--archive-file":
+                    config.setArchiveFile(Path.of(value));
+                    break;
+                case "--max-connections":
+                    config.setMaxConnections(Integer.parseInt(value));
+                    break;
+                case "--user-rate":
+                    config.setUserRateLimit(rateOf(value), burstOf(value));
+                    break;
+                case "--ip-rate":
+                    config.setIpRateLimit(rateOf(value), burstOf(value));
+                    break;
+                case "--pending-budget":
+                    config.setPendingBudget(Long.parseLong(value));
+                    break;
+                case "--cluster":
+                    for (var node : value.split(",")) {
+                        clusterNodes.add(ClientConfig.parseEndpoint(node));
+                    }
+                    break;
+                case "--node":
+                    nodeIndex = Integer.parseInt(value);
+                    break;
+                case "--replication-port":
+                    config.setReplicationPort(Integer.parseInt(value));
+                    break;
+                case "--follow":
+                    config.setLeader(ClientConfig.parseEndpoint(value));
+                    break;
+                case "--replication-interval":
+                    config.setReplicationIntervalMillis(Long.parseLong(value));
+                    break;
+                case "--table-tick":
+                    config.setTableTickMillis(Long.parseLong(value));
+                    break;
+                case "--table-seats":
+                    config.setTableSeats(Integer.parseInt(value));
+                    break;
+                case "--log-level":
+                    try {
+                        config.setLogLevel(Log.Level.valueOf(value.toUpperCase(Locale.ROOT)));
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("Unknown log level " + value);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i - 1]);
+            }
+        }
+        return config.setCluster(clusterNodes, nodeIndex);
+    }
+
+    /**
+     * @param value {@code <per-second>} or {@code <per-second>:<burst>}
+     */
+    private static double rateOf(@NotNull String value) {
+        var colon = value.indexOf(':');
+        return Double.parseDouble(colon < 0 ? value : value.substring(0, colon));
+    }
+
+    private static int burstOf(@NotNull String value) {
+        var colon = value.indexOf(':');
+        return colon < 0 ? 0 : Integer.parseInt(value.substring(colon + 1));
+    }
+}
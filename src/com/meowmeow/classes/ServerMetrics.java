@@ -0,0 +1,133 @@
+package com.meowmeow.classes;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <h3>Server Metrics class</h3>
+ * <p>What the {@link Server} has been doing since it started, for the "server-metrics" query and the periodic dump.</p>
+ * <p>
+ *     Every counter is a {@link LongAdder} and every latency goes to a {@link ConcurrentLatencyHistogram}, so the
+ *     reactors, the sessions and the acceptor all record without locks and without fighting over the same cache
+ *     line. Recording never allocates. The metrics are always on.
+ * </p>
+ */
+final class ServerMetrics {
+    /** Selector wake-ups, and the keys they selected, on every reactor and the acceptor */
+    final LongAdder selects = new LongAdder(), events = new LongAdder();
+
+    final LongAdder accepts = new LongAdder();
+
+    final LongAdder bytesIn = new LongAdder(), bytesOut = new LongAdder();
+
+    /** Queries answered with an error: {@link IllegalGameQueryException}s and binary error statuses */
+    final LongAdder errors = new LongAdder();
+
+    /** Refusals of the {@link AdmissionControl}: connections over the maximum, queries over a rate limit, and
+     * games over the pending work budget */
+    final LongAdder rejectedConnections = new LongAdder(), rateLimited = new LongAdder(), busy = new LongAdder();
+
+    /** Queries about users of another node of the cluster */
+    final LongAdder redirects = new LongAdder();
+
+    /** Changes of the wallets shipped by the {@link ReplicationLeader}, and applied by a {@link ReplicationFollower} */
+    final LongAdder replicatedRecords = new LongAdder(), appliedRecords = new LongAdder();
+
+    /** Rounds dealt to the players of the {@link TableDealer}, and their results which a connection couldn't take */
+    final LongAdder tableRounds = new LongAdder(), droppedPushes = new LongAdder();
+
+    /** Users removed by the {@link WalletExpiry} */
+    final LongAdder expiredUsers = new LongAdder();
+
+    /** The bets the users have lost, minus the winnings paid out */
+    final LongAdder houseProfit = new LongAdder();
+
+    private final ConcurrentLatencyHistogram newUser = new ConcurrentLatencyHistogram();
+
+    private final ConcurrentLatencyHistogram newGame = new ConcurrentLatencyHistogram();
+
+    private final ConcurrentLatencyHistogram quitGame = new ConcurrentLatencyHistogram();
+
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * Record how long a command took to execute
+     * @param command the command's opcode, see {@link BinaryProtocol}. The others aren't timed
+     * @param nanos the time
+     */
+    void recordCommand(byte command, long nanos) {
+        switch (command) {
+            case BinaryProtocol.NEW_USER:
+                newUser.record(nanos);
+                break;
+            case BinaryProtocol.NEW_GAME:
+                newGame.record(nanos);
+                break;
+            case BinaryProtocol.QUIT_GAME:
+                quitGame.record(nanos);
+                break;
+            default:
+                // not timed
+        }
+    }
+
+    /**
+     * @param query a text query
+     * @return the opcode of the same command in the {@link BinaryProtocol}, or 0 for anything else
+     */
+    static byte textCommand(@NotNull String query) {
+        if (query.startsWith("new-game")) {
+            return BinaryProtocol.NEW_GAME;
+        }
+        if (query.startsWith("new-user")) {
+            return BinaryProtocol.NEW_USER;
+        }
+        if (query.startsWith("quit-game")) {
+            return BinaryProtocol.QUIT_GAME;
+        }
+        return 0;
+    }
+
+    /**
+     * Describe the metrics, one per line
+     * @param activeUsers the number of users right now
+     * @return the description
+     */
+    @NotNull
+    String describe(long activeUsers) {
+        var seconds = Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+        var selectCount = selects.sum();
+        var acceptCount = accepts.sum();
+        var rtn = new StringBuilder(512);
+        rtn.append(String.format(Locale.ROOT, "uptime-seconds %.1f%n", seconds));
+        rtn.append(String.format(Locale.ROOT, "selects %d events %d events-per-select %.2f%n", selectCount,
+                events.sum(), selectCount == 0 ? 0.0 : (double) events.sum() / selectCount));
+        rtn.append(String.format(Locale.ROOT, "accepts %d accepts-per-second %.2f%n", acceptCount,
+                acceptCount / seconds));
+        rtn.append("bytes-in ").append(bytesIn.sum()).append(" bytes-out ").append(bytesOut.sum()).append('\n');
+        describeLatency(rtn, "new-user", newUser.snapshot());
+        describeLatency(rtn, "new-game", newGame.snapshot());
+        describeLatency(rtn, "quit-game", quitGame.snapshot());
+        rtn.append("rejected-connections ").append(rejectedConnections.sum()).append(" rate-limited ")
+                .append(rateLimited.sum()).append(" busy ").append(busy.sum()).append('\n');
+        rtn.append("redirects ").append(redirects.sum()).append(" replicated-records ")
+                .append(replicatedRecords.sum()).append(" applied-records ").append(appliedRecords.sum()).append('\n');
+        rtn.append("errors ").append(errors.sum()).append(" log-dropped ").append(Log.getDropped()).append('\n');
+        rtn.append("active-users ").append(activeUsers).append(" expired-users ").append(expiredUsers.sum())
+                .append('\n');
+        rtn.append("table-rounds ").append(tableRounds.sum()).append(" dropped-pushes ").append(droppedPushes.sum())
+                .append('\n');
+        rtn.append("house-profit ").append(houseProfit.sum());
+        return rtn.toString();
+    }
+
+    private static void describeLatency(@NotNull StringBuilder rtn, @NotNull String command,
+                                        @NotNull LatencyHistogram histogram) {
+        rtn.append(String.format(Locale.ROOT, "%s count %d p50-us %.1f p99-us %.1f p99.9-us %.1f max-us %.1f%n",
+                command, histogram.getTotalCount(), histogram.getValueAtPercentile(50) / 1e3,
+                histogram.getValueAtPercentile(99) / 1e3, histogram.getValueAtPercentile(99.9) / 1e3,
+                histogram.getMax() / 1e3));
+    }
+}
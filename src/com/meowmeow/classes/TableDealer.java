@@ -0,0 +1,354 @@
+package com.meowmeow.classes;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <h3>Table Dealer class</h3>
+ * <p>Runs the shared tables: every tick, each table deals one round to all of its players against one dealer hand.</p>
+ * <p>
+ *     A player sits down with "join-table" and from then on plays every round of the table with the same bet,
+ *     without sending a query per round. The dealer's 3 cards are dealt once per table, and every player gets
+ *     3 cards out of the 49 left, so the players may share cards with each other but never with the dealer.
+ *     The hands are ranked by the {@link HandEvaluator}, the rules of {@link Score}, and every bet is settled
+ *     with a single {@link WalletStore#settle(long, long, long, long)} instead of being taken first and paid back.
+ * </p>
+ * <p>
+ *     The results are encoded by the dealer's thread into one array per {@link Reactor}, and every reactor is woken
+ *     up once per tick to write all of them. A round costs no query to parse and no wake-up of its own, so a single
+ *     core deals far more rounds per second than the players could ask for one by one.
+ * </p>
+ * <p>
+ *     A player leaves with "leave-table", by disconnecting, by going bankrupt, or once the bet is more than the
+ *     cash. Tables are opened as the others fill up, and stay around empty.
+ * </p>
+ */
+class TableDealer implements AutoCloseable {
+    /** What every result starts with, so that the clients can tell them from the responses to their queries */
+    static final String PUSH_PREFIX = "Table ";
+
+    private static final int HAND = 3;
+
+    /** The longest a single result gets: the table line, then a round or a notice */
+    private static final int MAX_PUSH_LENGTH = TextProtocol.MAX_ROUND_LENGTH + 64;
+
+    private final Server server;
+
+    private final ServerMetrics metrics;
+
+    private final int seats;
+
+    /** Every table, copied on write under the dealer's lock */
+    private volatile Table[] tables = new Table[0];
+
+    /** The table of every seated player. Changed under the table's lock */
+    private final ConcurrentHashMap<UUID, Table> seated = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduler;
+
+    // only touched by the scheduler's thread
+    private final int[] dealerCards = new int[HAND], hand = new int[HAND];
+
+    private final GameRound round = new GameRound();
+
+    private final IdentityHashMap<Reactor, Fanout> fanouts = new IdentityHashMap<>();
+
+    /**
+     * A table, its seats as parallel arrays. Guarded by its own lock
+     */
+    private static final class Table {
+        final int number;
+        final long[] mostSigBits, leastSigBits;
+        final int[] bets;
+        final Connection[] connections;
+        int size = 0;
+        long rounds = 0;
+
+        Table(int number, int seats) {
+            this.number = number;
+            mostSigBits = new long[seats];
+            leastSigBits = new long[seats];
+            bets = new int[seats];
+            connections = new Connection[seats];
+        }
+
+        int find(long mostSigBits, long leastSigBits) {
+            for (int seat = 0; seat < size; seat++) {
+                if (this.mostSigBits[seat] == mostSigBits && this.leastSigBits[seat] == leastSigBits) {
+                    return seat;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * The results of a tick for the connections of one reactor, see {@link Reactor#deliver(Delivery)}
+     */
+    static final class Delivery {
+        /** Every result, one after the other, each one ending with the {@link Connection#RESPONSE_DELIMITER} */
+        final byte[] bytes;
+        final Connection[] connections;
+        /** Where the result of every connection ends */
+        final int[] ends;
+
+        Delivery(byte[] bytes, Connection[] connections, int[] ends) {
+            this.bytes = bytes;
+            this.connections = connections;
+            this.ends = ends;
+        }
+    }
+
+    /**
+     * Where the results of a tick are gathered for one reactor. Only touched by the scheduler's thread
+     */
+    private static final class Fanout {
+        ByteBuffer bytes = ByteBuffer.allocate(1 << 16);
+        final ArrayList<Connection> connections = new ArrayList<>();
+        int[] ends = new int[64];
+
+        /**
+         * @return the buffer the next result goes into, with room for it
+         */
+        ByteBuffer start(@NotNull Connection connection) {
+            if (bytes.remaining() < MAX_PUSH_LENGTH) {
+                bytes = ByteBuffer.allocate(bytes.capacity() * 2).put(bytes.flip());
+            }
+            connections.add(connection);
+            return bytes;
+        }
+
+        void end() {
+            if (ends.length < connections.size()) {
+                ends = Arrays.copyOf(ends, ends.length * 2);
+            }
+            bytes.put(Connection.RESPONSE_DELIMITER);
+            ends[connections.size() - 1] = bytes.position();
+        }
+
+        void deliverTo(@NotNull Reactor reactor) {
+            if (connections.isEmpty()) {
+                return;
+            }
+            reactor.deliver(new Delivery(Arrays.copyOf(bytes.array(), bytes.position()),
+                    connections.toArray(new Connection[0]), Arrays.copyOf(ends, connections.size())));
+            bytes.clear();
+            connections.clear();
+        }
+    }
+
+    /**
+     * Start dealing
+     * @param server settles the bets, see {@link Server#settleTableRound(GameRound, int)}
+     * @param tickMillis the time between two rounds of a table
+     * @param seats the most players a table seats
+     */
+    TableDealer(@NotNull Server server, long tickMillis, int seats) {
+        this.server = server;
+        this.metrics = server.getMetrics();
+        this.seats = seats;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "table-dealer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        Log.info("Dealing the tables every {} ms, {} seats each", tickMillis, seats);
+    }
+
+    /**
+     * Seat a player at the first table with a free seat, or change the bet of a seated player
+     * @param mostSigBits the user ID's most significant bits
+     * @param leastSigBits the user ID's least significant bits
+     * @param betMoney the bet of every round
+     * @param connection where the results go, which must be served by a {@link Reactor}
+     * @return the response to the "join-table" query
+     */
+    @NotNull
+    synchronized String join(long mostSigBits, long leastSigBits, int betMoney, @NotNull Connection connection) {
+        var userId = new UUID(mostSigBits, leastSigBits);
+        var current = seated.get(userId);
+        if (current != null) {
+            synchronized (current) {
+                var seat = current.find(mostSigBits, leastSigBits);
+                // unless it has just been unseated by the tick
+                if (seat >= 0) {
+                    current.bets[seat] = betMoney;
+                    current.connections[seat] = connection;
+                    return "Seated at table " + current.number + " with a bet of " + betMoney;
+                }
+            }
+        }
+
+        Table table = null;
+        for (var candidate : tables) {
+            synchronized (candidate) {
+                if (candidate.size < seats) {
+                    table = candidate;
+                    break;
+                }
+            }
+        }
+        if (table == null) {
+            table = new Table(tables.length + 1, seats);
+            var more = Arrays.copyOf(tables, tables.length + 1);
+            more[tables.length] = table;
+            tables = more;
+        }
+        synchronized (table) {
+            // only this method fills the seats, so it's still free
+            var seat = table.size++;
+            table.mostSigBits[seat] = mostSigBits;
+            table.leastSigBits[seat] = leastSigBits;
+            table.bets[seat] = betMoney;
+            table.connections[seat] = connection;
+            seated.put(userId, table);
+        }
+        return "Seated at table " + table.number + " with a bet of " + betMoney;
+    }
+
+    /**
+     * Get a player up from its table
+     * @param mostSigBits the user ID's most significant bits
+     * @param leastSigBits the user ID's least significant bits
+     * @return the response to the "leave-table" query
+     */
+    @NotNull
+    String leave(long mostSigBits, long leastSigBits) {
+        var userId = new UUID(mostSigBits, leastSigBits);
+        var table = seated.get(userId);
+        if (table != null) {
+            synchronized (table) {
+                var seat = table.find(mostSigBits, leastSigBits);
+                if (seat >= 0) {
+                    unseat(table, seat);
+                    return "User ID " + userId + " has left table " + table.number;
+                }
+            }
+        }
+        return "User ID " + userId + " is not at a table";
+    }
+
+    /**
+     * Free a seat, moving the last player into it. Must hold the table's lock
+     */
+    private void unseat(@NotNull Table table, int seat) {
+        seated.remove(new UUID(table.mostSigBits[seat], table.leastSigBits[seat]), table);
+        var last = --table.size;
+        table.mostSigBits[seat] = table.mostSigBits[last];
+        table.leastSigBits[seat] = table.leastSigBits[last];
+        table.bets[seat] = table.bets[last];
+        table.connections[seat] = table.connections[last];
+        table.connections[last] = null;
+    }
+
+    int getTables() {
+        return tables.length;
+    }
+
+    int getSeated() {
+        return seated.size();
+    }
+
+    /**
+     * Deal a round at every table, then hand the results over to the reactors
+     */
+    private void tick() {
+        try {
+            for (var table : tables) {
+                synchronized (table) {
+                    if (table.size > 0) {
+                        deal(table);
+                    }
+                }
+            }
+            for (var entry : fanouts.entrySet()) {
+                entry.getValue().deliverTo(entry.getKey());
+            }
+        } catch (RuntimeException e) {
+            // the scheduler would stop for good
+            Log.error("A table round has failed", e);
+        }
+    }
+
+    /**
+     * Deal a round of a table: the dealer's hand, then every player's hand against it. Must hold the table's lock
+     */
+    private void deal(@NotNull Table table) {
+        table.rounds++;
+        var deck = Deck.current();
+        deck.deal(dealerCards, HAND);
+        var dealerRank = HandEvaluator.evaluate(dealerCards[0], dealerCards[1], dealerCards[2]);
+        var dealerPoint = HandEvaluator.point(dealerRank);
+
+        var seat = 0;
+        while (seat < table.size) {
+            var connection = table.connections[seat];
+            if (connection.isClosed()) {
+                unseat(table, seat);
+                continue;
+            }
+            round.reset();
+            round.mostSigBits = table.mostSigBits[seat];
+            round.leastSigBits = table.leastSigBits[seat];
+            // same order as a game: client -> server -> client -> ...
+            deck.deal(hand, HAND, HAND);
+            for (int i = 0; i < HAND; i++) {
+                round.cards[2 * i] = hand[i];
+                round.cards[2 * i + 1] = dealerCards[i];
+            }
+            var clientRank = HandEvaluator.evaluate(hand[0], hand[1], hand[2]);
+            round.clientPoint = HandEvaluator.point(clientRank);
+            round.serverPoint = dealerPoint;
+            var winState = HandEvaluator.compare(clientRank, dealerRank);
+            round.outcome = winState > 0 ? GameRound.OUTCOME_WIN
+                    : winState < 0 ? GameRound.OUTCOME_LOSS : GameRound.OUTCOME_DRAW;
+            server.settleTableRound(round, table.bets[seat]);
+
+            var fanout = fanouts.computeIfAbsent(connection.reactor, reactor -> new Fanout());
+            var buffer = fanout.start(connection);
+            TextProtocol.encodeTableHeader(buffer, table.number, table.rounds, round);
+            if (round.status == BinaryProtocol.STATUS_OK) {
+                metrics.tableRounds.increment();
+                TextProtocol.encodeRound(buffer, round);
+            } else if (round.status == BinaryProtocol.STATUS_INSUFFICIENT_FUNDS) {
+                putText(buffer, new IllegalGameQueryException(round.getUserId(), round.balance).getMessage()
+                        + "\nYou have left the table");
+            } else {
+                putText(buffer, new IllegalGameQueryException(round.getUserId()).getMessage());
+            }
+            fanout.end();
+
+            if (round.status != BinaryProtocol.STATUS_OK || round.bankrupt) {
+                unseat(table, seat);
+            } else {
+                seat++;
+            }
+        }
+    }
+
+    private static void putText(@NotNull ByteBuffer buffer, @NotNull String text) {
+        for (int i = 0; i < text.length(); i++) {
+            buffer.put((byte) text.charAt(i));
+        }
+    }
+
+    /**
+     * Stop dealing. Must be called before the wallets stop taking changes
+     * @throws Exception if interrupted while the last tick finishes
+     */
+    @Override
+    public void close() throws Exception {
+        scheduler.shutdownNow();
+        scheduler.awaitTermination(10, TimeUnit.SECONDS);
+    }
+}
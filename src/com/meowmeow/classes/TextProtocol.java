@@ -0,0 +1,159 @@
+package com.meowmeow.classes;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <h3>Text Protocol class</h3>
+ * <p>Writes the text responses of the games straight into a connection's buffer, as ISO-8859-1 bytes.</p>
+ * <p>
+ *     The bytes are exactly those of {@link Server#roundText(GameRound)}, but without building the string: the
+ *     52 card names and the fixed phrases are encoded once, and the numbers are written digit by digit. A round
+ *     is a handful of bulk copies, and nothing is allocated.
+ * </p>
+ */
+final class TextProtocol {
+    /** The longest a round can get, "Round N" line and bankruptcy included. Far below a buffer */
+    static final int MAX_ROUND_LENGTH = 512;
+
+    private static final byte[][] CARD_NAMES = new byte[Deck.SIZE][];
+
+    static {
+        for (int code = 0; code < Deck.SIZE; code++) {
+            CARD_NAMES[code] = encode(Card.fromCode(code).toString());
+        }
+    }
+
+    private static final byte[] CLIENT_CARD = encode("Client card "), SERVER_CARD = encode("Server card ");
+    private static final byte[] SERVER_POINT = encode("Server point: "), YOUR_POINT = encode("\nYour point: ");
+    private static final byte[] WON = encode("You won! Your current money is ");
+    private static final byte[] LOST = encode("You lost! Your current money is ");
+    private static final byte[] DRAW = encode("Draw! Your current money is ");
+    private static final byte[] BANKRUPT = encode("You've lost all of the cash. Come back next time.");
+    private static final byte[] ROUND = encode("Round ");
+    private static final byte[] TABLE = encode(TableDealer.PUSH_PREFIX), TABLE_ROUND = encode(" round ");
+    private static final byte[] USER_ID = encode(" user-id ");
+    private static final byte[] HEX_DIGITS = encode("0123456789abcdef");
+
+    private static final byte NEWLINE = '\n';
+
+    private TextProtocol() {}
+
+    @NotNull
+    private static byte[] encode(@NotNull String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Write a played round, the same as {@link Server#roundText(GameRound)}
+     * @param buffer where the text goes, it must have at least {@link #MAX_ROUND_LENGTH} bytes remaining
+     * @param round a round which has been played
+     */
+    static void encodeRound(@NotNull ByteBuffer buffer, @NotNull GameRound round) {
+        for (int i = 0; i < GameRound.CARDS; i++) {
+            buffer.put(i % 2 == 0 ? CLIENT_CARD : SERVER_CARD).put(CARD_NAMES[round.cards[i]]).put(NEWLINE);
+        }
+        buffer.put(SERVER_POINT);
+        putNumber(buffer, round.serverPoint);
+        buffer.put(YOUR_POINT);
+        putNumber(buffer, round.clientPoint);
+        buffer.put(NEWLINE);
+
+        if (round.outcome == GameRound.OUTCOME_WIN) {
+            buffer.put(WON);
+        } else if (round.outcome == GameRound.OUTCOME_LOSS) {
+            buffer.put(LOST);
+        } else {
+            buffer.put(DRAW);
+        }
+        putNumber(buffer, round.balance);
+        buffer.put(NEWLINE);
+        if (round.outcome == GameRound.OUTCOME_LOSS && round.bankrupt) {
+            buffer.put(BANKRUPT);
+        }
+    }
+
+    /**
+     * Write a round of a batch: its number on a line of its own, then the round
+     * @param buffer where the text goes, it must have at least {@link #MAX_ROUND_LENGTH} bytes remaining
+     * @param number the number of the round, from 1
+     * @param round the round
+     */
+    static void encodeBatchRound(@NotNull ByteBuffer buffer, int number, @NotNull GameRound round) {
+        buffer.put(ROUND);
+        putNumber(buffer, number);
+        buffer.put(NEWLINE);
+        encodeRound(buffer, round);
+    }
+
+    /**
+     * Write the line a table result starts with: "Table T round R user-id U"
+     * @param buffer where the text goes
+     * @param table the number of the table
+     * @param number the number of the table's round, from 1
+     * @param round the round, for its user ID
+     */
+    static void encodeTableHeader(@NotNull ByteBuffer buffer, int table, long number, @NotNull GameRound round) {
+        buffer.put(TABLE);
+        putNumber(buffer, table);
+        buffer.put(TABLE_ROUND);
+        putNumber(buffer, number);
+        buffer.put(USER_ID);
+        putUuid(buffer, round.mostSigBits, round.leastSigBits);
+        buffer.put(NEWLINE);
+    }
+
+    /**
+     * Write a user ID like {@link java.util.UUID#toString()} does
+     */
+    private static void putUuid(@NotNull ByteBuffer buffer, long mostSigBits, long leastSigBits) {
+        putHex(buffer, mostSigBits >>> 32, 8);
+        buffer.put((byte) '-');
+        putHex(buffer, mostSigBits >>> 16, 4);
+        buffer.put((byte) '-');
+        putHex(buffer, mostSigBits, 4);
+        buffer.put((byte) '-');
+        putHex(buffer, leastSigBits >>> 48, 4);
+        buffer.put((byte) '-');
+        putHex(buffer, leastSigBits, 12);
+    }
+
+    /**
+     * Write the lowest {@code digits} hex digits of a value, zero-padded
+     */
+    private static void putHex(@NotNull ByteBuffer buffer, long value, int digits) {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            buffer.put(HEX_DIGITS[(int) (value >>> shift) & 0xF]);
+        }
+    }
+
+    /**
+     * Write a number in decimal, like {@link Long#toString(long)} does
+     * @param buffer where the digits go
+     * @param value the number
+     */
+    static void putNumber(@NotNull ByteBuffer buffer, long value) {
+        if (value < 0) {
+            buffer.put((byte) '-');
+            if (value == Long.MIN_VALUE) {
+                // no positive counterpart
+                buffer.put(encode("9223372036854775808"));
+                return;
+            }
+            value = -value;
+        }
+        var digits = 1;
+        for (var rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        // the digits are known from the least significant one, so fill them in backwards
+        var end = buffer.position() + digits;
+        for (int i = end - 1; i >= buffer.position(); i--) {
+            buffer.put(i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        buffer.position(end);
+    }
+}
@@ -0,0 +1,60 @@
+package com.meowmeow.classes;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <h3>Wallet Changes interface</h3>
+ * <p>
+ *     Where the {@link Server} reports every change of its {@link WalletStore}, right after making it: the
+ *     {@link WalletJournal} and the {@link ReplicationLeader}.
+ * </p>
+ * <p>
+ *     The changes of a wallet may be reported in another order than they were made, so a changed wallet is
+ *     reported as the amount added or taken, and a change of a removed user has to be ignored.
+ * </p>
+ */
+interface WalletChanges {
+    /**
+     * A new user
+     */
+    void created(long mostSigBits, long leastSigBits, long balance);
+
+    /**
+     * An amount added to (or taken from, if negative) a user's wallet
+     */
+    void changed(long mostSigBits, long leastSigBits, long amount);
+
+    /**
+     * A removed user
+     */
+    void removed(long mostSigBits, long leastSigBits);
+
+    /**
+     * @return the changes going to both, or to either one if the other is null
+     */
+    @Nullable
+    static WalletChanges both(@Nullable WalletChanges first, @Nullable WalletChanges second) {
+        if (first == null || second == null) {
+            return first == null ? second : first;
+        }
+        return new WalletChanges() {
+            @Override
+            public void created(long mostSigBits, long leastSigBits, long balance) {
+                first.created(mostSigBits, leastSigBits, balance);
+                second.created(mostSigBits, leastSigBits, balance);
+            }
+
+            @Override
+            public void changed(long mostSigBits, long leastSigBits, long amount) {
+                first.changed(mostSigBits, leastSigBits, amount);
+                second.changed(mostSigBits, leastSigBits, amount);
+            }
+
+            @Override
+            public void removed(long mostSigBits, long leastSigBits) {
+                first.removed(mostSigBits, leastSigBits);
+                second.removed(mostSigBits, leastSigBits);
+            }
+        };
+    }
+}
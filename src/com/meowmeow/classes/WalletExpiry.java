@@ -0,0 +1,220 @@
+package com.meowmeow.classes;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <h3>Wallet Expiry class</h3>
+ * <p>Removes the users who haven't played for a while, so crashed clients and abandoned bots don't pile up forever.</p>
+ * <p>
+ *     The users are kept on a timing wheel: a ring of buckets, one per tick, a tick being 1/64 of the idle TTL.
+ *     A new user goes into the bucket of the tick its TTL runs out. A game doesn't touch the wheel at all, only
+ *     the {@link WalletStore}, which stamps every changed wallet with the current tick. When the wheel reaches
+ *     a bucket, every user in it is checked against its stamp: the idle ones are removed, the others go into
+ *     the bucket of their new deadline. So a tick only looks at the users which are due, never at the whole
+ *     store, and each user costs at most one check per TTL.
+ * </p>
+ * <p>
+ *     A user expires between one TTL and one TTL plus two ticks after its last game. The removal is journaled
+ *     and replicated like a "quit-game", and if an archive file is set, the user's ID and cash are appended to it
+ *     first.
+ * </p>
+ */
+class WalletExpiry implements AutoCloseable {
+    /** The ticks in one TTL */
+    private static final int TICKS_PER_TTL = 64;
+
+    /** A power of two, bigger than a TTL */
+    private static final int WHEEL_SIZE = 128;
+
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    private final WalletStore wallets;
+
+    /** Where the removals are reported, null if nowhere */
+    @Nullable
+    private final WalletChanges changes;
+
+    /** Where the expired users are appended, null if they are just dropped */
+    @Nullable
+    private final FileChannel archive;
+
+    private final ServerMetrics metrics;
+
+    private final Bucket[] wheel = new Bucket[WHEEL_SIZE];
+
+    /** Swapped with the bucket being expired, so creating users never waits for the checks. Only touched by ticks */
+    private Bucket expiring = new Bucket();
+
+    /** Guarded by the expiry's lock, like the wheel */
+    private long tick = 0;
+
+    private final ScheduledExecutorService ticker;
+
+    /** The lines of the archive, reused by every tick */
+    private final ByteBuffer archiveBuffer = ByteBuffer.allocate(1 << 16);
+
+    /**
+     * A list of user IDs, as pairs of longs
+     */
+    private static final class Bucket {
+        long[] keys = new long[32];
+        int size = 0;
+
+        void add(long mostSigBits, long leastSigBits) {
+            if (size + 2 > keys.length) {
+                keys = Arrays.copyOf(keys, keys.length * 2);
+            }
+            keys[size++] = mostSigBits;
+            keys[size++] = leastSigBits;
+        }
+    }
+
+    /**
+     * Start expiring the users, the ones already in the store included
+     * @param wallets the users
+     * @param changes where the removals are reported (see {@link WalletChanges}), null if nowhere
+     * @param archive where the expired users are appended, null to drop them
+     * @param idleTtlSeconds how long a user can stay without playing
+     * @param metrics counts the expired users
+     * @throws IOException if the archive can't be opened
+     */
+    WalletExpiry(@NotNull WalletStore wallets, @Nullable WalletChanges changes, @Nullable Path archive,
+                 long idleTtlSeconds, @NotNull ServerMetrics metrics) throws IOException {
+        this.wallets = wallets;
+        this.changes = changes;
+        this.metrics = metrics;
+        this.archive = archive == null ? null : FileChannel.open(archive, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new Bucket();
+        }
+
+        // the recovered users get a whole TTL from now
+        wallets.setClock(tick);
+        wallets.forEach((mostSigBits, leastSigBits, balance) -> schedule(mostSigBits, leastSigBits));
+
+        var tickMillis = Math.max(1, (TimeUnit.SECONDS.toMillis(idleTtlSeconds) + TICKS_PER_TTL - 1) / TICKS_PER_TTL);
+        ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "wallet-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Put a new user on the wheel. It has to be in the store already
+     * @param mostSigBits the user ID's most significant bits
+     * @param leastSigBits the user ID's least significant bits
+     */
+    synchronized void schedule(long mostSigBits, long leastSigBits) {
+        wheel[(int) (tick + TICKS_PER_TTL) & WHEEL_MASK].add(mostSigBits, leastSigBits);
+    }
+
+    private synchronized void reschedule(long mostSigBits, long leastSigBits, long deadline) {
+        wheel[(int) deadline & WHEEL_MASK].add(mostSigBits, leastSigBits);
+    }
+
+    /**
+     * Move the wheel on by one tick, and check the users whose deadline it is
+     */
+    private void tick() {
+        Bucket due;
+        long now;
+        synchronized (this) {
+            now = ++tick;
+            wallets.setClock(now);
+            var slot = (int) now & WHEEL_MASK;
+            due = wheel[slot];
+            wheel[slot] = expiring;
+        }
+
+        var expired = 0;
+        for (int i = 0; i < due.size; i += 2) {
+            var mostSigBits = due.keys[i];
+            var leastSigBits = due.keys[i + 1];
+            var touched = wallets.lastTouched(mostSigBits, leastSigBits);
+            if (touched == WalletStore.MISSING) {
+                // has quit or gone bankrupt
+                continue;
+            }
+            if (touched + TICKS_PER_TTL > now) {
+                reschedule(mostSigBits, leastSigBits, touched + TICKS_PER_TTL);
+                continue;
+            }
+            var balance = wallets.removeIfIdle(mostSigBits, leastSigBits, now - TICKS_PER_TTL + 1);
+            if (balance == WalletStore.MISSING) {
+                // played just now after all
+                reschedule(mostSigBits, leastSigBits, now + TICKS_PER_TTL);
+                continue;
+            }
+            expired++;
+            metrics.expiredUsers.increment();
+            archive(mostSigBits, leastSigBits, balance);
+            if (changes != null) {
+                changes.removed(mostSigBits, leastSigBits);
+            }
+        }
+        flushArchive();
+        if (expired > 0) {
+            Log.info("Expired {} idle users", expired);
+        }
+
+        due.size = 0;
+        expiring = due;
+    }
+
+    private void archive(long mostSigBits, long leastSigBits, long balance) {
+        if (archive == null) {
+            return;
+        }
+        var line = ("user-id " + new UUID(mostSigBits, leastSigBits) + " amount " + balance + " expired-at "
+                + Instant.now() + "\n").getBytes(StandardCharsets.ISO_8859_1);
+        if (archiveBuffer.remaining() < line.length) {
+            flushArchive();
+        }
+        archiveBuffer.put(line);
+    }
+
+    private void flushArchive() {
+        if (archive == null || archiveBuffer.position() == 0) {
+            return;
+        }
+        archiveBuffer.flip();
+        try {
+            while (archiveBuffer.hasRemaining()) {
+                archive.write(archiveBuffer);
+            }
+        } catch (IOException e) {
+            Log.error("The expired users can't be archived", e);
+        }
+        archiveBuffer.clear();
+    }
+
+    /**
+     * Stop expiring. The users are left where they are
+     * @throws Exception if the archive can't be closed
+     */
+    @Override
+    public void close() throws Exception {
+        ticker.shutdown();
+        ticker.awaitTermination(1, TimeUnit.SECONDS);
+        if (archive != null) {
+            archive.close();
+        }
+    }
+}
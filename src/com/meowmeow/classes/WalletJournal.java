@@ -0,0 +1,448 @@
+package com.meowmeow.classes;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <h3>Wallet Journal class</h3>
+ * <p>Keeps the {@link WalletStore} of a {@link Server} on disk, so a restart doesn't wipe every user.</p>
+ * <p>
+ *     Every change of a wallet is appended to a journal: a series of memory-mapped segment files, each of them
+ *     a list of fixed-size records. Appending a record is a copy into the mapping under a short lock, nothing
+ *     more, so a query never waits for the disk:
+ * </p>
+ * <ul>
+ *     <li>
+ *         The mapped pages belong to the OS, so a record survives a crash of the server as soon as it has been
+ *         appended
+ *     </li>
+ *     <li>
+ *         A background thread forces the new records to the disk every commit interval (group commit), so a crash
+ *         of the whole machine loses at most that interval, whatever the number of queries in it
+ *     </li>
+ *     <li>
+ *         Every snapshot interval the same thread compacts the closed segments into a snapshot (one entry per live
+ *         user), and deletes them
+ *     </li>
+ * </ul>
+ * <p>
+ *     A changed wallet is recorded as the amount added or taken, not as the new balance. The reactors change the
+ *     wallets first and append afterwards, so two changes of the same wallet may land in the journal in the
+ *     opposite order, and adding up amounts gives the same result in any order.
+ * </p>
+ * <p>
+ *     On startup the latest valid snapshot is loaded and the segments after it are replayed, up to the first
+ *     torn record. The journal then carries on in a fresh segment.
+ * </p>
+ */
+class WalletJournal implements WalletChanges, AutoCloseable {
+    static final byte CREATED = 1;
+    static final byte CHANGED = 2;
+    static final byte REMOVED = 3;
+
+    /** type, 3 bytes of padding, checksum, msb, lsb, value */
+    static final int RECORD_LENGTH = 32;
+
+    /** 2M records per segment. The files are sparse, so an empty segment takes no space */
+    static final int SEGMENT_SIZE = 64 << 20;
+
+    private static final int SNAPSHOT_HEADER_LENGTH = 32;
+
+    /** msb, lsb, balance */
+    private static final int SNAPSHOT_ENTRY_LENGTH = 24;
+
+    /** "MEOWSNAP" */
+    private static final long SNAPSHOT_MAGIC = 0x4d454f57534e4150L;
+
+    private static final String SEGMENT_PREFIX = "journal-", SEGMENT_SUFFIX = ".log";
+
+    private static final String SNAPSHOT_PREFIX = "snapshot-", SNAPSHOT_SUFFIX = ".dat";
+
+    private final Path directory;
+
+    private final long commitIntervalNanos;
+
+    private final long snapshotIntervalNanos;
+
+    /** The segment being appended to. Guarded by the journal's lock, like everything else appenders touch */
+    private Segment current;
+
+    /** Full segments which haven't been forced to the disk yet */
+    private final ArrayList<Segment> retired = new ArrayList<>();
+
+    /** The segments up to this one are all in the latest snapshot. Only touched by the syncer */
+    private long snapshotSeq;
+
+    private final Thread syncer;
+
+    private volatile boolean closing = false;
+
+    /**
+     * A mapped segment file
+     */
+    private static final class Segment {
+        final long seq;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+
+        /** The part of the buffer which is already on the disk. Only touched by the syncer */
+        int synced = 0;
+
+        Segment(long seq, FileChannel channel, MappedByteBuffer buffer) {
+            this.seq = seq;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    private WalletJournal(@NotNull Path directory, long commitIntervalMillis, long snapshotIntervalSeconds) {
+        this.directory = directory;
+        this.commitIntervalNanos = TimeUnit.MILLISECONDS.toNanos(commitIntervalMillis);
+        this.snapshotIntervalNanos = TimeUnit.SECONDS.toNanos(snapshotIntervalSeconds);
+        this.syncer = new Thread(this::syncLoop, "wallet-journal");
+        this.syncer.setDaemon(true);
+    }
+
+    /**
+     * Recover the wallets from a directory, then start journaling their changes there
+     * @param directory where the snapshots and segments are, created if needed
+     * @param wallets an empty store, filled with the recovered users
+     * @param commitIntervalMillis how often the new records are forced to the disk
+     * @param snapshotIntervalSeconds how often the closed segments are compacted into a snapshot
+     * @return the journal, already running
+     * @throws IOException if the directory can't be read or written
+     */
+    @NotNull
+    static WalletJournal open(@NotNull Path directory, @NotNull WalletStore wallets,
+                              long commitIntervalMillis, long snapshotIntervalSeconds) throws IOException {
+        Files.createDirectories(directory);
+        var journal = new WalletJournal(directory, commitIntervalMillis, snapshotIntervalSeconds);
+        var snapshots = list(directory, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        var segments = list(directory, SEGMENT_PREFIX, SEGMENT_SUFFIX);
+
+        // the latest snapshot which is complete
+        journal.snapshotSeq = -1;
+        for (var seq : snapshots.descendingKeySet()) {
+            if (loadSnapshot(snapshots.get(seq), wallets)) {
+                journal.snapshotSeq = seq;
+                break;
+            }
+            Log.warn("Skipping the damaged snapshot {}", snapshots.get(seq));
+        }
+
+        // then whatever happened after it
+        var records = 0L;
+        for (var entry : segments.tailMap(journal.snapshotSeq, false).entrySet()) {
+            records += replay(entry.getValue(), wallets);
+        }
+        Log.info("Recovered {} users from {}", wallets.size(), directory);
+        Log.info("Replayed {} journal records", records);
+
+        var nextSeq = Math.max(journal.snapshotSeq, segments.isEmpty() ? -1 : segments.lastKey()) + 1;
+        journal.current = journal.openSegment(nextSeq);
+        journal.syncer.start();
+        return journal;
+    }
+
+    /**
+     * Record a new user
+     * @throws UncheckedIOException if the journal can't go on, a change can't be kept silently
+     */
+    @Override
+    public void created(long mostSigBits, long leastSigBits, long balance) {
+        append(CREATED, mostSigBits, leastSigBits, balance);
+    }
+
+    /**
+     * Record an amount added to (or taken from, if negative) a user's wallet
+     * @throws UncheckedIOException if the journal can't go on, a change can't be kept silently
+     */
+    @Override
+    public void changed(long mostSigBits, long leastSigBits, long amount) {
+        append(CHANGED, mostSigBits, leastSigBits, amount);
+    }
+
+    /**
+     * Record a removed user
+     * @throws UncheckedIOException if the journal can't go on, a change can't be kept silently
+     */
+    @Override
+    public void removed(long mostSigBits, long leastSigBits) {
+        append(REMOVED, mostSigBits, leastSigBits, 0);
+    }
+
+    private synchronized void append(byte type, long mostSigBits, long leastSigBits, long value) {
+        if (current == null) {
+            throw new UncheckedIOException(new IOException("The wallet journal is closed"));
+        }
+        var buffer = current.buffer;
+        if (buffer.remaining() < RECORD_LENGTH) {
+            try {
+                roll();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            buffer = current.buffer;
+        }
+        var position = buffer.position();
+        buffer.putInt(position + 4, checksum(type, mostSigBits, leastSigBits, value))
+                .putLong(position + 8, mostSigBits)
+                .putLong(position + 16, leastSigBits)
+                .putLong(position + 24, value)
+                .put(position, type);
+        buffer.position(position + RECORD_LENGTH);
+    }
+
+    /**
+     * Retire the current segment and start the next one. Must hold the journal's lock
+     */
+    private void roll() throws IOException {
+        retired.add(current);
+        current = openSegment(current.seq + 1);
+    }
+
+    @NotNull
+    private Segment openSegment(long seq) throws IOException {
+        var channel = FileChannel.open(directory.resolve(SEGMENT_PREFIX + seq + SEGMENT_SUFFIX),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new Segment(seq, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE));
+    }
+
+    /**
+     * The syncer: force the new records every commit interval, and take a snapshot every snapshot interval
+     */
+    private void syncLoop() {
+        var nextSnapshot = System.nanoTime() + snapshotIntervalNanos;
+        while (!closing) {
+            LockSupport.parkNanos(commitIntervalNanos);
+            try {
+                sync();
+                if (System.nanoTime() - nextSnapshot >= 0) {
+                    snapshot();
+                    nextSnapshot = System.nanoTime() + snapshotIntervalNanos;
+                }
+            } catch (IOException e) {
+                Log.error("The journal can't be written", e);
+            }
+        }
+    }
+
+    /**
+     * Force every record appended so far to the disk. One call covers all of the queries since the last one
+     */
+    private void sync() throws IOException {
+        Segment segment;
+        int position;
+        Segment[] full;
+        synchronized (this) {
+            segment = current;
+            position = segment.buffer.position();
+            full = retired.toArray(new Segment[0]);
+            retired.clear();
+        }
+        for (var retiredSegment : full) {
+            retiredSegment.buffer.force();
+            retiredSegment.channel.close();
+        }
+        if (position != segment.synced) {
+            segment.buffer.force();
+            segment.synced = position;
+        }
+    }
+
+    /**
+     * Compact the snapshot and the closed segments into a new snapshot, then delete them. This only reads the
+     * files, never the live wallets, so the snapshot always matches the records it replaces
+     */
+    private void snapshot() throws IOException {
+        long upTo;
+        synchronized (this) {
+            if (current.buffer.position() > 0) {
+                roll();
+            }
+            upTo = current.seq - 1;
+        }
+        if (upTo <= snapshotSeq) {
+            return;
+        }
+        sync();
+
+        var wallets = new WalletStore();
+        if (snapshotSeq >= 0 && !loadSnapshot(snapshotPath(snapshotSeq), wallets)) {
+            throw new IOException("The snapshot " + snapshotPath(snapshotSeq) + " has been damaged");
+        }
+        var segments = list(directory, SEGMENT_PREFIX, SEGMENT_SUFFIX).subMap(snapshotSeq, false, upTo, true);
+        for (var segment : segments.values()) {
+            replay(segment, wallets);
+        }
+        writeSnapshot(upTo, wallets);
+
+        // the new snapshot is on the disk, the old files can go
+        if (snapshotSeq >= 0) {
+            Files.deleteIfExists(snapshotPath(snapshotSeq));
+        }
+        for (var segment : segments.values()) {
+            Files.deleteIfExists(segment);
+        }
+        snapshotSeq = upTo;
+    }
+
+    private Path snapshotPath(long seq) {
+        return directory.resolve(SNAPSHOT_PREFIX + seq + SNAPSHOT_SUFFIX);
+    }
+
+    /**
+     * Write a snapshot to a temporary file, force it, then rename it, so a snapshot is either complete or absent
+     */
+    private void writeSnapshot(long seq, @NotNull WalletStore wallets) throws IOException {
+        var temporary = directory.resolve(SNAPSHOT_PREFIX + seq + ".tmp");
+        var count = wallets.size();
+        try (var channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            var buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    SNAPSHOT_HEADER_LENGTH + count * SNAPSHOT_ENTRY_LENGTH);
+            buffer.position(SNAPSHOT_HEADER_LENGTH);
+            wallets.forEach((mostSigBits, leastSigBits, balance) ->
+                    buffer.putLong(mostSigBits).putLong(leastSigBits).putLong(balance));
+            buffer.putLong(0, SNAPSHOT_MAGIC)
+                    .putLong(8, seq)
+                    .putLong(16, count)
+                    .putLong(24, snapshotChecksum(buffer, count));
+            buffer.force();
+        }
+        Files.move(temporary, snapshotPath(seq), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return false if the snapshot is damaged, in which case nothing has been loaded
+     */
+    private static boolean loadSnapshot(@NotNull Path path, @NotNull WalletStore wallets) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var size = channel.size();
+            if (size < SNAPSHOT_HEADER_LENGTH) {
+                return false;
+            }
+            var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            var count = buffer.getLong(16);
+            if (buffer.getLong(0) != SNAPSHOT_MAGIC
+                    || count < 0 || size != SNAPSHOT_HEADER_LENGTH + count * SNAPSHOT_ENTRY_LENGTH
+                    || buffer.getLong(24) != snapshotChecksum(buffer, count)) {
+                return false;
+            }
+            for (int i = 0, position = SNAPSHOT_HEADER_LENGTH; i < count; i++, position += SNAPSHOT_ENTRY_LENGTH) {
+                wallets.create(buffer.getLong(position), buffer.getLong(position + 8),
+                        buffer.getLong(position + 16));
+            }
+            return true;
+        }
+    }
+
+    private static long snapshotChecksum(@NotNull MappedByteBuffer buffer, long count) {
+        var hash = count;
+        for (int i = 0, position = SNAPSHOT_HEADER_LENGTH; i < count; i++, position += SNAPSHOT_ENTRY_LENGTH) {
+            hash = (hash ^ buffer.getLong(position)) * 0x9E3779B97F4A7C15L;
+            hash = (hash ^ buffer.getLong(position + 8)) * 0x9E3779B97F4A7C15L;
+            hash = (hash ^ buffer.getLong(position + 16)) * 0x9E3779B97F4A7C15L;
+        }
+        return hash ^ hash >>> 31;
+    }
+
+    /**
+     * Apply the records of a segment, up to its end or to the first torn record
+     * @return the number of records applied
+     */
+    private static long replay(@NotNull Path path, @NotNull WalletStore wallets) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            var records = 0L;
+            for (int position = 0; position + RECORD_LENGTH <= buffer.limit(); position += RECORD_LENGTH) {
+                var type = buffer.get(position);
+                if (type == 0) {
+                    // the end of the records
+                    break;
+                }
+                var mostSigBits = buffer.getLong(position + 8);
+                var leastSigBits = buffer.getLong(position + 16);
+                var value = buffer.getLong(position + 24);
+                if (buffer.getInt(position + 4) != checksum(type, mostSigBits, leastSigBits, value)) {
+                    Log.warn("Torn record at {}:{}, ignoring the rest", path, position);
+                    break;
+                }
+                switch (type) {
+                    case CREATED:
+                        wallets.create(mostSigBits, leastSigBits, value);
+                        break;
+                    case CHANGED:
+                        wallets.add(mostSigBits, leastSigBits, value);
+                        break;
+                    case REMOVED:
+                        wallets.remove(mostSigBits, leastSigBits);
+                        break;
+                    default:
+                        Log.warn("Unknown record at {}:{}, ignoring the rest", path, position);
+                        return records;
+                }
+                records++;
+            }
+            return records;
+        }
+    }
+
+    private static int checksum(byte type, long mostSigBits, long leastSigBits, long value) {
+        var hash = (type * 0x9E3779B97F4A7C15L ^ mostSigBits) * 0xBF58476D1CE4E5B9L;
+        hash = (hash ^ leastSigBits) * 0x94D049BB133111EBL;
+        hash = (hash ^ value) * 0xBF58476D1CE4E5B9L;
+        return (int) (hash ^ hash >>> 32);
+    }
+
+    /**
+     * @return the files named prefix + seq + suffix in the directory, by seq
+     */
+    @NotNull
+    private static TreeMap<Long, Path> list(@NotNull Path directory, String prefix, String suffix)
+            throws IOException {
+        var files = new TreeMap<Long, Path>();
+        try (var paths = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+            for (var path : paths) {
+                var name = path.getFileName().toString();
+                try {
+                    files.put(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())), path);
+                } catch (NumberFormatException ignored) {
+                    // not one of ours
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Stop the syncer, then force whatever is left to the disk. Must be called once nothing appends anymore
+     */
+    @Override
+    public void close() throws IOException {
+        closing = true;
+        LockSupport.unpark(syncer);
+        try {
+            syncer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sync();
+        synchronized (this) {
+            current.channel.close();
+            current = null;
+        }
+    }
+}
@@ -0,0 +1,500 @@
+package com.meowmeow.classes;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <h3>Wallet Store class</h3>
+ * <p>The users' cash, keyed by the two longs of their {@link java.util.UUID}, with primitive {@code long} balances.</p>
+ * <p>
+ *     The store is split into segments, each of them an open-addressing hash table made of four
+ *     {@link AtomicLongArray}s: one with the key pairs, one with the balances, one with the clock of every
+ *     balance's last change, and one with the rate limit's next arrival of every user. That is 40 bytes per slot
+ *     instead of a map node, a {@code UUID} and a boxed {@code Integer} per user.
+ * </p>
+ * <p>The concurrency rules:</p>
+ * <ul>
+ *     <li>
+ *         Reading and changing a balance never takes a lock. Every change is a compare-and-set on the balance
+ *         slot, and returns the balance it has set, so the caller always knows the exact result of its own change
+ *     </li>
+ *     <li>
+ *         Creating a user takes the lock of its segment. A slot's key is written once and never changes, and the
+ *         slot's balance is only published after the key
+ *     </li>
+ *     <li>Removing a user turns its balance into a tombstone with a compare-and-set, no lock either</li>
+ *     <li>
+ *         Growing a segment happens under its lock. Every live balance of the old table is frozen with a
+ *         compare-and-set before being copied, and an update which runs into a frozen balance simply retries on
+ *         the new table, so no update is ever lost
+ *     </li>
+ * </ul>
+ * <p>
+ *     The key (0, 0) is reserved for empty slots, and balances must stay above {@link #MIN_BALANCE}, the values
+ *     below it are used as markers.
+ * </p>
+ * <p>
+ *     Every slot also remembers when its user was last created or changed, on a coarse clock set from outside
+ *     with {@link #setClock(long)}, so that idle users can be found without any extra bookkeeping per game. See
+ *     {@link WalletExpiry}. It keeps the user's rate limit as well, see {@link #admit(long, long, long, long, long)}.
+ * </p>
+ */
+public class WalletStore {
+    /** Returned when the user doesn't exist */
+    public static final long MISSING = Long.MIN_VALUE;
+
+    /** Returned by {@link #debit(long, long, long)} when the user's balance doesn't cover the amount */
+    public static final long INSUFFICIENT = Long.MIN_VALUE + 1;
+
+    /** The smallest balance a user can have */
+    public static final long MIN_BALANCE = Long.MIN_VALUE + 16;
+
+    /** A slot whose key is not there yet, or is still being written */
+    private static final long EMPTY = Long.MIN_VALUE + 2;
+
+    /** A removed user */
+    private static final long REMOVED = Long.MIN_VALUE + 3;
+
+    /** A balance which has been copied to a bigger table */
+    private static final long MOVED = Long.MIN_VALUE + 4;
+
+    private static final int SEGMENT_BITS = 6;
+
+    private static final int MIN_CAPACITY = 64;
+
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+
+    private final LongAdder size = new LongAdder();
+
+    /** The time written into the slots on every change, see {@link #setClock(long)} */
+    private volatile long clock = 0;
+
+    public WalletStore() {
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * An open-addressing table with linear probing. Key pair {@code i} is at {@code 2i} and {@code 2i + 1}
+     */
+    private static final class Table {
+        final AtomicLongArray keys;
+        final AtomicLongArray balances;
+        /** The clock when each balance was last changed */
+        final AtomicLongArray touched;
+        /** The theoretical arrival time of each user's next query, for the rate limit */
+        final AtomicLongArray arrivals;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new AtomicLongArray(capacity * 2);
+            balances = new AtomicLongArray(capacity);
+            touched = new AtomicLongArray(capacity);
+            arrivals = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++) {
+                balances.set(i, EMPTY);
+            }
+            mask = capacity - 1;
+        }
+
+        /**
+         * @return the slot of the key, or -1 if it's not in the table
+         */
+        int find(long mostSigBits, long leastSigBits, long hash) {
+            for (int i = (int) hash & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+                var keyMost = keys.get(2 * i);
+                var keyLeast = keys.get(2 * i + 1);
+                if (keyMost == mostSigBits && keyLeast == leastSigBits) {
+                    return i;
+                }
+                if (keyMost == 0 && keyLeast == 0) {
+                    return -1;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * A part of the store with its own table. The lock of the segment object guards creation and growing
+     */
+    private static final class Segment {
+        volatile Table table = new Table(MIN_CAPACITY);
+
+        /** Slots with a key, tombstones included */
+        int used = 0;
+    }
+
+    private static long hash(long mostSigBits, long leastSigBits) {
+        var hash = (mostSigBits ^ Long.rotateLeft(leastSigBits, 32)) * 0x9E3779B97F4A7C15L;
+        return hash ^ hash >>> 29;
+    }
+
+    private Segment segmentFor(long hash) {
+        return segments[(int) (hash >>> (64 - SEGMENT_BITS))];
+    }
+
+    private static boolean isLive(long balance) {
+        return balance >= MIN_BALANCE;
+    }
+
+    /**
+     * Receives the users of {@link #forEach(Visitor)}
+     */
+    public interface Visitor {
+        void visit(long mostSigBits, long leastSigBits, long balance);
+    }
+
+    public long getClock() {
+        return clock;
+    }
+
+    /**
+     * @param clock the time that the users created or changed from now on get. Any unit, as long as it never goes
+     *              backwards
+     */
+    public void setClock(long clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * @return the number of users
+     */
+    public long size() {
+        return size.sum();
+    }
+
+    /**
+     * Create a user
+     * @param mostSigBits the user ID's most significant bits
+     * @param leastSigBits the user ID's least significant bits
+     * @param balance the starting balance
+     * @return true if the user has been created, false if it already exists
+     */
+    public boolean create(long mostSigBits, long leastSigBits, long balance) {
+        if (mostSigBits == 0 && leastSigBits == 0) {
+            throw new IllegalArgumentException("The user ID 0 is reserved");
+        }
+        if (!isLive(balance)) {
+            throw new IllegalArgumentException("Balance out of range: " + balance);
+        }
+        var hash = hash(mostSigBits, leastSigBits);
+        var segment = segmentFor(hash);
+        synchronized (segment) {
+            var table = segment.table;
+            if ((segment.used + 1) * 4L > (table.mask + 1) * 3L) {
+                table = grow(segment);
+            }
+            for (int i = (int) hash & table.mask; ; i = (i + 1) & table.mask) {
+                var keyMost = table.keys.get(2 * i);
+                var keyLeast = table.keys.get(2 * i + 1);
+                if (keyMost == mostSigBits && keyLeast == leastSigBits) {
+                    if (isLive(table.balances.get(i))) {
+                        return false;
+                    }
+                    // a comeback - reuse the tombstone, nobody else can change it
+                    table.touched.set(i, clock);
+                    table.arrivals.set(i, 0);
+                    table.balances.set(i, balance);
+                    size.increment();
+                    return true;
+                }
+                if (keyMost == 0 && keyLeast == 0) {
+                    // key first, then the balance which makes the user visible
+                    table.keys.set(2 * i + 1, leastSigBits);
+                    table.keys.set(2 * i, mostSigBits);
+                    table.touched.set(i, clock);
+                    table.balances.set(i, balance);
+                    segment.used++;
+                    size.increment();
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Replace a segment's table with one sized for its live users. Must hold the segment's lock
+     * @return the new table
+     */
+    private static Table grow(Segment segment) {
+        var old = segment.table;
+        var capacity = old.mask + 1;
+        var live = 0;
+        for (int i = 0; i < capacity; i++) {
+            if (isLive(old.balances.get(i))) {
+                live++;
+            }
+        }
+        var newCapacity = MIN_CAPACITY;
+        while (newCapacity < live * 2 + 2) {
+            newCapacity <<= 1;
+        }
+
+        var table = new Table(newCapacity);
+        var used = 0;
+        for (int i = 0; i < capacity; i++) {
+            // freeze the balance so that no update can sneak in after the copy
+            long balance;
+            do {
+                balance = old.balances.get(i);
+            } while (isLive(balance) && !old.balances.compareAndSet(i, balance, MOVED));
+            if (!isLive(balance)) {
+                continue;
+            }
+            var keyMost = old.keys.get(2 * i);
+            var keyLeast = old.keys.get(2 * i + 1);
+            var j = (int) hash(keyMost, keyLeast) & table.mask;
+            while (table.keys.get(2 * j) != 0 || table.keys.get(2 * j + 1) != 0) {
+                j = (j + 1) & table.mask;
+            }
+            table.keys.set(2 * j, keyMost);
+            table.keys.set(2 * j + 1, keyLeast);
+            table.touched.set(j, old.touched.get(i));
+            table.arrivals.set(j, old.arrivals.get(i));
+            table.balances.set(j, balance);
+            used++;
+        }
+        segment.used = used;
+        segment.table = table;
+        return table;
+    }
+
+    /**
+     * @param mostSigBits the user ID's most significant bits
+     * @param leastSigBits the user ID's least significant bits
+     * @return the user's balance, or {@link #MISSING}
+     */
+    public long get(long mostSigBits, long leastSigBits) {
+        var hash = hash(mostSigBits, leastSigBits);
+        var segment = segmentFor(hash);
+        while (true) {
+            var table = segment.table;
+            var i = table.find(mostSigBits, leastSigBits, hash);
+            if (i < 0) {
+                return MISSING;
+            }
+            var balance = table.balances.get(i);
+            if (balance != MOVED) {
+                return isLive(balance) ? balance : MISSING;
+            }
+        }
+    }
+
+    /**
+     * Add to (or subtract from) a user's balance, atomically
+     * @param mostSigBits the user ID's most significant bits
+     * @param leastSigBits the user ID's least significant bits
+     * @param amount the amount to add, negative to subtract
+     * @return the new balance, or {@link #MISSING}
+     */
+    public long add(long mostSigBits, long leastSigBits, long amount) {
+        return update(mostSigBits, leastSigBits, amount, Long.MIN_VALUE);
+    }
+
+    /**
+     * Take an amount from a user's balance, atomically, but only if the balance covers it
+     * @param mostSigBits the user ID's most significant bits
+     * @param leastSigBits the user ID's least significant bits
+     * @param amount the amount to take
+     * @return the new balance, {@link #INSUFFICIENT} if the balance is smaller than the amount, or {@link #MISSING}
+     */
+    public long debit(long mostSigBits, long leastSigBits, long amount) {
+        return update(mostSigBits, leastSigBits, -amount, amount);
+    }
+
+    /**
+     * Add to (or subtract from) a user's balance, atomically, but only if the balance covers a stake. This settles
+     * a whole round in one step: the stake is what the user could have lost, the amount what it did win or lose
+     * @param mostSigBits the user ID's most significant bits
+     * @param leastSigBits the user ID's least significant bits
+     * @param stake the least the balance must be
+     * @param amount the amount to add, negative to subtract
+     * @return the new balance, {@link #INSUFFICIENT} if the balance is smaller than the stake, or {@link #MISSING}
+     */
+    public long settle(long mostSigBits, long leastSigBits, long stake, long amount) {
+        return update(mostSigBits, leastSigBits, amount, stake);
+    }
+
+    private long update(long mostSigBits, long leastSigBits, long amount, long minimum) {
+        var hash = hash(mostSigBits, leastSigBits);
+        var segment = segmentFor(hash);
+        var now = clock;
+        while (true) {
+            var table = segment.table;
+            var i = table.find(mostSigBits, leastSigBits, hash);
+            if (i < 0) {
+                return MISSING;
+            }
+            // touched before the balance changes, so removeIfIdle() can't miss a change in progress. The clock is
+            // coarse, so the write is usually skipped
+            if (table.touched.get(i) != now) {
+                table.touched.set(i, now);
+            }
+            while (true) {
+                var balance = table.balances.get(i);
+                if (balance == MOVED) {
+                    // the segment has grown in the meantime, start over on the new table
+                    break;
+                }
+                if (!isLive(balance)) {
+                    return MISSING;
+                }
+                if (balance < minimum) {
+                    return INSUFFICIENT;
+                }
+                if (table.balances.compareAndSet(i, balance, balance + amount)) {
+                    return balance + amount;
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove a user
+     * @param mostSigBits the user ID's most significant bits
+     * @param leastSigBits the user ID's least significant bits
+     * @return the user's last balance, or {@link #MISSING}
+     */
+    public long remove(long mostSigBits, long leastSigBits) {
+        return removeIfBelow(mostSigBits, leastSigBits, Long.MAX_VALUE);
+    }
+
+    /**
+     * Remove a user, but only if its balance is below a threshold at that very moment. This is how bankrupt users
+     * are kicked out without dropping cash that somebody else has just added
+     * @param mostSigBits the user ID's most significant bits
+     * @param leastSigBits the user ID's least significant bits
+     * @param threshold the balance from which the user stays
+     * @return the user's last balance if it has been removed, otherwise {@link #MISSING}
+     */
+    public long removeIfBelow(long mostSigBits, long leastSigBits, long threshold) {
+        var hash = hash(mostSigBits, leastSigBits);
+        var segment = segmentFor(hash);
+        while (true) {
+            var table = segment.table;
+            var i = table.find(mostSigBits, leastSigBits, hash);
+            if (i < 0) {
+                return MISSING;
+            }
+            while (true) {
+                var balance = table.balances.get(i);
+                if (balance == MOVED) {
+                    break;
+                }
+                if (!isLive(balance) || balance >= threshold) {
+                    return MISSING;
+                }
+                if (table.balances.compareAndSet(i, balance, REMOVED)) {
+                    size.decrement();
+                    return balance;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param mostSigBits the user ID's most significant bits
+     * @param leastSigBits the user ID's least significant bits
+     * @return the clock when the user was last created or changed, or {@link #MISSING}
+     */
+    public long lastTouched(long mostSigBits, long leastSigBits) {
+        var hash = hash(mostSigBits, leastSigBits);
+        var segment = segmentFor(hash);
+        while (true) {
+            var table = segment.table;
+            var i = table.find(mostSigBits, leastSigBits, hash);
+            if (i < 0) {
+                return MISSING;
+            }
+            var balance = table.balances.get(i);
+            if (balance != MOVED) {
+                return isLive(balance) ? table.touched.get(i) : MISSING;
+            }
+        }
+    }
+
+    /**
+     * Remove a user, but only if it hasn't been created or changed since a given time. A change which is
+     * running at the same time either wins, and the user stays, or finds the user gone
+     * @param mostSigBits the user ID's most significant bits
+     * @param leastSigBits the user ID's least significant bits
+     * @param before the clock from which the user stays
+     * @return the user's last balance if it has been removed, otherwise {@link #MISSING}
+     */
+    public long removeIfIdle(long mostSigBits, long leastSigBits, long before) {
+        var hash = hash(mostSigBits, leastSigBits);
+        var segment = segmentFor(hash);
+        while (true) {
+            var table = segment.table;
+            var i = table.find(mostSigBits, leastSigBits, hash);
+            if (i < 0) {
+                return MISSING;
+            }
+            while (true) {
+                var balance = table.balances.get(i);
+                if (balance == MOVED) {
+                    break;
+                }
+                if (!isLive(balance) || table.touched.get(i) >= before) {
+                    return MISSING;
+                }
+                if (table.balances.compareAndSet(i, balance, REMOVED)) {
+                    size.decrement();
+                    return balance;
+                }
+            }
+        }
+    }
+
+    /**
+     * Take one query off the user's rate limit, a token bucket in its GCRA form: the query is let through unless
+     * it comes more than the tolerance ahead of the user's theoretical arrival time, which then moves on by one
+     * interval. A query racing with the growth of the segment may go unaccounted, which a rate limit can live
+     * with
+     * @param mostSigBits the user ID's most significant bits
+     * @param leastSigBits the user ID's least significant bits
+     * @param now the current time, never negative
+     * @param interval the time between two queries at the sustained rate
+     * @param tolerance how far ahead a burst can go
+     * @return false if the query is over the limit, true otherwise (unknown users included, they fail later on)
+     */
+    public boolean admit(long mostSigBits, long leastSigBits, long now, long interval, long tolerance) {
+        var hash = hash(mostSigBits, leastSigBits);
+        var table = segmentFor(hash).table;
+        var i = table.find(mostSigBits, leastSigBits, hash);
+        if (i < 0) {
+            return true;
+        }
+        while (true) {
+            var arrival = table.arrivals.get(i);
+            var next = Math.max(arrival, now) + interval;
+            if (next - now > tolerance + interval) {
+                return false;
+            }
+            if (table.arrivals.compareAndSet(i, arrival, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Go through every user. Users created, changed or removed in the meantime may or may not be seen
+     * @param visitor gets every user
+     */
+    public void forEach(Visitor visitor) {
+        for (var segment : segments) {
+            synchronized (segment) {
+                // a table which has been replaced only has frozen balances, so hold off the growing
+                var table = segment.table;
+                for (int i = 0; i <= table.mask; i++) {
+                    var balance = table.balances.get(i);
+                    if (isLive(balance)) {
+                        visitor.visit(table.keys.get(2 * i), table.keys.get(2 * i + 1), balance);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.meowmeow.classes;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <h3>Worker Pool class</h3>
+ * <p>Serves the queries for the {@link Reactor}s, so that the I/O threads only read, decode and write.</p>
+ * <p>
+ *     A reactor cuts up to {@value #MAX_JOB_QUERIES} complete queries of a connection into the connection's
+ *     {@link Job}, and hands it over through a lock-free queue. A worker serves them in order with its own
+ *     {@link QueryDispatcher}, writing the responses into the job's {@link ResponseBuffer}, then gives the job back
+ *     to the reactor, which copies the responses into the connection and cuts the next queries. Every connection
+ *     has at most one job in flight, so its queries are still served one after the other and answered in order,
+ *     while the connections are served in parallel; that also bounds the queue by the number of connections.
+ *     A batch is played a chunk per job, the same as on a reactor.
+ * </p>
+ * <p>
+ *     The workers with nothing to do park, and a new job wakes one of them up.
+ * </p>
+ */
+class WorkerPool implements AutoCloseable {
+    static final int MAX_JOB_QUERIES = 64;
+
+    private final ConcurrentLinkedQueue<Job> jobs = new ConcurrentLinkedQueue<>();
+
+    private final ConcurrentLinkedQueue<Worker> idle = new ConcurrentLinkedQueue<>();
+
+    private final Worker[] workers;
+
+    private volatile boolean closing = false;
+
+    /**
+     * The queries of a connection on their way through the pool. Reused for all of the connection's queries
+     */
+    static final class Job {
+        final Connection connection;
+        final Reactor reactor;
+        final SelectionKey key;
+        final ResponseBuffer output = new ResponseBuffer();
+
+        /** The decoded queries, text or binary. The ones from {@link #next} to {@link #count} are still to serve */
+        final String[] queries = new String[MAX_JOB_QUERIES];
+        private BinaryProtocol.Request[] requests;
+        boolean binary;
+        int count = 0, next = 0;
+
+        /** Whether the connection's batch is still open, as the worker left it */
+        boolean batchOpen = false;
+
+        /** Whether a query has crashed, as the worker left it */
+        boolean failed = false;
+
+        // only touched by the reactor
+        /** Between the hand-over and the completion */
+        boolean inFlight = false;
+        /** Whether a batch response is half-written to the connection, as of the last completion */
+        boolean streaming = false;
+        /** Close the connection once the job is back */
+        boolean closeWhenDone = false;
+
+        Job(@NotNull Connection connection, @NotNull Reactor reactor, @NotNull SelectionKey key) {
+            this.connection = connection;
+            this.reactor = reactor;
+            this.key = key;
+        }
+
+        /**
+         * @return where the next binary frame is decoded to
+         */
+        @NotNull
+        BinaryProtocol.Request nextRequest() {
+            if (requests == null) {
+                requests = new BinaryProtocol.Request[MAX_JOB_QUERIES];
+                for (int i = 0; i < MAX_JOB_QUERIES; i++) {
+                    requests[i] = new BinaryProtocol.Request();
+                }
+            }
+            return requests[count];
+        }
+
+        /**
+         * @return whether the job has to go back to the pool before taking new queries
+         */
+        boolean hasWork() {
+            return next < count || batchOpen;
+        }
+    }
+
+    private final class Worker implements Runnable {
+        final QueryDispatcher dispatcher;
+        Thread thread;
+
+        Worker(@NotNull Server server) {
+            dispatcher = new QueryDispatcher(server);
+        }
+
+        @Override
+        public void run() {
+            while (!closing) {
+                var job = jobs.poll();
+                if (job != null) {
+                    serve(job);
+                    job.reactor.complete(job);
+                    continue;
+                }
+                idle.add(this);
+                // a job handed over just before this worker got on the list has nobody else to wake it up
+                if (jobs.isEmpty() && !closing) {
+                    LockSupport.park(this);
+                }
+                idle.remove(this);
+            }
+        }
+
+        /**
+         * Serve the job's queries in order, until they are all done or a batch has played a chunk
+         */
+        private void serve(@NotNull Job job) {
+            var connection = job.connection;
+            var batch = connection.getBatch();
+            try {
+                while (true) {
+                    if (batch.open && !dispatcher.continueBatch(job.output, batch, Reactor.BATCH_CHUNK)) {
+                        break;
+                    }
+                    if (job.next == job.count) {
+                        break;
+                    }
+                    var i = job.next++;
+                    if (job.binary) {
+                        dispatcher.serveBinary(connection, job.requests[i], job.output);
+                    } else {
+                        dispatcher.serveText(connection, job.queries[i], job.output);
+                        job.queries[i] = null;
+                    }
+                }
+            } catch (RuntimeException e) {
+                // the responses are out of step now, the connection has to go
+                Log.error("A worker has crashed serving a query", e);
+                job.failed = true;
+            }
+            job.batchOpen = batch.open;
+        }
+    }
+
+    /**
+     * Start the workers
+     * @param server the server the queries go to
+     * @param size the number of worker threads
+     */
+    WorkerPool(@NotNull Server server, int size) {
+        workers = new Worker[size];
+        for (int i = 0; i < size; i++) {
+            workers[i] = new Worker(server);
+            var thread = new Thread(workers[i], "worker-" + i);
+            thread.setDaemon(true);
+            workers[i].thread = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * Hand a job over to the workers. Safe to call from any thread
+     * @param job the job, which must not be in flight already
+     */
+    void submit(@NotNull Job job) {
+        jobs.add(job);
+        var worker = idle.poll();
+        if (worker != null) {
+            LockSupport.unpark(worker.thread);
+        }
+    }
+
+    int size() {
+        return workers.length;
+    }
+
+    /**
+     * @return the number of queries served by the workers. Read racily
+     */
+    long getRequestsServed() {
+        long requestsServed = 0;
+        for (var worker : workers) {
+            requestsServed += worker.dispatcher.getRequestsServed();
+        }
+        return requestsServed;
+    }
+
+    /**
+     * Stop the workers once they are done with their current job. The jobs still queued are dropped, the
+     * reactors are closing anyway
+     * @throws InterruptedException if interrupted while waiting for the workers
+     */
+    @Override
+    public void close() throws InterruptedException {
+        closing = true;
+        for (var worker : workers) {
+            LockSupport.unpark(worker.thread);
+        }
+        for (var worker : workers) {
+            worker.thread.join();
+        }
+    }
+}